@@ -0,0 +1,26 @@
+#!/bin/bash
+# Generates payment files of growing size and runs the pipeline on each, appending one line per stage
+# to results.tsv (see ScaleTest). Build the module first with "mvn package".
+#
+# Usage: ./scale_test.sh [threads] [payments...]
+# e.g.   ./scale_test.sh 4 1000000 10000000 100000000
+# Environment: NODES_PER_PAYMENT (default 0.1), STREAM (default 1000000 payments), SKEW, HEAP (default 8g),
+#              DATA (directory for the generated files, default /tmp/paymo-scale)
+
+cd "$(dirname "$0")"
+THREADS=${1:-1}
+shift
+SIZES=${@:-1000000 10000000}
+DATA=${DATA:-/tmp/paymo-scale}
+JAR=target/benchmarks.jar
+
+for PAYMENTS in $SIZES; do
+  NODES=$(awk "BEGIN { printf \"%d\", $PAYMENTS * ${NODES_PER_PAYMENT:-0.1} }")
+  DIR=$DATA/$PAYMENTS
+  if [ ! -f $DIR/batch_payment.txt ]; then
+    java -cp $JAR com.paymo.bench.PaymentGenerator --nodes=$NODES --batch=$PAYMENTS --stream=${STREAM:-1000000} \
+        --skew=${SKEW:-2} $DIR || exit 1
+  fi
+  java -Xmx${HEAP:-8g} -cp $JAR com.paymo.bench.ScaleTest $DIR/batch_payment.txt $DIR/stream_payment.txt \
+      results.tsv $THREADS $PAYMENTS || exit 1
+done
@@ -0,0 +1,67 @@
+package com.paymo.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.paymo.Graph;
+
+/**
+ * AddEdgeBenchmark measures Graph.addEdge, with the addNode calls a new payment needs, as edges per second:
+ * building a graph from nothing, and adding later payments to the batch graph of the shape.
+ *
+ * @author rena
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AddEdgeBenchmark {
+	private static final int EDGES = 100000;
+
+	@Param({"medium", "hubs"})
+	public String shape;
+
+	private int[] payments;
+	private Graph batchGraph;
+	private Graph graph;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		PaymentData data = PaymentData.shape(shape);
+		payments = data.stream(EDGES);
+		batchGraph = PaymentData.graph(data.batch());
+	}
+
+	@Setup(Level.Invocation)
+	public void copyBatchGraph() {
+		graph = new Graph(batchGraph);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EDGES)
+	public Graph addToEmptyGraph() {
+		return PaymentData.graph(payments);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EDGES)
+	public Graph addToBatchGraph() {
+		PaymentData.addAll(graph, payments);
+		return graph;
+	}
+}
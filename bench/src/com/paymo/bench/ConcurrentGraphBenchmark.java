@@ -0,0 +1,104 @@
+package com.paymo.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.paymo.ConcurrentGraph;
+
+/**
+ * ConcurrentGraphBenchmark measures ConcurrentGraph.BFS at degree 4 on the batch graph of each shape,
+ * by readers alone and by readers while one thread keeps adding later payments. Run it with -tg to vary the
+ * number of reader threads (e.g. -tg 1,1 / 4,1 / 8,1) and see how read throughput scales across cores.
+ *
+ * @author rena
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ConcurrentGraphBenchmark {
+	private static final int QUERIES = 1 << 14;
+	private static final int WRITES = 1 << 22;
+
+	@Param({"medium", "hubs"})
+	public String shape;
+
+	private ConcurrentGraph graph;
+	private int[] queries;
+	private int[] writes;
+	private int nextWrite;
+
+	@Setup
+	public void setUp() {
+		PaymentData data = PaymentData.shape(shape);
+		graph = new ConcurrentGraph();
+		int[] batch = data.batch();
+		for (int i = 0; i < batch.length; i += 2) {
+			add(batch[i], batch[i + 1]);
+		}
+		queries = data.stream(QUERIES);
+		writes = data.payments(WRITES, PaymentData.SEED + 2);
+	}
+
+	private void add(int id1, int id2) {
+		graph.addNode(id1);
+		graph.addNode(id2);
+		graph.addEdge(id1, id2);
+	}
+
+	/**
+	 * Cursor is the position of one reader thread in the queries, which each reader cycles through from a
+	 * different start.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private static int readers;
+		int next = QUERIES / 7 * nextReader();
+
+		private static synchronized int nextReader() {
+			return readers++;
+		}
+	}
+
+	private boolean query(Cursor cursor) {
+		int i = 2 * (cursor.next++ & (QUERIES - 1));
+		return graph.BFS(queries[i], queries[i + 1], 4);
+	}
+
+	@Benchmark
+	@Group("read")
+	@GroupThreads(4)
+	public boolean readOnly(Cursor cursor) {
+		return query(cursor);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(4)
+	public boolean reader(Cursor cursor) {
+		return query(cursor);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(1)
+	public void writer() {
+		int i = 2 * (nextWrite++ & (WRITES - 1));
+		add(writes[i], writes[i + 1]);
+	}
+}
@@ -0,0 +1,87 @@
+package com.paymo.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.paymo.Graph;
+import com.paymo.VerifyTransaction;
+
+/**
+ * InitializeTransactionsBenchmark measures loading a batch payment file into a new Graph, on one thread
+ * (VerifyTransaction.initializeTransactions) and on several. Besides loads per second, the "megabytes"
+ * counter gives the throughput in MB of csv per second.
+ *
+ * @author rena
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class InitializeTransactionsBenchmark {
+	@Param({"medium", "hubs"})
+	public String shape;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private Path dir;
+	private String batchFile;
+	private double megabytes;
+
+	/**
+	 * Counters reported as rates next to the score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public double megabytes;
+		public long payments;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			megabytes = 0;
+			payments = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("paymo-bench");
+		Path file = dir.resolve("batch_payment.txt");
+		PaymentData.write(file, PaymentData.shape(shape).batch());
+		batchFile = file.toString();
+		megabytes = Files.size(file) / (1024.0 * 1024.0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		PaymentData.delete(dir);
+	}
+
+	@Benchmark
+	public Graph load(Counters counters) {
+		Graph g = VerifyTransaction.loadTransactions(batchFile, threads);
+		counters.megabytes += megabytes;
+		counters.payments += g.edgeCount();
+		return g;
+	}
+}
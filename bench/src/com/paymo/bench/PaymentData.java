@@ -0,0 +1,151 @@
+package com.paymo.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import com.paymo.Graph;
+
+/**
+ * PaymentData generates the payments the benchmarks run on. Everything is drawn from a Random with a fixed
+ * seed, so every run of a benchmark sees the same graph, queries and files.
+ *
+ * Shapes:
+ *   small  - 2,000 ids, 10,000 payments between uniformly drawn ids
+ *   medium - 200,000 ids, 1,000,000 payments between uniformly drawn ids
+ *   hubs   - 200,000 ids, 1,000,000 payments whose second id is skewed towards a few hub accounts
+ *
+ * @author rena
+ */
+final class PaymentData {
+	static final long SEED = 42;
+
+	private final int nodes;
+	private final int payments;
+	private final boolean skewed;
+
+	private PaymentData(int nodes, int payments, boolean skewed) {
+		this.nodes = nodes;
+		this.payments = payments;
+		this.skewed = skewed;
+	}
+
+	/**
+	 * Returns the data of the named shape: small, medium or hubs.
+	 * @param shape
+	 * @return
+	 */
+	static PaymentData shape(String shape) {
+		switch (shape) {
+		case "small":
+			return new PaymentData(2000, 10000, false);
+		case "medium":
+			return new PaymentData(200000, 1000000, false);
+		case "hubs":
+			return new PaymentData(200000, 1000000, true);
+		default:
+			throw new IllegalArgumentException("Unknown shape " + shape);
+		}
+	}
+
+	/**
+	 * Returns count payments as pairs of ids: ids[2i] pays ids[2i + 1]. The same seed gives the same payments.
+	 * @param count
+	 * @param seed
+	 * @return
+	 */
+	int[] payments(int count, long seed) {
+		Random random = new Random(seed);
+		int[] ids = new int[2 * count];
+		for (int i = 0; i < count; i++) {
+			ids[2 * i] = random.nextInt(nodes);
+			ids[2 * i + 1] = skewed ? (int) (nodes * Math.pow(random.nextDouble(), 3)) : random.nextInt(nodes);
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the batch payments of the shape.
+	 * @return
+	 */
+	int[] batch() {
+		return payments(payments, SEED);
+	}
+
+	/**
+	 * Returns count later payments, drawn like the batch ones, to be verified against the batch graph.
+	 * @param count
+	 * @return
+	 */
+	int[] stream(int count) {
+		return payments(count, SEED + 1);
+	}
+
+	/**
+	 * Returns a graph with an edge for each payment.
+	 * @param ids
+	 * @return
+	 */
+	static Graph graph(int[] ids) {
+		Graph g = new Graph();
+		addAll(g, ids);
+		return g;
+	}
+
+	/**
+	 * Adds an edge to g for each payment, and the nodes it needs.
+	 * @param g
+	 * @param ids
+	 */
+	static void addAll(Graph g, int[] ids) {
+		for (int i = 0; i < ids.length; i += 2) {
+			if (!g.containsNode(ids[i])) {
+				g.addNode(ids[i]);
+			}
+			if (!g.containsNode(ids[i + 1])) {
+				g.addNode(ids[i + 1]);
+			}
+			g.addEdge(ids[i], ids[i + 1]);
+		}
+	}
+
+	/**
+	 * Writes the payments to file in the format of batch_payment.txt and stream_payment.txt.
+	 * @param file
+	 * @param ids
+	 * @throws IOException
+	 */
+	static void write(Path file, int[] ids) throws IOException {
+		Random random = new Random(SEED);
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("time, id1, id2, amount, message");
+			writer.newLine();
+			for (int i = 0; i < ids.length; i += 2) {
+				writer.write("2016-11-02 09:49:29, " + ids[i] + ", " + ids[i + 1] + ", "
+						+ random.nextInt(100) + "." + random.nextInt(10) + random.nextInt(10) + ", Payment " + (i >> 1));
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of dir, then dir.
+	 * @param dir
+	 * @throws IOException
+	 */
+	static void delete(Path dir) throws IOException {
+		if (dir == null) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+}
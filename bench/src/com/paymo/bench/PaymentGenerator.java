@@ -0,0 +1,168 @@
+package com.paymo.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * PaymentGenerator writes a batch_payment.txt and a stream_payment.txt of any size in the format
+ * VerifyTransaction reads ("time, id1, id2, amount, message"), from a seed so that the same options always
+ * give the same files.
+ *
+ * Ids are 1..nodes. Both ends of a payment are drawn with a power-law skew: the id is nodes * u^skew for a
+ * uniform u, so skew 1 is uniform and larger values concentrate payments on the low ids. On top of that,
+ * a share of the payments goes to one of a few hub merchants, the ids right after the users.
+ * A share of the lines is malformed the way real exports are: messages broken over two lines, ids that are
+ * not numbers or do not fit in an int, missing fields and empty lines. VerifyTransaction skips all of them.
+ *
+ * Usage:
+ *   java -cp target/benchmarks.jar com.paymo.bench.PaymentGenerator [--nodes=N] [--batch=B] [--stream=S]
+ *        [--skew=X] [--hubs=H] [--hub-share=F] [--malformed=M] [--seed=R] output_dir
+ * Defaults: 100,000 nodes, 1,000,000 batch and 100,000 stream payments, skew 2, 100 hubs getting 5% of
+ * the payments, 0.1% malformed lines, seed 42.
+ *
+ * @author rena
+ */
+public class PaymentGenerator {
+	private static final String HEADER = "time, id1, id2, amount, message";
+	private static final String[] WORDS = {"rent", "pizza", "uber", "coffee", "tickets", "groceries", "gift",
+			"utilities", "dinner", "drinks", "🍕", "🍺", "🚕", "thanks, again"};
+	// 2016-11-01 00:00:00 UTC
+	private static final long START_SECONDS = 1477958400L;
+
+	private final int nodes;
+	private final double skew;
+	private final int hubs;
+	private final double hubShare;
+	private final double malformed;
+	private final Random random;
+	private long seconds = START_SECONDS;
+	private final StringBuilder line = new StringBuilder(128);
+
+	/**
+	 * Constructor- generate payments between nodes users and hubs merchants
+	 * @param nodes
+	 * @param skew
+	 * @param hubs
+	 * @param hubShare share of payments made to a hub
+	 * @param malformed share of malformed lines
+	 * @param seed
+	 */
+	PaymentGenerator(int nodes, double skew, int hubs, double hubShare, double malformed, long seed) {
+		if (nodes < 1 || skew <= 0 || hubs < 0 || hubShare < 0 || hubShare > 1 || malformed < 0 || malformed > 1) {
+			throw new IllegalArgumentException("Invalid generator options");
+		}
+		this.nodes = nodes;
+		this.skew = skew;
+		this.hubs = hubs;
+		this.hubShare = hubs == 0 ? 0 : hubShare;
+		this.malformed = malformed;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Writes a payment file with count payments and the malformed lines mixed in with them. The first line of
+	 * a message broken over two lines is still a payment, so the file may hold a few more than count.
+	 * @param file
+	 * @param count
+	 * @throws IOException
+	 */
+	void write(Path file, long count) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.write('\n');
+			for (long i = 0; i < count; i++) {
+				if (malformed > 0 && random.nextDouble() < malformed) {
+					writer.write(malformedLine());
+				}
+				writer.write(paymentLine());
+			}
+		}
+	}
+
+	private int user() {
+		return 1 + (int) Math.min(nodes - 1, (long) (nodes * Math.pow(random.nextDouble(), skew)));
+	}
+
+	private int payee() {
+		return hubShare > 0 && random.nextDouble() < hubShare ? nodes + 1 + random.nextInt(hubs) : user();
+	}
+
+	private StringBuilder time() {
+		seconds += random.nextInt(3);
+		long secondOfDay = seconds % 86400;
+		long day = seconds / 86400 - START_SECONDS / 86400; // days since 2016-11-01, kept within November
+		line.append("2016-11-").append(two(1 + day % 30)).append(' ').append(two(secondOfDay / 3600)).append(':')
+				.append(two(secondOfDay / 60 % 60)).append(':').append(two(secondOfDay % 60));
+		return line;
+	}
+
+	private static String two(long value) {
+		return value < 10 ? "0" + value : Long.toString(value);
+	}
+
+	private String paymentLine() {
+		line.setLength(0);
+		time().append(", ").append(user()).append(", ").append(payee()).append(", ")
+				.append(random.nextInt(300)).append('.').append(random.nextInt(10)).append(random.nextInt(10))
+				.append(", ").append(WORDS[random.nextInt(WORDS.length)]).append('\n');
+		return line.toString();
+	}
+
+	private String malformedLine() {
+		line.setLength(0);
+		switch (random.nextInt(5)) {
+		case 0: // message broken over two lines, the first one is still a valid payment
+			time().append(", ").append(user()).append(", ").append(payee()).append(", 10.00, see you\n")
+					.append("tomorrow, ").append(WORDS[random.nextInt(WORDS.length)]).append('\n');
+			return line.toString();
+		case 1:
+			return time().append(", ").append(user()).append(", n/a, 10.00, refund\n").toString();
+		case 2:
+			return time().append(", 99999999999, ").append(user()).append(", 10.00, overflow\n").toString();
+		case 3:
+			return time().append(", ").append(user()).append('\n').toString();
+		default:
+			return "\n";
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		String outputDir = null;
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (arg.startsWith("--") && equals > 2) {
+				options.put(arg.substring(2, equals), arg.substring(equals + 1));
+			} else {
+				outputDir = arg;
+			}
+		}
+		if (outputDir == null) {
+			System.err.println("Usage: PaymentGenerator [--nodes=N] [--batch=B] [--stream=S] [--skew=X] [--hubs=H]"
+					+ " [--hub-share=F] [--malformed=M] [--seed=R] output_dir");
+			return;
+		}
+
+		long seed = Long.parseLong(get(options, "seed", "42"));
+		PaymentGenerator generator = new PaymentGenerator(Integer.parseInt(get(options, "nodes", "100000")),
+				Double.parseDouble(get(options, "skew", "2")), Integer.parseInt(get(options, "hubs", "100")),
+				Double.parseDouble(get(options, "hub-share", "0.05")),
+				Double.parseDouble(get(options, "malformed", "0.001")), seed);
+		Path dir = Files.createDirectories(Paths.get(outputDir));
+		generator.write(dir.resolve("batch_payment.txt"), Long.parseLong(get(options, "batch", "1000000")));
+		// The stream continues from the batch, same users and same clock
+		generator.write(dir.resolve("stream_payment.txt"), Long.parseLong(get(options, "stream", "100000")));
+	}
+
+	private static String get(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+}
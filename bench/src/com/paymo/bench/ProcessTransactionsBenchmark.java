@@ -0,0 +1,100 @@
+package com.paymo.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.paymo.Graph;
+import com.paymo.VerifyTransaction;
+
+/**
+ * ProcessTransactionsBenchmark measures VerifyTransaction.processTransactions end to end: reading the stream
+ * file, verifying every payment at degrees 1, 2 and 4 against a fresh copy of the batch graph, and writing
+ * the three output files. The "transactions" counter gives the stream throughput in payments per second.
+ * With pipelined, a stream verified on one thread is read, verified and written in three stages (--pipeline).
+ *
+ * @author rena
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ProcessTransactionsBenchmark {
+	private static final int STREAM_PAYMENTS = 100000;
+
+	@Param({"medium", "hubs"})
+	public String shape;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"false", "true"})
+	public boolean pipelined;
+
+	private Path dir;
+	private String streamFile;
+	private String[] outputFiles;
+	private Graph batchGraph;
+	private Graph graph;
+
+	/**
+	 * Counters reported as rates next to the score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long transactions;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			transactions = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		PaymentData data = PaymentData.shape(shape);
+		dir = Files.createTempDirectory("paymo-bench");
+		Path file = dir.resolve("stream_payment.txt");
+		PaymentData.write(file, data.stream(STREAM_PAYMENTS));
+		streamFile = file.toString();
+		outputFiles = new String[] {
+				dir.resolve("output1.txt").toString(), dir.resolve("output2.txt").toString(), dir.resolve("output3.txt").toString()};
+		batchGraph = PaymentData.graph(data.batch());
+	}
+
+	@Setup(Level.Invocation)
+	public void copyBatchGraph() {
+		graph = new Graph(batchGraph);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		PaymentData.delete(dir);
+	}
+
+	@Benchmark
+	public Graph process(Counters counters) {
+		VerifyTransaction.processTransactions(streamFile, outputFiles, graph, new int[] {1, 2, 4}, threads, null, pipelined);
+		counters.transactions += STREAM_PAYMENTS;
+		return graph;
+	}
+}
@@ -0,0 +1,185 @@
+package com.paymo.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RecoveryTest checks that VerifyTransaction with --log-dir writes the same output files when it is killed
+ * and run again, as many times as asked, as when it runs once without a log.
+ *
+ * The reference run verifies the stream without a log. Each round then runs VerifyTransaction with the log
+ * in work_dir, kills it (SIGKILL, so nothing is flushed or closed) once its first output file holds a share
+ * of the reference output that grows with the round, and leaves a torn frame at the end of the newest log
+ * segment and a torn line at the end of an output file, as a crash in the middle of a write would. A last
+ * run goes to the end, and its output files must be the same bytes as those of the reference run. Exits with
+ * status 1 if they are not. Flags after threads, such as --off-heap, are passed to the logged runs.
+ *
+ * Usage:
+ *   java -cp target/benchmarks.jar com.paymo.bench.RecoveryTest batch_file stream_file work_dir [kills] [checkpoint_edges] [threads] [flags...]
+ *
+ * @author rena
+ */
+public class RecoveryTest {
+	private static final int OUTPUTS = 3;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: RecoveryTest batch_file stream_file work_dir [kills] [checkpoint_edges] [threads] [flags...]");
+			return;
+		}
+		String batchFile = args[0];
+		String streamFile = args[1];
+		Path work = Paths.get(args[2]);
+		int kills = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		String checkpointEdges = args.length > 4 ? args[4] : "20000";
+		String threads = args.length > 5 ? args[5] : "1";
+		Files.createDirectories(work);
+		Path logDirectory = work.resolve("log");
+		deleteDirectory(logDirectory);
+		for (int i = 1; i <= OUTPUTS; i++) {
+			Files.deleteIfExists(work.resolve("logged" + i));
+		}
+
+		int status = run(verifyCommand(batchFile, streamFile, work, "reference", threads), null, 0);
+		if (status != 0) {
+			throw new IllegalStateException("The reference run failed with status " + status);
+		}
+		long referenceBytes = Files.size(work.resolve("reference1"));
+
+		Random random = new Random(42);
+		List<String> logged = verifyCommand(batchFile, streamFile, work, "logged", threads);
+		logged.add(logged.size() - 2 - OUTPUTS, "--log-dir=" + logDirectory);
+		logged.add(logged.size() - 2 - OUTPUTS, "--checkpoint-edges=" + checkpointEdges);
+		for (int i = 6; i < args.length; i++) {
+			logged.add(logged.size() - 2 - OUTPUTS, args[i]);
+		}
+		Path watched = work.resolve("logged1");
+		for (int round = 1; round <= kills; round++) {
+			long killBytes = referenceBytes * round / (kills + 1);
+			status = run(logged, watched, killBytes);
+			String torn = status < 0 ? tear(logDirectory, work, random) : "";
+			System.out.println("round " + round + ": " + (status < 0 ? "killed at " + Files.size(watched) + " of "
+					+ referenceBytes + " output bytes" + torn : "ended with status " + status + " before the kill"));
+		}
+		status = run(logged, null, 0);
+		if (status != 0) {
+			throw new IllegalStateException("The last run failed with status " + status);
+		}
+
+		boolean same = true;
+		for (int i = 1; i <= OUTPUTS; i++) {
+			byte[] expected = Files.readAllBytes(work.resolve("reference" + i));
+			byte[] actual = Files.readAllBytes(work.resolve("logged" + i));
+			if (!Arrays.equals(expected, actual)) {
+				System.out.println("output" + i + " differs: " + actual.length + " bytes instead of " + expected.length);
+				same = false;
+			}
+		}
+		System.out.println(same ? "RECOVERY OK" : "RECOVERY FAILED");
+		if (!same) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns the command that verifies the stream into the output files name1, name2 and name3 of work;
+	 * the batch, stream and output files are last.
+	 */
+	private static List<String> verifyCommand(String batchFile, String streamFile, Path work, String name, String threads) {
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("com.paymo.VerifyTransaction");
+		command.add("--threads=" + threads);
+		command.add(batchFile);
+		command.add(streamFile);
+		for (int i = 1; i <= OUTPUTS; i++) {
+			command.add(work.resolve(name + i).toString());
+		}
+		return command;
+	}
+
+	/**
+	 * Runs command and returns its exit status, or -1 if it was killed once watched held more than killBytes
+	 * (never if watched is null).
+	 */
+	private static int run(List<String> command, Path watched, long killBytes) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(new File(command.get(command.size() - 1) + ".log")).start();
+		if (watched == null) {
+			return process.waitFor();
+		}
+		while (!Files.exists(watched) || Files.size(watched) <= killBytes) {
+			if (process.waitFor(1, TimeUnit.MILLISECONDS)) {
+				return process.exitValue();
+			}
+		}
+		process.destroyForcibly().waitFor();
+		return -1;
+	}
+
+	/**
+	 * Appends a frame cut short to the newest segment of the log, and a line cut short to one output file of
+	 * work. Returns what was torn.
+	 */
+	private static String tear(Path logDirectory, Path work, Random random) throws IOException {
+		StringBuilder torn = new StringBuilder();
+		Path newest = null;
+		long newestNumber = -1;
+		if (Files.isDirectory(logDirectory)) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(logDirectory, "edges.*.log")) {
+				for (Path file : files) {
+					String name = file.getFileName().toString();
+					long number = Long.parseLong(name.substring("edges.".length(), name.length() - ".log".length()));
+					if (number > newestNumber) {
+						newest = file;
+						newestNumber = number;
+					}
+				}
+			}
+		}
+		if (newest != null) {
+			// A frame header announcing more records than follow it
+			ByteBuffer frame = ByteBuffer.allocate(24 + 8 * 5).order(ByteOrder.LITTLE_ENDIAN);
+			frame.putInt(64).putInt(random.nextInt()).putLong(Long.MAX_VALUE).putLong(0);
+			while (frame.hasRemaining()) {
+				frame.put((byte) random.nextInt());
+			}
+			frame.flip();
+			Files.write(newest, frame.array(), StandardOpenOption.APPEND);
+			torn.append(", tore ").append(newest.getFileName());
+		}
+		Path output = work.resolve("logged" + (1 + random.nextInt(OUTPUTS)));
+		if (Files.exists(output)) {
+			Files.write(output, "trus".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+			torn.append(", tore ").append(output.getFileName());
+		}
+		return torn.toString();
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+}
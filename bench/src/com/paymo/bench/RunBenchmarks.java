@@ -0,0 +1,34 @@
+package com.paymo.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * RunBenchmarks runs the JMH benchmarks with the GC profiler always on, so that every result comes with its
+ * allocation rate (gc.alloc.rate.norm is bytes allocated per operation).
+ *
+ * Usage (from bench/):
+ *   mvn package
+ *   java -jar target/benchmarks.jar [JMH options] [benchmark regex]
+ * for example "java -jar target/benchmarks.jar Separation -p shape=hubs".
+ *
+ * @author rena
+ */
+public class RunBenchmarks {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+				|| commandLine.shouldListResultFormats() || commandLine.shouldListWithParams()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+	}
+}
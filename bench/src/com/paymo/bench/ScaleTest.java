@@ -0,0 +1,138 @@
+package com.paymo.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import com.paymo.Graph;
+import com.paymo.VerifyTransaction;
+
+/**
+ * ScaleTest runs the pipeline on a batch and a stream file, usually written by PaymentGenerator, and records
+ * for each stage its wall time, throughput and the peak resident memory of the process during the stage.
+ * Stages: "load" parses the batch file into the graph, "stream" verifies the stream at degrees 1, 2 and 4
+ * and writes the three output files.
+ *
+ * One tab-separated line per stage is appended to the results file (with a header when the file is new),
+ * so that runs on growing inputs or on successive versions of the code can be compared.
+ * The peak resident memory is read from /proc/self/status and is reset before each stage through
+ * /proc/self/clear_refs; where that is not available it is the peak of the whole run so far, or -1.
+ *
+ * Usage:
+ *   java -Xmx8g -cp target/benchmarks.jar com.paymo.bench.ScaleTest batch_file stream_file results.tsv [threads] [label]
+ *
+ * @author rena
+ */
+public class ScaleTest {
+	private static final String COLUMNS = "date\tlabel\tthreads\tstage\tinput_mb\tnodes\tedges\tseconds\titems"
+			+ "\titems_per_s\tmb_per_s\tpeak_rss_mb\theap_used_mb";
+
+	private final Path results;
+	private final String label;
+	private final int threads;
+
+	ScaleTest(Path results, String label, int threads) {
+		this.results = results;
+		this.label = label;
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: ScaleTest batch_file stream_file results.tsv [threads] [label]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		String label = args.length > 4 ? args[4] : Paths.get(args[0]).toAbsolutePath().getParent().getFileName().toString();
+		new ScaleTest(Paths.get(args[2]), label, threads).run(Paths.get(args[0]), Paths.get(args[1]));
+	}
+
+	void run(Path batchFile, Path streamFile) throws IOException {
+		resetPeakMemory();
+		long start = System.nanoTime();
+		Graph g = VerifyTransaction.loadTransactions(batchFile.toString(), threads);
+		long loaded = System.nanoTime();
+		record("load", Files.size(batchFile), g, loaded - start, g.edgeCount());
+
+		Path outputDir = Files.createTempDirectory("paymo-scale");
+		String[] outputs = {outputDir.resolve("output1.txt").toString(), outputDir.resolve("output2.txt").toString(),
+				outputDir.resolve("output3.txt").toString()};
+		try {
+			resetPeakMemory();
+			start = System.nanoTime();
+			VerifyTransaction.processTransactions(streamFile.toString(), outputs, g, new int[] {1, 2, 4}, threads);
+			long processed = System.nanoTime();
+			record("stream", Files.size(streamFile), g, processed - start, countLines(Paths.get(outputs[0])));
+		} finally {
+			PaymentData.delete(outputDir);
+		}
+	}
+
+	private void record(String stage, long inputBytes, Graph g, long nanos, long items) throws IOException {
+		double seconds = nanos / 1e9;
+		double inputMegabytes = inputBytes / (1024.0 * 1024.0);
+		Runtime runtime = Runtime.getRuntime();
+		String row = String.format("%s\t%s\t%d\t%s\t%.1f\t%d\t%d\t%.3f\t%d\t%.0f\t%.1f\t%d\t%d",
+				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()), label, threads, stage, inputMegabytes,
+				g.nodeCount(), g.edgeCount(), seconds, items, items / seconds, inputMegabytes / seconds,
+				peakResidentMegabytes(), (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+		System.out.println(row);
+
+		boolean newFile = !Files.exists(results);
+		try (BufferedWriter writer = Files.newBufferedWriter(results, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			if (newFile) {
+				writer.write(COLUMNS);
+				writer.newLine();
+			}
+			writer.write(row);
+			writer.newLine();
+		}
+	}
+
+	private static long countLines(Path file) throws IOException {
+		long lines = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			while (reader.readLine() != null) {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Resets the peak resident memory of the process to its current resident memory, where Linux allows it.
+	 */
+	private static void resetPeakMemory() {
+		try {
+			Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+		} catch (IOException | RuntimeException e) {
+			// Not Linux, or not allowed: the peak covers the whole run
+		}
+	}
+
+	/**
+	 * Returns the peak resident memory of the process in megabytes, or -1 if it cannot be read.
+	 */
+	private static long peakResidentMegabytes() {
+		try {
+			List<String> status = Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII);
+			for (String line : status) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) >> 10;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Not Linux
+		}
+		return -1;
+	}
+}
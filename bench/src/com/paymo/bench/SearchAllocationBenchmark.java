@@ -0,0 +1,83 @@
+package com.paymo.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.paymo.Graph;
+
+/**
+ * SearchAllocationBenchmark measures the time and the heap allocated per Graph.separation query
+ * on a generated power-law graph. Once warmed up, the search should report 0 bytes per query.
+ * It also reports the median and p99 latency of one query, which hub accounts used to dominate.
+ *
+ * Usage (from the project root):
+ *   javac -d classes $(find src -name '*.java') bench/src/com/paymo/bench/SearchAllocationBenchmark.java
+ *   java -cp classes com.paymo.bench.SearchAllocationBenchmark [nodes] [edges] [queries] [two-hop cap]
+ * With a two-hop cap, the graph's neighborhood index is enabled before the queries.
+ *
+ * @author rena
+ */
+public class SearchAllocationBenchmark {
+
+	public static void main(String[] args) {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int edges = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+		Random random = new Random(42);
+		Graph g = new Graph();
+		for (int i = 0; i < edges; i++) {
+			int id1 = random.nextInt(nodes);
+			int id2 = (int) (nodes * Math.pow(random.nextDouble(), 3)); // skew towards a few hubs
+			if (!g.containsNode(id1)) {
+				g.addNode(id1);
+			}
+			if (!g.containsNode(id2)) {
+				g.addNode(id2);
+			}
+			g.addEdge(id1, id2);
+		}
+
+		if (args.length > 3) {
+			g.enableNeighborhoodIndex(Integer.parseInt(args[3]), Long.MAX_VALUE);
+			System.out.printf("neighborhood index: %d of %d nodes%n", g.neighborhoodIndexedNodes(), g.nodeCount());
+		}
+
+		int[] starts = new int[queries];
+		int[] ends = new int[queries];
+		for (int i = 0; i < queries; i++) {
+			starts[i] = random.nextInt(nodes);
+			ends[i] = random.nextInt(nodes);
+		}
+
+		long[] latencies = new long[queries];
+		run(g, starts, ends, latencies); // warm up the JIT and the search buffers
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+		long timeBefore = System.nanoTime();
+		int found = run(g, starts, ends, latencies);
+		long elapsed = System.nanoTime() - timeBefore;
+		long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+		System.out.printf("graph: %d nodes, %d edges, %d bytes%n", g.nodeCount(), g.edgeCount(), g.memoryFootprint());
+		System.out.printf("%d queries, %d within degree 4: %.1f ns/query, %.2f bytes allocated/query%n",
+				queries, found, (double) elapsed / queries, (double) allocated / queries);
+		Arrays.sort(latencies);
+		System.out.printf("latency: p50 %d ns, p99 %d ns, max %d ns%n",
+				latencies[queries / 2], latencies[(int) (queries * 0.99)], latencies[queries - 1]);
+	}
+
+	private static int run(Graph g, int[] starts, int[] ends, long[] latencies) {
+		int found = 0;
+		for (int i = 0; i < starts.length; i++) {
+			long start = System.nanoTime();
+			if (g.separation(starts[i], ends[i], 4) != Graph.NOT_CONNECTED) {
+				found++;
+			}
+			latencies[i] = System.nanoTime() - start;
+		}
+		return found;
+	}
+}
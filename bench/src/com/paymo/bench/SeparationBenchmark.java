@@ -0,0 +1,63 @@
+package com.paymo.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.paymo.Graph;
+
+/**
+ * SeparationBenchmark measures one Graph.BFS query at degrees 1, 2 and 4 on the batch graph of each shape,
+ * with its neighbor lists as int arrays or compressed (Graph.compress).
+ * The queries are later payments of the same shape, cycled through in a fixed order.
+ *
+ * @author rena
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeparationBenchmark {
+	private static final int QUERIES = 1 << 14;
+
+	@Param({"small", "medium", "hubs"})
+	public String shape;
+
+	@Param({"1", "2", "4"})
+	public int degree;
+
+	@Param({"lists", "compressed"})
+	public String layout;
+
+	private Graph graph;
+	private int[] queries;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		PaymentData data = PaymentData.shape(shape);
+		graph = PaymentData.graph(data.batch());
+		if (layout.equals("compressed")) {
+			graph.compress();
+		}
+		queries = data.stream(QUERIES);
+	}
+
+	@Benchmark
+	public boolean bfs() {
+		int i = 2 * (next++ & (QUERIES - 1));
+		return graph.BFS(queries[i], queries[i + 1], degree);
+	}
+}
@@ -0,0 +1,136 @@
+package com.paymo.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ServerLoadTest sends the payments of a stream file to a running VerificationServer over several TCP
+ * connections and reports the throughput and the latency of the answers.
+ *
+ * The payments are dealt round robin to the connections. Each connection pipelines them depth at a time:
+ * it writes depth requests, then reads their depth answers, and the latency of each request is the time from
+ * writing its group to reading its answer. Lines that are not payments are answered with an error and counted
+ * like the others; blank lines, which get no answer, are not sent.
+ *
+ * Usage:
+ *   java -cp target/benchmarks.jar com.paymo.bench.ServerLoadTest [host:]port stream_file [connections] [depth]
+ *
+ * @author rena
+ */
+public class ServerLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ServerLoadTest [host:]port stream_file [connections] [depth]");
+			return;
+		}
+		int colon = args[0].lastIndexOf(':');
+		final InetAddress host = colon < 0 ? InetAddress.getLoopbackAddress() : InetAddress.getByName(args[0].substring(0, colon));
+		final int port = Integer.parseInt(args[0].substring(colon + 1));
+		final List<String> payments = new ArrayList<>();
+		for (String line : Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+			if (!line.trim().isEmpty()) { // blank lines are not answered
+				payments.add(line);
+			}
+		}
+		payments.remove(0); // the header
+		final int connections = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		final int depth = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+		final long[][] latencies = new long[connections][];
+		final Exception[] failures = new Exception[connections];
+		Thread[] clients = new Thread[connections];
+		long start = System.nanoTime();
+		for (int c = 0; c < connections; c++) {
+			final int client = c;
+			clients[c] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						latencies[client] = send(host, port, payments, client, connections, depth);
+					} catch (IOException e) {
+						failures[client] = e;
+					}
+				}
+			});
+			clients[c].start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (Exception failure : failures) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		int total = 0;
+		for (long[] clientLatencies : latencies) {
+			total += clientLatencies.length;
+		}
+		long[] all = new long[total];
+		int offset = 0;
+		for (long[] clientLatencies : latencies) {
+			System.arraycopy(clientLatencies, 0, all, offset, clientLatencies.length);
+			offset += clientLatencies.length;
+		}
+		Arrays.sort(all);
+		System.out.printf("%d requests on %d connections, depth %d: %.0f requests/s, latency ms p50 %.3f p99 %.3f p99.9 %.3f max %.3f%n",
+				total, connections, depth, total / seconds, percentile(all, 0.5), percentile(all, 0.99),
+				percentile(all, 0.999), percentile(all, 1.0));
+	}
+
+	/**
+	 * Sends the payments client, client + connections, ... on one connection, returning their latencies in ns.
+	 */
+	private static long[] send(InetAddress host, int port, List<String> payments, int client, int connections, int depth)
+			throws IOException {
+		int count = (payments.size() - client + connections - 1) / connections;
+		long[] latencies = new long[Math.max(0, count)];
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			StringBuilder group = new StringBuilder();
+			for (int sent = 0; sent < count; ) {
+				int size = Math.min(depth, count - sent);
+				group.setLength(0);
+				for (int i = 0; i < size; i++) {
+					group.append(payments.get(client + (sent + i) * connections)).append('\n');
+				}
+				long written = System.nanoTime();
+				out.write(group.toString().getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				for (int i = 0; i < size; i++) {
+					if (in.readLine() == null) {
+						throw new IOException("Server closed the connection");
+					}
+					latencies[sent + i] = System.nanoTime() - written;
+				}
+				sent += size;
+			}
+			out.write("quit\n".getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+		}
+		return latencies;
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+}
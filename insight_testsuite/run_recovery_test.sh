@@ -0,0 +1,109 @@
+#!/bin/bash
+#
+# Kills VerifyTransaction with --log-dir (SIGKILL, nothing flushed or closed) at growing shares of its output,
+# tears the end of the newest log segment and of an output file as a crash in the middle of a write would,
+# and runs it again until it ends. Its output files must then be the same as those of a run without a log.
+#
+# Usage: run_recovery_test.sh [kills] [checkpoint_edges] [options...]
+# where the options, such as --off-heap or --threads=4, are passed to every run.
+
+declare -r color_start="\033["
+declare -r color_red="${color_start}0;31m"
+declare -r color_green="${color_start}0;32m"
+declare -r color_norm="${color_start}0m"
+
+GRADER_ROOT=$(cd $(dirname ${BASH_SOURCE}) && pwd)
+PROJECT_PATH=${GRADER_ROOT}/..
+
+KILLS=${1:-5}
+CHECKPOINT_EDGES=${2:-20000}
+shift $(($# < 2 ? $# : 2))
+OPTIONS="$@"
+
+WORK_PATH=${GRADER_ROOT}/temp_recovery
+
+# batch and stream of random payments between 20000 accounts, the same on every run
+function generate_input {
+  mkdir -p ${WORK_PATH}/paymo_input
+  awk 'BEGIN {
+    srand(42)
+    print "time, id1, id2, amount, message" > "'${WORK_PATH}'/paymo_input/batch_payment.txt"
+    for (i = 0; i < 100000; i++) {
+      printf "2016-11-02 09:49:04, %d, %d, 10.00, rent\n", int(rand() * 20000), int(rand() * 20000) > "'${WORK_PATH}'/paymo_input/batch_payment.txt"
+    }
+    print "time, id1, id2, amount, message" > "'${WORK_PATH}'/paymo_input/stream_payment.txt"
+    for (i = 0; i < 200000; i++) {
+      printf "2016-11-02 09:49:04, %d, %d, 10.00, rent\n", int(rand() * 20000), int(rand() * 20000) > "'${WORK_PATH}'/paymo_input/stream_payment.txt"
+    }
+  }'
+}
+
+# verify the stream into output files name1.txt, name2.txt and name3.txt, with the given options; java
+# replaces the shell running the function, so that a kill reaches it when the function runs in the background
+function verify {
+  local name=$1
+  shift
+  exec java -classpath ${WORK_PATH}/classes com.paymo.VerifyTransaction ${OPTIONS} "$@" \
+    ${WORK_PATH}/paymo_input/batch_payment.txt ${WORK_PATH}/paymo_input/stream_payment.txt \
+    ${WORK_PATH}/${name}1.txt ${WORK_PATH}/${name}2.txt ${WORK_PATH}/${name}3.txt 2>> ${WORK_PATH}/${name}.log
+}
+
+function file_size {
+  if [ -f $1 ]; then
+    stat -c %s $1
+  else
+    echo 0
+  fi
+}
+
+# append a frame header announcing 64 records, with 5 after it, to the newest log segment, and a line cut
+# short to one output file
+function tear {
+  local round=$1
+  local newest=$(ls ${WORK_PATH}/log 2>/dev/null | grep '^edges\.[0-9]*\.log$' | sort -t. -k2 -n | tail -1)
+  if [ -n "${newest}" ]; then
+    printf '\100\000\000\000' >> ${WORK_PATH}/log/${newest}
+    head -c 60 /dev/zero | tr '\000' '\252' >> ${WORK_PATH}/log/${newest}
+  fi
+  printf 'trus' >> ${WORK_PATH}/logged$((round % 3 + 1)).txt
+}
+
+rm -rf ${WORK_PATH}
+mkdir -p ${WORK_PATH}/classes
+javac -d ${WORK_PATH}/classes -sourcepath ${PROJECT_PATH}/src ${PROJECT_PATH}/src/com/paymo/VerifyTransaction.java || exit 1
+generate_input
+
+(verify reference)
+REFERENCE_BYTES=$(file_size ${WORK_PATH}/reference1.txt)
+
+for round in $(seq 1 ${KILLS}); do
+  kill_bytes=$((REFERENCE_BYTES * round / (KILLS + 1)))
+  verify logged --log-dir=${WORK_PATH}/log --checkpoint-edges=${CHECKPOINT_EDGES} &
+  pid=$!
+  while kill -0 ${pid} 2>/dev/null && [ $(file_size ${WORK_PATH}/logged1.txt) -le ${kill_bytes} ]; do
+    sleep 0.01
+  done
+  if kill -9 ${pid} 2>/dev/null; then
+    wait ${pid} 2>/dev/null
+    echo "round ${round}: killed at $(file_size ${WORK_PATH}/logged1.txt) of ${REFERENCE_BYTES} output bytes"
+    tear ${round}
+  else
+    wait ${pid}
+    echo "round ${round}: ended with status $? before the kill"
+  fi
+done
+(verify logged --log-dir=${WORK_PATH}/log --checkpoint-edges=${CHECKPOINT_EDGES})
+
+PASS=1
+for i in 1 2 3; do
+  if ! cmp -s ${WORK_PATH}/reference${i}.txt ${WORK_PATH}/logged${i}.txt; then
+    echo -e "[${color_red}FAIL${color_norm}]: recovery (output${i}.txt)"
+    PASS=0
+  fi
+done
+if [ ${PASS} -eq 1 ]; then
+  echo -e "[${color_green}PASS${color_norm}]: recovery after ${KILLS} kills"
+  rm -rf ${WORK_PATH}
+else
+  exit 1
+fi
@@ -53,6 +53,20 @@ function setup_testing_input_output {
   rm -r ${TEST_OUTPUT_PATH}/paymo_output/*
   cp -r ${GRADER_ROOT}/tests/${test_folder}/paymo_input/batch_payment.txt ${TEST_OUTPUT_PATH}/paymo_input/batch_payment.txt
   cp -r ${GRADER_ROOT}/tests/${test_folder}/paymo_input/stream_payment.txt ${TEST_OUTPUT_PATH}/paymo_input/stream_payment.txt
+  if [ -f ${GRADER_ROOT}/tests/${test_folder}/run_test.sh ]; then
+    cp ${GRADER_ROOT}/tests/${test_folder}/run_test.sh ${TEST_OUTPUT_PATH}/run_test.sh
+  fi
+}
+
+# run the test: its run_test.sh if it has one, else run.sh with the options in its flags file, if any
+function run_test {
+  if [ -f run_test.sh ]; then
+    bash run_test.sh 2>&1
+  elif [ -f ../tests/${test_folder}/flags ]; then
+    bash run.sh $(cat ../tests/${test_folder}/flags) 2>&1
+  else
+    bash run.sh 2>&1
+  fi
 }
 
 function compare_outputs {
@@ -102,7 +116,7 @@ function run_all_tests {
     setup_testing_input_output
 
     cd ${GRADER_ROOT}/temp
-    bash run.sh 2>&1
+    run_test
     cd ../
 
     compare_outputs
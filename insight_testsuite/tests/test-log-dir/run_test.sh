@@ -0,0 +1,10 @@
+#!/bin/bash
+# Verifies the stream with an edge log checkpointed every few edges, keeps only the first answers as if the
+# run had stopped there, and runs again: the graph is recovered from the log and the stream resumes after
+# the answers kept
+bash run.sh --log-dir=./log --checkpoint-edges=4
+for output in ./paymo_output/*; do
+  head -n 6 ${output} > ${output}.kept
+  mv ${output}.kept ${output}
+done
+bash run.sh --log-dir=./log --checkpoint-edges=4
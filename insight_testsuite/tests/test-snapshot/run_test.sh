@@ -0,0 +1,7 @@
+#!/bin/bash
+# Saves the batch graph as a snapshot while verifying the stream, then verifies it again with the snapshot
+# as the batch file
+bash run.sh --write-snapshot=./batch.snap
+rm ./paymo_output/*
+cp ./batch.snap ./paymo_input/batch_payment.txt
+bash run.sh --batch-format=snapshot
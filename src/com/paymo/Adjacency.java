@@ -0,0 +1,58 @@
+package com.paymo;
+
+/**
+ * Adjacency is the read side of the neighbor lists of a graph whose nodes are numbered densely
+ * 0..size()-1, as searched by BidirectionalSearch. IntAdjacency holds the lists of Graph, and
+ * ConcurrentAdjacency those of ConcurrentGraph, which are read while edges are being added.
+ *
+ * Lists only grow. For a list that grows concurrently, neighbors(node, scratch) returns at least as many
+ * entries as a degree(node) read before it, so a reader takes the degree first and then the list.
+ *
+ * @author rena
+ */
+interface Adjacency {
+
+    /**
+     * Returns the number of nodes.
+     * @return
+     */
+    int size();
+
+    /**
+     * Returns the number of neighbors of node.
+     * @param node
+     * @return
+     */
+    int degree(int node);
+
+    /**
+     * Returns an array whose first degree(node) entries are the neighbors of node, either the backing array
+     * of the list or scratch filled with it. scratch must hold at least snapshotMaxDegree() ints; callers
+     * must not modify the array.
+     * @param node
+     * @param scratch
+     * @return
+     */
+    int[] neighbors(int node, int[] scratch);
+
+    /**
+     * Returns the largest list that neighbors(node, scratch) copies into scratch, 0 if none is copied.
+     * @return
+     */
+    int snapshotMaxDegree();
+
+    /**
+     * Returns true if neighbor is in the list of node.
+     * @param node
+     * @param neighbor
+     * @return
+     */
+    boolean hasNeighbor(int node, int neighbor);
+
+    /**
+     * Returns true if hasNeighbor on node does not scan its list.
+     * @param node
+     * @return
+     */
+    boolean isHub(int node);
+}
@@ -0,0 +1,53 @@
+package com.paymo;
+
+/**
+ * BaseLists holds the immutable, sorted neighbor lists of nodes 0..size()-1, below the growable lists of an
+ * IntAdjacency: the int tables of a mapped snapshot (SnapshotLists) or a compressed copy of them
+ * (CompressedLists).
+ *
+ * @author rena
+ */
+interface BaseLists {
+
+    /**
+     * Returns the number of nodes.
+     * @return
+     */
+    int size();
+
+    /**
+     * Returns the largest degree of the nodes.
+     * @return
+     */
+    int maxDegree();
+
+    /**
+     * Returns the number of neighbors of node.
+     * @param node
+     * @return
+     */
+    int degree(int node);
+
+    /**
+     * Writes the neighbors of node in increasing order to the start of into, which must hold at least
+     * degree(node) ints, and returns their number.
+     * @param node
+     * @param into
+     * @return
+     */
+    int read(int node, int[] into);
+
+    /**
+     * Returns true if neighbor is in the list of node, without reading all of it when the list is long.
+     * @param node
+     * @param neighbor
+     * @return
+     */
+    boolean contains(int node, int neighbor);
+
+    /**
+     * Returns the approximate number of heap bytes used by the lists, 0 for lists mapped from a file.
+     * @return
+     */
+    long memoryFootprint();
+}
@@ -0,0 +1,436 @@
+package com.paymo;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * BidirectionalSearch finds the degree of separation of two nodes by searching breadth-first from both
+ * of them, one depth at a time, until the two searches meet or the requested depth is used up.
+ *
+ * Each thread has its own instance, or borrows one from a Pool, and every buffer it uses is kept from one
+ * search to the next:
+ * the frontiers are int ring buffers, and visited nodes are marked in one int[] with the number of the
+ * current search. Starting a new search only bumps that number, so nothing is cleared or allocated
+ * per query once the buffers have grown to the size of the graph.
+ *
+ * Instead of alternating sides, each depth is taken from the side whose frontier has the smaller summed
+ * degree, so a query that touches a hub grows the cheap side first. The last depth does not need to queue
+ * anything, only to find one edge between the two frontiers; there a hub is checked by looking up the other
+ * side's frontier nodes in its neighbor set rather than by scanning all its neighbors.
+ *
+ * The adjacency may be one that grows while it is searched (ConcurrentAdjacency): every edge added before
+ * the search began is seen, edges added during it may or may not be.
+ *
+ * Each instance also counts the nodes its searches reached, and the neighbor entries of the nodes they
+ * expanded plus the lookups in hub sets, as running totals that callers sample around a search to get its cost.
+ * A search given a SearchBudget compares them against its limits before each node it expands, and stops
+ * with Graph.UNDETERMINED once any limit is used up.
+ *
+ * @author rena
+ */
+final class BidirectionalSearch {
+    private static final ThreadLocal<BidirectionalSearch> PER_THREAD = new ThreadLocal<BidirectionalSearch>() {
+        @Override
+        protected BidirectionalSearch initialValue() {
+            return new BidirectionalSearch();
+        }
+    };
+
+    // marks[node] == startMark: reached from the start node, == endMark: reached from the end node
+    private int[] marks = new int[0];
+    private int startMark;
+    private int endMark;
+    // Holds the neighbors of a node whose list is read from a snapshot
+    private int[] scratch = new int[0];
+    // Running totals of the searches of this thread
+    private long nodesVisited;
+    private long edgesScanned;
+    // Limits of the current search on the running totals, and its deadline (0 if none)
+    private long nodesLimit;
+    private long edgesLimit;
+    private long deadline;
+    private long nextClockCheck;
+    // Set once the current search has used up its budget
+    private boolean exhausted;
+    private final Frontier startFrontier = new Frontier();
+    private final Frontier endFrontier = new Frontier();
+
+    private BidirectionalSearch() {
+    }
+
+    /**
+     * Returns the search of the calling thread: the one it borrowed from a Pool, if any, else its own.
+     * @return
+     */
+    static BidirectionalSearch forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    /**
+     * Pool lends a fixed number of searches to threads that are too many to each keep their own, such as
+     * the one thread per connection of VerificationServer: the marks of a search grow to the size of the
+     * graph, so the memory of the searches is bounded by the pool rather than by the number of threads.
+     * While a thread holds a search, forCurrentThread returns it; a thread that asks for one while all are
+     * lent waits for one to be given back.
+     */
+    static final class Pool {
+        private final BlockingQueue<BidirectionalSearch> idle;
+
+        /**
+         * Constructor- a pool of size searches
+         * @param size
+         */
+        Pool(int size) {
+            idle = new ArrayBlockingQueue<BidirectionalSearch>(size);
+            for (int i = 0; i < size; i++) {
+                idle.add(new BidirectionalSearch());
+            }
+        }
+
+        /**
+         * Lends a search to the calling thread until it calls giveBack, waiting for one if all are lent.
+         */
+        void lend() {
+            boolean interrupted = false;
+            BidirectionalSearch search;
+            while (true) {
+                try {
+                    search = idle.take();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            PER_THREAD.set(search);
+        }
+
+        /**
+         * Gives back the search lent to the calling thread.
+         */
+        void giveBack() {
+            BidirectionalSearch search = PER_THREAD.get();
+            PER_THREAD.remove();
+            idle.add(search);
+        }
+    }
+
+    /**
+     * Returns the number of nodes reached by the searches of this instance so far, both ends included.
+     * @return
+     */
+    long nodesVisited() {
+        return nodesVisited;
+    }
+
+    /**
+     * Returns the number of neighbor entries scanned or looked up by the searches of this instance so far.
+     * @return
+     */
+    long edgesScanned() {
+        return edgesScanned;
+    }
+
+    /**
+     * Returns the length of the shortest path between the nodes with indexes start and end in adjacency,
+     * if it is at most maxDegree, else Graph.NOT_CONNECTED.
+     * @param adjacency
+     * @param start
+     * @param end
+     * @param maxDegree
+     * @return
+     */
+    int separation(Adjacency adjacency, int start, int end, int maxDegree) {
+        return separation(adjacency, start, end, maxDegree, null);
+    }
+
+    /**
+     * Same as separation(adjacency, start, end, maxDegree), but returns Graph.UNDETERMINED if the search
+     * uses up budget before it knows the answer. A null budget is unlimited.
+     * @param adjacency
+     * @param start
+     * @param end
+     * @param maxDegree
+     * @param budget
+     * @return
+     */
+    int separation(Adjacency adjacency, int start, int end, int maxDegree, SearchBudget budget) {
+        if (maxDegree < 0) {
+            return Graph.NOT_CONNECTED;
+        }
+        if (start == end) {
+            return 0;
+        }
+
+        begin(adjacency);
+        limit(budget);
+        nodesVisited += 2;
+        marks[start] = startMark;
+        marks[end] = endMark;
+        startFrontier.reset(start, adjacency.degree(start));
+        endFrontier.reset(end, adjacency.degree(end));
+
+        //Both searches have covered every path shorter than curDepth, so the first overlap found
+        //while going one depth further is a shortest path, whichever side that depth is taken from
+        int curDepth = 0;
+        while (curDepth < maxDegree && !startFrontier.isEmpty() && !endFrontier.isEmpty()) {
+            if (curDepth + 1 == maxDegree) {
+                if (lastLevelMeets(adjacency)) {
+                    return maxDegree;
+                }
+                return exhausted ? Graph.UNDETERMINED : Graph.NOT_CONNECTED;
+            }
+
+            //Do one level BFS from the side with fewer edges to scan
+            boolean found = startFrontier.cost() <= endFrontier.cost()
+                    ? expand(adjacency, startFrontier, startMark, endMark)
+                    : expand(adjacency, endFrontier, endMark, startMark);
+            if (found) {
+                return curDepth + 1;
+            }
+            if (exhausted) {
+                return Graph.UNDETERMINED;
+            }
+            curDepth++;
+        }
+        return Graph.NOT_CONNECTED;
+    }
+
+    /**
+     * Traverse one more degree away from the nodes of the current level in frontier, queueing the
+     * nodes not reached before as the next level.
+     * Returns true if found a node already reached by the search from the other side, false if not or if
+     * the budget ran out.
+     * @param adjacency
+     * @param frontier
+     * @param thisMark
+     * @param otherMark
+     * @return
+     */
+    private boolean expand(Adjacency adjacency, Frontier frontier, int thisMark, int otherMark) {
+        int[] marks = this.marks;
+        int reached = 0;
+        for (int remaining = frontier.startLevel(); remaining > 0; remaining--) {
+            int node = frontier.poll();
+            int degree = adjacency.degree(node);
+            if (overBudget(reached, degree)) {
+                nodesVisited += reached;
+                return false;
+            }
+            int[] friends = adjacency.neighbors(node, scratch);
+            edgesScanned += degree;
+            for (int i = 0; i < degree; i++) {
+                int friend = friends[i];
+                if (friend >= marks.length) {
+                    continue; // added after the search began, see begin
+                }
+                int mark = marks[friend];
+                //If true, the two searches overlap and there is a path between the start and end nodes
+                if (mark == otherMark) {
+                    nodesVisited += reached;
+                    return true;
+                }
+                if (mark != thisMark) {
+                    marks[friend] = thisMark;
+                    frontier.add(friend, adjacency.degree(friend));
+                    reached++;
+                }
+            }
+        }
+        nodesVisited += reached;
+        return false;
+    }
+
+    /**
+     * Returns true if there is an edge between the current levels of the two frontiers, ie. if the searches
+     * meet one depth further. The check runs from the side where it is cheaper: a hub costs as many lookups
+     * in its neighbor set as there are nodes in the other frontier, any other node costs its degree.
+     * Only the other side's current level needs to be looked up, since a node reached earlier by the other
+     * side and adjacent to this frontier would have made the searches meet before.
+     * @param adjacency
+     * @return
+     */
+    private boolean lastLevelMeets(Adjacency adjacency) {
+        if (lastLevelCost(adjacency, startFrontier, endFrontier) <= lastLevelCost(adjacency, endFrontier, startFrontier)) {
+            return lastLevelMeets(adjacency, startFrontier, endFrontier, endMark);
+        }
+        return lastLevelMeets(adjacency, endFrontier, startFrontier, startMark);
+    }
+
+    private static long lastLevelCost(Adjacency adjacency, Frontier frontier, Frontier other) {
+        long cost = 0;
+        for (int i = 0; i < frontier.size(); i++) {
+            int node = frontier.get(i);
+            int degree = adjacency.degree(node);
+            cost += adjacency.isHub(node) ? Math.min(degree, other.size()) : degree;
+        }
+        return cost;
+    }
+
+    private boolean lastLevelMeets(Adjacency adjacency, Frontier frontier, Frontier other, int otherMark) {
+        int[] marks = this.marks;
+        for (int i = 0; i < frontier.size(); i++) {
+            int node = frontier.get(i);
+            int degree = adjacency.degree(node);
+            boolean lookup = adjacency.isHub(node) && degree > other.size();
+            if (overBudget(0, lookup ? other.size() : degree)) {
+                return false;
+            }
+            if (lookup) {
+                edgesScanned += other.size();
+                for (int j = 0; j < other.size(); j++) {
+                    if (adjacency.hasNeighbor(node, other.get(j))) {
+                        return true;
+                    }
+                }
+            } else {
+                int[] friends = adjacency.neighbors(node, scratch);
+                edgesScanned += degree;
+                for (int j = 0; j < degree; j++) {
+                    if (friends[j] < marks.length && marks[friends[j]] == otherMark) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the limits of a search about to start on the running totals, none if budget is null.
+     * @param budget
+     */
+    private void limit(SearchBudget budget) {
+        nodesLimit = budget == null || budget.maxNodesVisited() == 0 ? Long.MAX_VALUE
+                : nodesVisited + budget.maxNodesVisited();
+        edgesLimit = budget == null || budget.maxEdgesScanned() == 0 ? Long.MAX_VALUE
+                : edgesScanned + budget.maxEdgesScanned();
+        deadline = budget == null || budget.maxNanos() == 0 ? 0 : System.nanoTime() + budget.maxNanos();
+        nextClockCheck = edgesScanned + SearchBudget.CLOCK_PERIOD;
+        exhausted = false;
+    }
+
+    /**
+     * Returns true, and marks the search exhausted, if the current search cannot scan entries more neighbor
+     * entries within its limits, counting reached nodes it reached that are not yet in nodesVisited.
+     * @param reached
+     * @param entries
+     * @return
+     */
+    private boolean overBudget(int reached, int entries) {
+        if (nodesVisited + reached <= nodesLimit && edgesScanned + entries <= edgesLimit) {
+            if (deadline == 0 || edgesScanned < nextClockCheck) {
+                return false;
+            }
+            nextClockCheck = edgesScanned + SearchBudget.CLOCK_PERIOD;
+            if (System.nanoTime() - deadline < 0) {
+                return false;
+            }
+        }
+        exhausted = true;
+        return true;
+    }
+
+    /**
+     * Picks fresh marks for a new search and makes room for the nodes of adjacency. Nodes added to an
+     * adjacency that grows during the search may lie beyond the marks; the search passes over them, as all
+     * their edges were added after it began.
+     * @param adjacency
+     */
+    private void begin(Adjacency adjacency) {
+        int nodeCount = adjacency.size();
+        if (scratch.length < adjacency.snapshotMaxDegree()) {
+            scratch = new int[adjacency.snapshotMaxDegree()];
+        }
+        if (marks.length < nodeCount) {
+            marks = Arrays.copyOf(marks, Math.max(nodeCount, marks.length + (marks.length >> 1)));
+        }
+        if (endMark >= Integer.MAX_VALUE - 2) {
+            // Marks are about to wrap around, forget every old search once
+            Arrays.fill(marks, 0);
+            endMark = 0;
+        }
+        startMark = endMark + 1;
+        endMark = endMark + 2;
+    }
+
+    /**
+     * Frontier is a growable ring buffer of node indexes that keeps track of where the current level ends,
+     * and of the summed degree of the nodes queued for the next level.
+     */
+    private static final class Frontier {
+        private int[] buffer = new int[64];
+        private int head;
+        private int size;
+        private long cost;
+
+        void reset(int node, int degree) {
+            head = 0;
+            size = 1;
+            buffer[0] = node;
+            cost = degree;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Returns the number of nodes queued so far, which make up the level about to be expanded.
+         * @return
+         */
+        int startLevel() {
+            cost = 0;
+            return size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Returns the summed degree of the queued nodes.
+         * @return
+         */
+        long cost() {
+            return cost;
+        }
+
+        /**
+         * Returns the i-th queued node, without removing it.
+         * @param i
+         * @return
+         */
+        int get(int i) {
+            return buffer[(head + i) & (buffer.length - 1)];
+        }
+
+        int poll() {
+            int node = buffer[head];
+            head = (head + 1) & (buffer.length - 1);
+            size--;
+            return node;
+        }
+
+        void add(int node, int degree) {
+            if (size == buffer.length) {
+                grow();
+            }
+            buffer[(head + size) & (buffer.length - 1)] = node;
+            size++;
+            cost += degree;
+        }
+
+        private void grow() {
+            int[] larger = new int[buffer.length << 1];
+            int firstPart = buffer.length - head;
+            System.arraycopy(buffer, head, larger, 0, firstPart);
+            System.arraycopy(buffer, 0, larger, firstPart, head);
+            buffer = larger;
+            head = 0;
+        }
+    }
+}
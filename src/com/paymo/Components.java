@@ -0,0 +1,379 @@
+package com.paymo;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Components keeps the connected components of a graph whose nodes are numbered densely 0..size()-1, as a
+ * union-find forest, so that a pair of nodes in different components is known not to be connected without
+ * a search.
+ *
+ * Trees are joined by rank, which keeps them O(log n) deep, and union halves the paths it walks (each node
+ * on the way is pointed at its grandparent). connected only reads the forest, so searches may call it from
+ * several threads at once while no edge is added.
+ * The forest only merges: a graph that loses edges builds a new one.
+ *
+ * The number of components and how many there are of each size (in powers of two) are kept up to date as
+ * components merge, for capacity planning.
+ *
+ * The components of a graph opened from a snapshot start as the two tables it saved, which are read where
+ * they are mapped: the root of each node of the snapshot, and the size of each root's component. Only the
+ * roots whose components merge since get an entry of their own, so opening reads no table, and a root is
+ * checked when it is looked up.
+ *
+ * @author rena
+ */
+final class Components {
+    // Number of size classes: class i holds the components of 2^i to 2^(i+1)-1 nodes
+    static final int SIZE_CLASSES = 32;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Nodes 0..baseSize-1 of a snapshot: the root of each node, and the size of the component of each root
+    private IntBuffer baseRoots;
+    private IntBuffer baseSizes;
+    private int baseSize;
+    // Parent, rank and size of the base roots whose component merged since; the others are as saved
+    private IntIntHashMap baseParents;
+    private IntIntHashMap baseRanks;
+    private IntIntHashMap mergedBaseSizes;
+    // Parent, rank and number of nodes of the component of nodes baseSize..size-1, in slot node - baseSize
+    private int[] parents;
+    private byte[] ranks;
+    private int[] sizes;
+    private int size;
+    private int count;
+    private int largest;
+    private final long[] sizeClasses = new long[SIZE_CLASSES];
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Default constructor, no nodes
+     */
+    Components() {
+        this.parents = new int[INITIAL_CAPACITY];
+        this.ranks = new byte[INITIAL_CAPACITY];
+        this.sizes = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Constructor- deep copy of otherComponents
+     * @param otherComponents
+     */
+    Components(Components otherComponents) {
+        this.baseRoots = otherComponents.baseRoots;
+        this.baseSizes = otherComponents.baseSizes;
+        this.baseSize = otherComponents.baseSize;
+        if (otherComponents.baseParents != null) {
+            this.baseParents = new IntIntHashMap(otherComponents.baseParents);
+            this.baseRanks = new IntIntHashMap(otherComponents.baseRanks);
+            this.mergedBaseSizes = new IntIntHashMap(otherComponents.mergedBaseSizes);
+        }
+        int capacity = Math.max(INITIAL_CAPACITY, otherComponents.size - otherComponents.baseSize);
+        this.parents = Arrays.copyOf(otherComponents.parents, capacity);
+        this.ranks = Arrays.copyOf(otherComponents.ranks, capacity);
+        this.sizes = Arrays.copyOf(otherComponents.sizes, capacity);
+        this.size = otherComponents.size;
+        this.count = otherComponents.count;
+        this.largest = otherComponents.largest;
+        System.arraycopy(otherComponents.sizeClasses, 0, sizeClasses, 0, SIZE_CLASSES);
+    }
+
+    /**
+     * Returns the components of the nodes of adjacency, joined along every neighbor list.
+     * @param adjacency
+     * @return
+     */
+    static Components of(IntAdjacency adjacency) {
+        Components components = new Components();
+        int nodeCount = adjacency.size();
+        components.parents = new int[Math.max(INITIAL_CAPACITY, nodeCount)];
+        components.ranks = new byte[components.parents.length];
+        components.sizes = new int[components.parents.length];
+        for (int node = 0; node < nodeCount; node++) {
+            components.addNode();
+        }
+        int[] scratch = new int[adjacency.snapshotMaxDegree()];
+        for (int node = 0; node < nodeCount; node++) {
+            int degree = adjacency.degree(node);
+            int[] neighbors = adjacency.neighbors(node, scratch);
+            for (int i = 0; i < degree; i++) {
+                components.union(node, neighbors[i]);
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Returns the components saved in a snapshot of nodeCount nodes, which are read from the buffers as they
+     * are looked up: roots.get(node) is the root of the component of node, and sizes.get(root) the number of
+     * nodes of that component. classes are the number of components of each size class and largest the size
+     * of the largest component, as saved with them; if classes is null, both are counted from sizes.
+     * @param roots
+     * @param sizes
+     * @param nodeCount
+     * @param classes
+     * @param largest
+     * @return
+     */
+    static Components of(IntBuffer roots, IntBuffer sizes, int nodeCount, long[] classes, int largest) {
+        Components components = new Components();
+        components.baseRoots = roots;
+        components.baseSizes = sizes;
+        components.baseSize = nodeCount;
+        components.size = nodeCount;
+        components.baseParents = new IntIntHashMap();
+        components.baseRanks = new IntIntHashMap();
+        components.mergedBaseSizes = new IntIntHashMap();
+        if (classes == null) {
+            classes = new long[SIZE_CLASSES];
+            largest = 0;
+            for (int node = 0; node < nodeCount; node++) {
+                int componentSize = sizes.get(node);
+                if (componentSize > 0) {
+                    classes[sizeClass(componentSize)]++;
+                    largest = Math.max(largest, componentSize);
+                }
+            }
+        }
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            components.sizeClasses[i] = classes[i];
+            components.count += classes[i];
+        }
+        components.largest = largest;
+        return components;
+    }
+
+    /**
+     * Adds a node in a component of its own.
+     */
+    void addNode() {
+        int slot = size - baseSize;
+        if (slot == parents.length) {
+            int capacity = slot + (slot >> 1);
+            parents = Arrays.copyOf(parents, capacity);
+            ranks = Arrays.copyOf(ranks, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        parents[slot] = size;
+        sizes[slot] = 1;
+        size++;
+        count++;
+        sizeClasses[0]++;
+        largest = Math.max(largest, 1);
+    }
+
+    /**
+     * Merges the components of node1 and node2, for an edge added between them.
+     * @param node1
+     * @param node2
+     */
+    void union(int node1, int node2) {
+        int root1 = find(node1);
+        int root2 = find(node2);
+        if (root1 == root2) {
+            return;
+        }
+        int rank1 = rank(root1);
+        int rank2 = rank(root2);
+        if (rank1 < rank2) {
+            int root = root1;
+            root1 = root2;
+            root2 = root;
+        } else if (rank1 == rank2) {
+            setRank(root1, rank1 + 1);
+        }
+        setParent(root2, root1);
+        int size1 = componentSize(root1);
+        int size2 = componentSize(root2);
+        sizeClasses[sizeClass(size1)]--;
+        sizeClasses[sizeClass(size2)]--;
+        setSize(root1, size1 + size2);
+        sizeClasses[sizeClass(size1 + size2)]++;
+        largest = Math.max(largest, size1 + size2);
+        count--;
+    }
+
+    /**
+     * Returns true if node1 and node2 are in the same component. Counts the pairs that are not as rejections.
+     * @param node1
+     * @param node2
+     * @return
+     */
+    boolean connected(int node1, int node2) {
+        if (root(node1) == root(node2)) {
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    /**
+     * Returns the root of the component of node: the same node for every node of a component, until
+     * components merge.
+     * @param node
+     * @return
+     */
+    int componentOf(int node) {
+        return root(node);
+    }
+
+    /**
+     * Returns the number of nodes of the component whose root is root.
+     * @param root
+     * @return
+     */
+    int componentSize(int root) {
+        if (root >= baseSize) {
+            return sizes[root - baseSize];
+        }
+        int merged = mergedBaseSizes.get(root);
+        if (merged != IntIntHashMap.NO_VALUE) {
+            return merged;
+        }
+        int saved = baseSizes.get(root);
+        if (saved <= 0) {
+            throw corrupt(root);
+        }
+        return saved;
+    }
+
+    /**
+     * Returns the number of components.
+     * @return
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Returns the number of nodes of the largest component.
+     * @return
+     */
+    int largest() {
+        return largest;
+    }
+
+    /**
+     * Returns the number of components of each size class: entry i counts the components of 2^i to
+     * 2^(i+1)-1 nodes.
+     * @return
+     */
+    long[] sizeClasses() {
+        return sizeClasses.clone();
+    }
+
+    /**
+     * Returns the number of calls to connected that found the nodes in different components.
+     * @return
+     */
+    long rejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Adds the rejections counted by previous, the components this one replaces.
+     * @param previous
+     */
+    void addRejections(Components previous) {
+        rejections.add(previous.rejections());
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the forest.
+     * @return
+     */
+    long memoryFootprint() {
+        long bytes = 2 * MemoryEstimates.intArray(parents.length) + MemoryEstimates.byteArray(ranks.length)
+                + MemoryEstimates.longArray(SIZE_CLASSES);
+        if (baseParents != null) {
+            bytes += baseParents.memoryFootprint() + baseRanks.memoryFootprint() + mergedBaseSizes.memoryFootprint();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the root of node, pointing the nodes on the way at their grandparents.
+     */
+    private int find(int node) {
+        int parent = parent(node);
+        while (parent != node) {
+            int grandparent = parent(parent);
+            if (node >= baseSize) {
+                parents[node - baseSize] = grandparent;
+            }
+            node = grandparent;
+            parent = parent(node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the root of node without changing the forest.
+     */
+    private int root(int node) {
+        int parent = parent(node);
+        while (parent != node) {
+            node = parent;
+            parent = parent(node);
+        }
+        return node;
+    }
+
+    private int parent(int node) {
+        if (node >= baseSize) {
+            return parents[node - baseSize];
+        }
+        int root = baseRoots.get(node);
+        if (root < 0 || root >= baseSize || (root != node && baseRoots.get(root) != root)) {
+            throw corrupt(node);
+        }
+        if (root != node) {
+            return root;
+        }
+        // A saved root, which may have joined another component since
+        int parent = baseParents.get(node);
+        return parent != IntIntHashMap.NO_VALUE ? parent : node;
+    }
+
+    private void setParent(int root, int parent) {
+        if (root >= baseSize) {
+            parents[root - baseSize] = parent;
+        } else {
+            baseParents.put(root, parent);
+        }
+    }
+
+    private int rank(int root) {
+        if (root >= baseSize) {
+            return ranks[root - baseSize];
+        }
+        int rank = baseRanks.get(root);
+        // Every other node of a saved component points at its root
+        return rank != IntIntHashMap.NO_VALUE ? rank : componentSize(root) > 1 ? 1 : 0;
+    }
+
+    private void setRank(int root, int rank) {
+        if (root >= baseSize) {
+            ranks[root - baseSize] = (byte) rank;
+        } else {
+            baseRanks.put(root, rank);
+        }
+    }
+
+    private void setSize(int root, int componentSize) {
+        if (root >= baseSize) {
+            sizes[root - baseSize] = componentSize;
+        } else {
+            mergedBaseSizes.put(root, componentSize);
+        }
+    }
+
+    private static IllegalStateException corrupt(int node) {
+        return new IllegalStateException("Corrupt component table in the graph snapshot at node " + node);
+    }
+
+    private static int sizeClass(int componentSize) {
+        return 31 - Integer.numberOfLeadingZeros(componentSize);
+    }
+}
@@ -0,0 +1,297 @@
+package com.paymo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CompressedLists holds immutable sorted neighbor lists packed into byte arrays, for graphs too large to
+ * keep as int[] lists on the heap.
+ *
+ * The list of a node is its degree as a varint followed by blocks of up to BLOCK neighbors. A block is
+ *  - the gap from the first neighbor of the previous block to its own first neighbor (the first neighbor
+ *    itself for the first block), as a varint,
+ *  - a byte with the bit width w of its largest gap,
+ *  - the gaps between its consecutive neighbors, minus one, packed w bits each, little-endian, padded to a byte.
+ * Neighbors numbered close to each other thus cost a few bits each, and a block's length follows from its
+ * header, so contains skips from block to block and only unpacks the one that can hold the neighbor.
+ *
+ * The lists are cut into pages of at most PAGE_SIZE bytes, a list never spanning two, and offsets holds
+ * where each node's list starts in its page.
+ *
+ * @author rena
+ */
+final class CompressedLists implements BaseLists {
+    static final int BLOCK = 128;
+    private static final int PAGE_SIZE = 1 << 30;
+    private static final int PADDING = 4;
+
+    private final byte[][] pages;
+    // First node of each page but the first
+    private final int[] pageStarts;
+    private final int[] offsets;
+    private final int maxDegree;
+
+    private CompressedLists(byte[][] pages, int[] pageStarts, int[] offsets, int maxDegree) {
+        this.pages = pages;
+        this.pageStarts = pageStarts;
+        this.offsets = offsets;
+        this.maxDegree = maxDegree;
+    }
+
+    @Override
+    public int size() {
+        return offsets.length;
+    }
+
+    @Override
+    public int maxDegree() {
+        return maxDegree;
+    }
+
+    @Override
+    public int degree(int node) {
+        byte[] page = page(node);
+        int position = offsets[node];
+        int value = page[position];
+        return value >= 0 ? value : (int) (readVarint(page, position) >>> 32);
+    }
+
+    @Override
+    public int read(int node, int[] into) {
+        byte[] page = page(node);
+        long varint = readVarint(page, offsets[node]);
+        int degree = (int) (varint >>> 32);
+        int position = (int) varint;
+        int count = 0;
+        int first = 0;
+        while (count < degree) {
+            varint = readVarint(page, position);
+            first += (int) (varint >>> 32);
+            position = (int) varint;
+            int width = page[position++];
+            int end = Math.min(degree, count + BLOCK);
+            int value = first;
+            into[count++] = value;
+            if (width == 0) {
+                while (count < end) {
+                    into[count++] = ++value;
+                }
+                continue;
+            }
+            int next = position + packedBytes(end - count, width);
+            long mask = (1L << width) - 1;
+            long buffer = 0;
+            int bits = 0;
+            while (count < end) {
+                if (bits < width) {
+                    buffer |= (readInt(page, position) & 0xFFFFFFFFL) << bits;
+                    position += 4;
+                    bits += 32;
+                }
+                value += (int) (buffer & mask) + 1;
+                buffer >>>= width;
+                bits -= width;
+                into[count++] = value;
+            }
+            position = next;
+        }
+        return degree;
+    }
+
+    @Override
+    public boolean contains(int node, int neighbor) {
+        byte[] page = page(node);
+        long varint = readVarint(page, offsets[node]);
+        int degree = (int) (varint >>> 32);
+        if (degree == 0) {
+            return false;
+        }
+        varint = readVarint(page, (int) varint);
+        int count = 0;
+        int first = 0;
+        while (true) {
+            first += (int) (varint >>> 32);
+            int position = (int) varint;
+            int width = page[position++];
+            int length = Math.min(BLOCK, degree - count);
+            if (neighbor <= first) {
+                return neighbor == first;
+            }
+            count += length;
+            if (count < degree) {
+                // Skip to the next block if the neighbor cannot be in this one
+                varint = readVarint(page, position + packedBytes(length - 1, width));
+                if (neighbor >= first + (int) (varint >>> 32)) {
+                    continue;
+                }
+            }
+            if (width == 0) {
+                return neighbor < first + length;
+            }
+            long mask = (1L << width) - 1;
+            long buffer = 0;
+            int bits = 0;
+            int value = first;
+            for (int i = 1; i < length; i++) {
+                if (bits < width) {
+                    buffer |= (readInt(page, position) & 0xFFFFFFFFL) << bits;
+                    position += 4;
+                    bits += 32;
+                }
+                value += (int) (buffer & mask) + 1;
+                buffer >>>= width;
+                bits -= width;
+                if (value >= neighbor) {
+                    return value == neighbor;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public long memoryFootprint() {
+        long footprint = MemoryEstimates.referenceArray(pages.length) + MemoryEstimates.intArray(pageStarts.length)
+                + MemoryEstimates.intArray(offsets.length);
+        for (byte[] page : pages) {
+            footprint += MemoryEstimates.byteArray(page.length);
+        }
+        return footprint;
+    }
+
+    private byte[] page(int node) {
+        if (pageStarts.length == 0) {
+            return pages[0];
+        }
+        int page = Arrays.binarySearch(pageStarts, node);
+        return pages[page >= 0 ? page + 1 : -page - 1];
+    }
+
+    /**
+     * Returns the number of bytes of count gaps packed width bits each.
+     */
+    private static int packedBytes(int count, int width) {
+        return (int) (((long) count * width + 7) >>> 3);
+    }
+
+    /**
+     * Reads the little-endian int at position of page. The packed gaps are read 4 bytes at a time, which
+     * may go up to 3 bytes past the end of a list, so pages end with PADDING spare bytes.
+     */
+    private static int readInt(byte[] page, int position) {
+        return (page[position] & 0xFF) | (page[position + 1] & 0xFF) << 8 | (page[position + 2] & 0xFF) << 16
+                | page[position + 3] << 24;
+    }
+
+    /**
+     * Reads the varint at position of page, returning its value in the high 32 bits and the position after
+     * it in the low ones.
+     */
+    private static long readVarint(byte[] page, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return ((long) value << 32) | position;
+            }
+        }
+    }
+
+    /**
+     * Builder encodes the lists of nodes 0, 1, ... in that order.
+     */
+    static final class Builder {
+        private final List<byte[]> pages = new ArrayList<>();
+        private final List<Integer> pageStarts = new ArrayList<>();
+        private int[] offsets = new int[16];
+        private byte[] page = new byte[1024];
+        private int position;
+        private int nodeCount;
+        private int maxDegree;
+
+        /**
+         * Appends the list of the next node: the first degree entries of neighbors, which must be distinct,
+         * non-negative and in increasing order.
+         * @param neighbors
+         * @param degree
+         */
+        void add(int[] neighbors, int degree) {
+            // A varint is at most 5 bytes and a packed gap at most 4
+            long bound = 5 + (degree + BLOCK - 1) / BLOCK * (6L + 4 * BLOCK);
+            if (bound + PADDING > PAGE_SIZE) {
+                throw new IllegalArgumentException("Neighbor list too long: " + degree);
+            }
+            if (position + bound + PADDING > PAGE_SIZE && position > 0) {
+                pages.add(Arrays.copyOf(page, position + PADDING));
+                pageStarts.add(nodeCount);
+                page = new byte[1024];
+                position = 0;
+            }
+            if (position + bound + PADDING > page.length) {
+                page = Arrays.copyOf(page, (int) Math.min(PAGE_SIZE, Math.max(position + bound + PADDING, 2L * page.length)));
+            }
+            if (nodeCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, nodeCount + (nodeCount >> 1));
+            }
+            offsets[nodeCount++] = position;
+            maxDegree = Math.max(maxDegree, degree);
+
+            putVarint(degree);
+            int previousFirst = 0;
+            for (int start = 0; start < degree; start += BLOCK) {
+                int end = Math.min(degree, start + BLOCK);
+                int largestGap = 0;
+                for (int i = start + 1; i < end; i++) {
+                    int gap = neighbors[i] - neighbors[i - 1] - 1;
+                    if (gap < 0) {
+                        throw new IllegalArgumentException("Neighbors not distinct and increasing");
+                    }
+                    largestGap = Math.max(largestGap, gap);
+                }
+                int width = 32 - Integer.numberOfLeadingZeros(largestGap);
+                putVarint(neighbors[start] - previousFirst);
+                previousFirst = neighbors[start];
+                page[position++] = (byte) width;
+                long buffer = 0;
+                int bits = 0;
+                for (int i = start + 1; i < end && width > 0; i++) {
+                    buffer |= (long) (neighbors[i] - neighbors[i - 1] - 1) << bits;
+                    bits += width;
+                    while (bits >= 8) {
+                        page[position++] = (byte) buffer;
+                        buffer >>>= 8;
+                        bits -= 8;
+                    }
+                }
+                if (bits > 0) {
+                    page[position++] = (byte) buffer;
+                }
+            }
+        }
+
+        /**
+         * Returns the lists added so far.
+         * @return
+         */
+        CompressedLists build() {
+            byte[][] allPages = new byte[pages.size() + 1][];
+            pages.toArray(allPages);
+            allPages[pages.size()] = Arrays.copyOf(page, position + PADDING);
+            int[] starts = new int[pageStarts.size()];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = pageStarts.get(i);
+            }
+            return new CompressedLists(allPages, starts, Arrays.copyOf(offsets, nodeCount), maxDegree);
+        }
+
+        private void putVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                page[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            page[position++] = (byte) value;
+        }
+    }
+}
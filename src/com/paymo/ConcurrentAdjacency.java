@@ -0,0 +1,136 @@
+package com.paymo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ConcurrentAdjacency holds the neighbor lists of a graph whose nodes are numbered densely 0..size()-1,
+ * and can be read without locks while nodes and neighbors are added.
+ *
+ * Nodes live in segments of SEGMENT_SIZE, so adding nodes never copies the existing ones: the directory of
+ * segments is replaced, under the writer's lock, by a larger copy published through a volatile field, and
+ * the node count is published after the node's slots exist.
+ * Each list is an append-only int[] with its degree beside it. A neighbor is written into the array first
+ * (into a grown copy when it is full, published before the degree), and the degree is published last with a
+ * volatile write, so a reader that reads the degree and then the array sees at least that many neighbors.
+ *
+ * Writers to the same node must be serialized by the caller (ConcurrentGraph locks a stripe per node).
+ * There are no hub sets: hasNeighbor scans the list.
+ *
+ * @author rena
+ */
+final class ConcurrentAdjacency implements Adjacency {
+    private static final int SEGMENT_BITS = 14;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int INITIAL_NEIGHBOR_CAPACITY = 2;
+    private static final int[] NO_NEIGHBORS = new int[0];
+
+    private volatile Segment[] segments = new Segment[0];
+    private volatile int size;
+
+    /**
+     * Adds a node without neighbors and returns its index. Calls must be serialized by the caller.
+     * @return
+     */
+    int addNode() {
+        int node = size;
+        Segment[] current = segments;
+        if (node >> SEGMENT_BITS == current.length) {
+            Segment[] larger = Arrays.copyOf(current, current.length + 1);
+            larger[current.length] = new Segment();
+            segments = larger;
+        }
+        size = node + 1;
+        return node;
+    }
+
+    /**
+     * Appends neighbor to the list of node, which must not hold it yet. Calls for the same node must be
+     * serialized by the caller.
+     * @param node
+     * @param neighbor
+     */
+    void appendNeighbor(int node, int neighbor) {
+        Segment segment = segments[node >> SEGMENT_BITS];
+        int slot = node & SEGMENT_MASK;
+        int degree = segment.degrees.get(slot);
+        int[] list = segment.lists.get(slot);
+        if (list == null || degree == list.length) {
+            list = list == null
+                    ? new int[INITIAL_NEIGHBOR_CAPACITY]
+                    : Arrays.copyOf(list, degree + (degree >> 1) + 1);
+            list[degree] = neighbor;
+            segment.lists.set(slot, list);
+        } else {
+            list[degree] = neighbor;
+        }
+        segment.degrees.set(slot, degree + 1);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int degree(int node) {
+        return segments[node >> SEGMENT_BITS].degrees.get(node & SEGMENT_MASK);
+    }
+
+    @Override
+    public int[] neighbors(int node, int[] scratch) {
+        int[] list = segments[node >> SEGMENT_BITS].lists.get(node & SEGMENT_MASK);
+        return list == null ? NO_NEIGHBORS : list;
+    }
+
+    @Override
+    public int snapshotMaxDegree() {
+        return 0;
+    }
+
+    @Override
+    public boolean hasNeighbor(int node, int neighbor) {
+        int degree = degree(node);
+        int[] list = neighbors(node, null);
+        for (int i = degree - 1; i >= 0; i--) {
+            if (list[i] == neighbor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isHub(int node) {
+        return false;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the neighbor lists.
+     * @return
+     */
+    long memoryFootprint() {
+        Segment[] current = segments;
+        long bytes = MemoryEstimates.referenceArray(current.length);
+        for (Segment segment : current) {
+            bytes += MemoryEstimates.referenceArray(SEGMENT_SIZE) + MemoryEstimates.intArray(SEGMENT_SIZE);
+            for (int slot = 0; slot < SEGMENT_SIZE; slot++) {
+                int[] list = segment.lists.get(slot);
+                if (list != null) {
+                    bytes += MemoryEstimates.intArray(list.length);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Segment holds the lists and degrees of SEGMENT_SIZE consecutive nodes.
+     */
+    private static final class Segment {
+        final AtomicReferenceArray<int[]> lists = new AtomicReferenceArray<>(SEGMENT_SIZE);
+        final AtomicIntegerArray degrees = new AtomicIntegerArray(SEGMENT_SIZE);
+    }
+}
@@ -0,0 +1,175 @@
+package com.paymo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConcurrentGraph is an unweighted, undirected graph of nodes and edges, like Graph, that answers BFS,
+ * separation, containsNode and containsEdge without locks while other threads add nodes and edges.
+ *
+ * Ids are mapped to dense node indexes by a ConcurrentIntIntHashMap, and edges are kept in append-only
+ * neighbor lists (ConcurrentAdjacency). Adding a node takes one lock shared by all nodes; adding an edge
+ * takes the locks of the stripes of its two nodes, in stripe order, so edges on different nodes are added
+ * in parallel. Searches use the same BidirectionalSearch as Graph.
+ *
+ * Consistency:
+ *  - A read sees every node and edge whose add returned before the read started (happens-before), and
+ *    never a partly written list.
+ *  - Nodes and edges added during a read may or may not be seen. An edge becomes visible from one of its
+ *    nodes slightly before the other, so containsEdge may see it before BFS from the other side does.
+ *  - A search never reports a path that is not in the graph, and never a longer one than the shortest path
+ *    made of edges added before it started.
+ *  - Nodes and edges are never removed: adding a node that exists leaves it and its edges as they are.
+ *
+ * @author rena
+ */
+public class ConcurrentGraph {
+    // Returned by separation when the nodes are not within the requested degree of each other
+    public static final int NOT_CONNECTED = Graph.NOT_CONNECTED;
+    private static final int STRIPES = 256;
+
+    private final ConcurrentIntIntHashMap nodeIndexes = new ConcurrentIntIntHashMap();
+    private final ConcurrentAdjacency adjacency = new ConcurrentAdjacency();
+    private final Object nodeLock = new Object();
+    private final Object[] edgeLocks = new Object[STRIPES];
+    private final AtomicLong edgeCount = new AtomicLong();
+
+    /**
+     * Default constructor, initialize empty graph
+     */
+    public ConcurrentGraph() {
+        for (int i = 0; i < STRIPES; i++) {
+            edgeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Adds a node with the given id to the graph, unless it is already there.
+     * @param nodeId
+     */
+    public void addNode(int nodeId) {
+        if (nodeIndexes.get(nodeId) != ConcurrentIntIntHashMap.NO_VALUE) {
+            return;
+        }
+        synchronized (nodeLock) {
+            if (nodeIndexes.get(nodeId) == ConcurrentIntIntHashMap.NO_VALUE) {
+                // The node's slots exist before its id can be looked up
+                nodeIndexes.putIfAbsent(nodeId, adjacency.addNode());
+            }
+        }
+    }
+
+    /**
+     * Returns true if there is a node with the given id in the graph.
+     * @param id
+     * @return
+     */
+    public boolean containsNode(int id) {
+        return nodeIndexes.get(id) != ConcurrentIntIntHashMap.NO_VALUE;
+    }
+
+    /**
+     * Adds an edge between the nodes with ids nodeId1 and nodeId2, which must be in the graph.
+     * @param nodeId1
+     * @param nodeId2
+     */
+    public void addEdge(int nodeId1, int nodeId2) {
+        int index1 = nodeIndexes.get(nodeId1);
+        int index2 = nodeIndexes.get(nodeId2);
+        if (index1 == ConcurrentIntIntHashMap.NO_VALUE || index2 == ConcurrentIntIntHashMap.NO_VALUE) {
+            throw new IllegalArgumentException();
+        }
+
+        int stripe1 = index1 & (STRIPES - 1);
+        int stripe2 = index2 & (STRIPES - 1);
+        synchronized (edgeLocks[Math.min(stripe1, stripe2)]) {
+            synchronized (edgeLocks[Math.max(stripe1, stripe2)]) {
+                // No other writer can add this edge now, so the shorter list tells if it is there
+                if (hasEdge(index1, index2)) {
+                    return;
+                }
+                adjacency.appendNeighbor(index1, index2);
+                if (index1 != index2) {
+                    adjacency.appendNeighbor(index2, index1);
+                }
+            }
+        }
+        edgeCount.incrementAndGet();
+    }
+
+    /**
+     * Returns true if there is an edge between node with id nodeId1 and node with id nodeId2.
+     * @param nodeId1
+     * @param nodeId2
+     * @return
+     */
+    public boolean containsEdge(int nodeId1, int nodeId2) {
+        int index1 = nodeIndexes.get(nodeId1);
+        int index2 = nodeIndexes.get(nodeId2);
+        if (index1 == ConcurrentIntIntHashMap.NO_VALUE || index2 == ConcurrentIntIntHashMap.NO_VALUE) {
+            return false;
+        }
+        return hasEdge(index1, index2);
+    }
+
+    /**
+     * Looks up the edge in the list of whichever node has fewer neighbors.
+     */
+    private boolean hasEdge(int index1, int index2) {
+        return adjacency.degree(index1) <= adjacency.degree(index2)
+                ? adjacency.hasNeighbor(index1, index2)
+                : adjacency.hasNeighbor(index2, index1);
+    }
+
+    /**
+     * Returns the number of nodes in the graph.
+     * @return
+     */
+    public int nodeCount() {
+        return adjacency.size();
+    }
+
+    /**
+     * Returns the number of distinct edges in the graph.
+     * @return
+     */
+    public long edgeCount() {
+        return edgeCount.get();
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the graph's nodes and edges.
+     * @return
+     */
+    public long memoryFootprint() {
+        return nodeIndexes.memoryFootprint() + adjacency.memoryFootprint();
+    }
+
+    /**
+     * Returns true if a node with id endNodeId is within degreeSeparation edges of the node with id
+     * startNodeId.
+     * @param startNodeId
+     * @param endNodeId
+     * @param degreeSeparation
+     * @return
+     */
+    public boolean BFS(int startNodeId, int endNodeId, int degreeSeparation) {
+        return separation(startNodeId, endNodeId, degreeSeparation) != NOT_CONNECTED;
+    }
+
+    /**
+     * Returns the degree of separation between the nodes with ids startNodeId and endNodeId if it is at most
+     * maxDegree, else NOT_CONNECTED, as Graph.separation does.
+     * @param startNodeId
+     * @param endNodeId
+     * @param maxDegree
+     * @return
+     */
+    public int separation(int startNodeId, int endNodeId, int maxDegree) {
+        int startIndex = nodeIndexes.get(startNodeId);
+        int endIndex = nodeIndexes.get(endNodeId);
+        if (maxDegree < 0 || startIndex == ConcurrentIntIntHashMap.NO_VALUE || endIndex == ConcurrentIntIntHashMap.NO_VALUE) {
+            return NOT_CONNECTED;
+        }
+        return BidirectionalSearch.forCurrentThread().separation(adjacency, startIndex, endIndex, maxDegree);
+    }
+}
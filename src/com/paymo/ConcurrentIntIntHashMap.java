@@ -0,0 +1,133 @@
+package com.paymo;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * ConcurrentIntIntHashMap is an open-addressing hash map from int keys to non-negative int values, laid out
+ * like IntIntHashMap, whose get runs without locks while put is called from other threads.
+ * Puts are serialized on the map and never move an entry in place: a key is written before its value,
+ * and the value is published with a volatile write, so a reader that sees the value also sees the key.
+ * A slot whose value is not written yet reads as free, which ends the probe as it did before the put
+ * started. Growing builds a new table and publishes it through a volatile field, leaving the old one
+ * intact for readers still probing it.
+ *
+ * A get that runs concurrently with the put of its key returns either NO_VALUE or the new value.
+ *
+ * @author rena
+ */
+final class ConcurrentIntIntHashMap {
+    // Returned by get when the key is not in the map
+    static final int NO_VALUE = IntIntHashMap.NO_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private volatile Table table;
+    private int size; // guarded by this
+
+    /**
+     * Default constructor, initialize empty map
+     */
+    ConcurrentIntIntHashMap() {
+        this.table = new Table(MIN_CAPACITY);
+    }
+
+    /**
+     * Returns the value mapped to key, or NO_VALUE if the key is not in the map.
+     * @param key
+     * @return
+     */
+    int get(int key) {
+        Table current = table;
+        int mask = current.keys.length - 1;
+        for (int slot = IntIntHashMap.hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int value = current.values.get(slot);
+            if (value == 0) {
+                return NO_VALUE;
+            }
+            if (current.keys[slot] == key) {
+                return value - 1;
+            }
+        }
+    }
+
+    /**
+     * Maps key to value if key is not in the map yet. Returns the value now mapped to key.
+     * @param key
+     * @param value must be non-negative
+     * @return
+     */
+    synchronized int putIfAbsent(int key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        Table current = table;
+        int mask = current.keys.length - 1;
+        int slot = IntIntHashMap.hash(key) & mask;
+        while (current.values.get(slot) != 0) {
+            if (current.keys[slot] == key) {
+                return current.values.get(slot) - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        current.keys[slot] = key;
+        current.values.set(slot, value + 1);
+        if (++size >= current.resizeAt) {
+            table = current.grow();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of keys in the map.
+     * @return
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the map.
+     * @return
+     */
+    long memoryFootprint() {
+        return 2 * MemoryEstimates.intArray(table.keys.length) + 3 * MemoryEstimates.OBJECT_HEADER + 24;
+    }
+
+    /**
+     * Table is one generation of the map's slots. Once published it is only written by putIfAbsent into
+     * free slots, until it is replaced by a larger one.
+     */
+    private static final class Table {
+        final int[] keys;
+        final AtomicIntegerArray values; // value + 1, 0 means the slot is free
+        final int resizeAt;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new AtomicIntegerArray(capacity);
+            this.resizeAt = (int) (capacity * LOAD_FACTOR);
+        }
+
+        /**
+         * Returns a table of twice the capacity holding the same entries.
+         * @return
+         */
+        Table grow() {
+            Table larger = new Table(keys.length << 1);
+            int mask = larger.keys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                int value = values.get(i);
+                if (value != 0) {
+                    int slot = IntIntHashMap.hash(keys[i]) & mask;
+                    while (larger.values.get(slot) != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    larger.keys[slot] = keys[i];
+                    larger.values.set(slot, value);
+                }
+            }
+            return larger;
+        }
+    }
+}
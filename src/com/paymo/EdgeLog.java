@@ -0,0 +1,708 @@
+package com.paymo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * EdgeLog is the write-ahead log of the edges added to a Graph since its last checkpoint, so that a graph
+ * that stops is rebuilt from that checkpoint and the edges logged after it (Graph.recover) instead of from
+ * all the payments ever read.
+ *
+ * The log is a directory of numbered segments (edges.N.log) and checkpoints (graph.N.snapshot), checkpoint N
+ * holding every edge logged before segment N. A segment is little-endian: a header (magic, version, stream
+ * position and offset, then the lengths of the answer files at that position), then frames of a record
+ * count, the CRC32 of the rest of the frame, the stream position and offset of its last record, and the
+ * records, each the two node ids of an edge. For a graph fed from a stream of payments, the stream position
+ * is the number of payments whose edges were added so far and the offset the byte offset of the line of the
+ * last one (Graph.setStreamPosition), which tells recovery where to resume the stream; it stays 0 and -1
+ * otherwise. Recovery reads frames up to the first one that is incomplete or does not match its CRC, which a
+ * crash in the middle of a write leaves behind, or whose payments have no answer written yet, and cuts the
+ * log there.
+ *
+ * Appending does no I/O: the thread that adds edges puts them in a bounded ring (SpscRing), and a writer
+ * thread takes every record waiting in it as one frame, writes it and forces it to disk, so one sync covers
+ * all the edges appended while the previous one ran (group commit). An edge is durable some time after it
+ * is appended; close waits until every edge appended so far is. Appends must come from one thread at a
+ * time, as edges are added to a Graph.
+ *
+ * Checkpoints do not hold that thread either: checkpoint rolls the log over to a new segment and saves a
+ * frozen copy of the graph as its checkpoint on a thread of its own, while edges are still appended to the
+ * new segment. The segments and checkpoint before it are deleted once it is saved, so recovery only reads
+ * the edges logged since the last checkpoint.
+ *
+ * @author rena
+ */
+final class EdgeLog implements Closeable {
+    private static final String CHECKPOINT_PREFIX = "graph.";
+    private static final String CHECKPOINT_SUFFIX = ".snapshot";
+    private static final String SEGMENT_PREFIX = "edges.";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x57594150; // "PAYW" in the file
+    private static final int VERSION = 2;
+    // Magic, version, stream position and offset, and the number of answer lengths that follow
+    private static final int HEADER_BYTES = 28;
+    private static final int MAX_ANSWER_FILES = 1 << 10;
+    private static final int FRAME_HEADER_BYTES = 24;
+    private static final int RECORD_BYTES = 8;
+    private static final int RING_SIZE = 1 << 16;
+    // Records in a frame at most
+    private static final int MAX_FRAME = 1 << 14;
+    // Stream position of the ring record that rolls the log over to the segment in its first long
+    private static final long ROLL = -2;
+    private static final long PARK_NANOS = 20000;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    // Records of three longs: the two ids of an edge, its stream position and offset
+    private final SpscRing ring = new SpscRing(RING_SIZE, 3);
+    private final Thread writer;
+    // Writer side: the segment being written
+    private FileChannel channel;
+    private volatile long openedSegment;
+    private volatile ByteBuffer nextHeader;
+    // Oldest segment kept, moved on by the thread that saves a checkpoint
+    private long firstSegment;
+    // Producer side: the last segment rolled over to, and the thread saving a checkpoint, if any
+    private long lastSegment;
+    private Thread checkpointer;
+    private volatile boolean checkpointing;
+    private volatile Throwable failure;
+    // Producer side: records appended since the last checkpoint
+    private long appendedSinceCheckpoint;
+    private long replayed;
+    private long replayedPosition;
+    private long replayedOffset = -1;
+    private long answeredPayments;
+    private volatile long checkpoints;
+    // Records written and forced to disk, and the number of syncs
+    private volatile long durable;
+    private volatile long syncs;
+
+    private EdgeLog(Path directory, long segment, FileChannel channel) {
+        this.directory = directory;
+        this.channel = channel;
+        this.openedSegment = segment;
+        this.firstSegment = segment;
+        this.lastSegment = segment;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "edge-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the file of checkpoint number segment in directory.
+     * @param directory
+     * @param segment
+     * @return
+     */
+    static Path checkpointFile(Path directory, long segment) {
+        return directory.resolve(CHECKPOINT_PREFIX + segment + CHECKPOINT_SUFFIX);
+    }
+
+    private static Path segmentFile(Path directory, long segment) {
+        return directory.resolve(SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Returns the number of the last checkpoint saved in directory, -1 if there is none.
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    static long lastCheckpoint(Path directory) throws IOException {
+        long last = -1;
+        if (!Files.isDirectory(directory)) {
+            return last;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                CHECKPOINT_PREFIX + "*" + CHECKPOINT_SUFFIX)) {
+            for (Path file : files) {
+                last = Math.max(last, number(file, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Returns a new empty log in directory, at the start of the stream, after deleting the segments and
+     * checkpoints of any earlier log. Its first checkpoint, checkpointFile(directory, 0), is then saved by
+     * the caller.
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    static EdgeLog create(Path directory) throws IOException {
+        delete(directory, 0, Long.MAX_VALUE);
+        FileChannel channel = openSegment(segmentFile(directory, 0), header(0, -1, new long[0]));
+        return new EdgeLog(directory, 0, channel);
+    }
+
+    /**
+     * Adds the edges logged in directory since checkpoint to g, which holds that checkpoint, and returns the
+     * log to append to them. For a graph fed from a stream whose answers are written one line per payment to
+     * answers, the answers are first cut to the lines complete in all of them (answeredPayments), and only
+     * the edges of payments answered are added. The log is cut after the last frame added, and the segments
+     * and checkpoints before checkpoint are deleted. The work is that of the edges logged since checkpoint,
+     * plus reading the answers written since.
+     * @param directory
+     * @param checkpoint
+     * @param g
+     * @param answers no files for a graph not fed from a stream
+     * @return
+     * @throws IOException if the log is not an edge log of a supported version or does not match answers
+     */
+    static EdgeLog replay(Path directory, long checkpoint, Graph g, Path[] answers) throws IOException {
+        // Left behind when deleting them was cut short, or saving a checkpoint (GraphSnapshot.write)
+        delete(directory, 0, checkpoint);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                CHECKPOINT_PREFIX + "*" + CHECKPOINT_SUFFIX + ".partial")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Path first = segmentFile(directory, checkpoint);
+        FileChannel channel = FileChannel.open(first, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long[] header = readHeader(channel, first);
+            if (header == null) {
+                throw new IOException(first + " is not an edge log");
+            }
+            long answered = answers.length == 0 ? Long.MAX_VALUE : header[0] + cutAnswers(answers, header);
+
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + MAX_FRAME * RECORD_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            long segment = checkpoint;
+            long position = header[0];
+            long offset = header[1];
+            long records = 0;
+            while (true) {
+                long end = channel.position();
+                while (true) {
+                    frame.clear().limit(FRAME_HEADER_BYTES);
+                    if (!readFully(channel, frame)) {
+                        break;
+                    }
+                    int count = frame.getInt(0);
+                    if (count < 1 || count > MAX_FRAME) {
+                        break;
+                    }
+                    frame.limit(FRAME_HEADER_BYTES + count * RECORD_BYTES);
+                    if (!readFully(channel, frame)) {
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(frame.array(), 8, frame.limit() - 8);
+                    if ((int) crc.getValue() != frame.getInt(4) || frame.getLong(8) > answered) {
+                        break;
+                    }
+                    for (int at = FRAME_HEADER_BYTES; at < frame.limit(); at += RECORD_BYTES) {
+                        int id1 = frame.getInt(at);
+                        int id2 = frame.getInt(at + 4);
+                        if (!g.containsNode(id1)) {
+                            g.addNode(id1);
+                        }
+                        if (!g.containsNode(id2)) {
+                            g.addNode(id2);
+                        }
+                        g.addEdge(id1, id2);
+                    }
+                    position = frame.getLong(8);
+                    offset = frame.getLong(16);
+                    end += frame.limit();
+                    records += count;
+                }
+                // A segment read to its end is followed by the next one, if it was started
+                FileChannel next = end == channel.size() ? openNext(directory, segment + 1, answered) : null;
+                if (next == null) {
+                    // Whatever follows the last frame added was being written when the log stopped, or
+                    // belongs to payments that were not answered
+                    channel.truncate(end);
+                    channel.position(end);
+                    channel.force(true);
+                    delete(directory, segment + 1, Long.MAX_VALUE);
+                    break;
+                }
+                channel.close();
+                channel = next;
+                segment++;
+            }
+
+            EdgeLog log = new EdgeLog(directory, segment, channel);
+            log.firstSegment = checkpoint;
+            log.replayed = records;
+            log.appendedSinceCheckpoint = records;
+            log.replayedPosition = position;
+            log.replayedOffset = offset;
+            log.answeredPayments = answers.length == 0 ? position : answered;
+            return log;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns segment positioned after its header if it exists, has a complete header and starts at a payment
+     * answered, null otherwise.
+     */
+    private static FileChannel openNext(Path directory, long segment, long answered) throws IOException {
+        Path file = segmentFile(directory, segment);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        FileChannel next = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long[] header = readHeader(next, file);
+            if (header != null && header[0] <= answered) {
+                return next;
+            }
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            throw e;
+        }
+        next.close();
+        return null;
+    }
+
+    /**
+     * Reads the header of a segment: returns its stream position, its offset, then the lengths of the answer
+     * files; null if it is incomplete.
+     */
+    private static long[] readHeader(FileChannel channel, Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, header)) {
+            return null;
+        }
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not an edge log");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException(file + " is an edge log of unsupported version " + header.getInt(4));
+        }
+        int answerFiles = header.getInt(24);
+        if (answerFiles < 0 || answerFiles > MAX_ANSWER_FILES) {
+            throw new IOException(file + " is a corrupt edge log");
+        }
+        ByteBuffer lengths = ByteBuffer.allocate(8 * answerFiles).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, lengths)) {
+            return null;
+        }
+        long[] values = new long[2 + answerFiles];
+        values[0] = header.getLong(8);
+        values[1] = header.getLong(16);
+        for (int i = 0; i < answerFiles; i++) {
+            values[2 + i] = lengths.getLong(8 * i);
+        }
+        return values;
+    }
+
+    private static ByteBuffer header(long position, long offset, long[] lengths) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 8 * lengths.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(position).putLong(offset).putInt(lengths.length);
+        for (long length : lengths) {
+            header.putLong(length);
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Returns a new segment in file holding header only, forced to disk.
+     */
+    private static FileChannel openSegment(Path file, ByteBuffer header) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Cuts the answer files to the lines complete in all of them since the lengths they had at the checkpoint
+     * whose header is given, and returns the number of those lines. A checkpoint at the start of the stream
+     * may give no lengths.
+     */
+    private static long cutAnswers(Path[] answers, long[] header) throws IOException {
+        if (header.length != 2 && header.length != 2 + answers.length) {
+            throw new IOException("The edge log was written with " + (header.length - 2) + " answer files, not "
+                    + answers.length);
+        }
+        FileChannel[] channels = new FileChannel[answers.length];
+        try {
+            long lines = Long.MAX_VALUE;
+            long[] end = new long[1];
+            for (int i = 0; i < answers.length; i++) {
+                long length = header.length == 2 ? 0 : header[2 + i];
+                channels[i] = FileChannel.open(answers[i], StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                if (channels[i].size() < length) {
+                    throw new IOException(answers[i] + " is shorter than at the last checkpoint");
+                }
+                lines = Math.min(lines, countLines(channels[i], length, Long.MAX_VALUE, end));
+            }
+            for (int i = 0; i < answers.length; i++) {
+                countLines(channels[i], header.length == 2 ? 0 : header[2 + i], lines, end);
+                if (end[0] < channels[i].size()) {
+                    channels[i].truncate(end[0]);
+                    channels[i].force(true);
+                }
+            }
+            return lines;
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lines ended by \n in channel from offset from on, counting at most limit, and
+     * sets end[0] to the offset after the last of them.
+     */
+    private static long countLines(FileChannel channel, long from, long limit, long[] end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long lines = 0;
+        long offset = from;
+        end[0] = from;
+        while (lines < limit) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read && lines < limit; i++) {
+                if (bytes[i] == '\n') {
+                    lines++;
+                    end[0] = offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return lines;
+    }
+
+    /**
+     * Deletes the segments and checkpoints of directory numbered from from to to, exclusive.
+     */
+    private static void delete(Path directory, long from, long to) throws IOException {
+        if (from >= to || !Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                long segment = Math.max(number(file, SEGMENT_PREFIX, SEGMENT_SUFFIX),
+                        number(file, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX));
+                if (segment >= from && segment < to) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number in the name of file if it is prefix, a number and suffix, -1 otherwise.
+     */
+    private static long number(Path file, String prefix, String suffix) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() <= prefix.length() + suffix.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Logs the edge between the nodes with ids id1 and id2, added for the payment at the given stream position
+     * and offset. Throws IllegalStateException if the log or its last checkpoint could not be written.
+     * @param id1
+     * @param id2
+     * @param position
+     * @param offset
+     */
+    void append(int id1, int id2, long position, long offset) {
+        if (failure != null) {
+            throw new IllegalStateException("Cannot write the edge log", failure);
+        }
+        int at = ring.claim();
+        long[] slots = ring.slots();
+        slots[at] = (long) id1 << 32 | id2 & 0xFFFFFFFFL;
+        slots[at + 1] = position;
+        slots[at + 2] = offset;
+        ring.publish();
+        appendedSinceCheckpoint++;
+    }
+
+    /**
+     * Returns the number of edges in the log when it was opened by replay.
+     * @return
+     */
+    long replayedEdges() {
+        return replayed;
+    }
+
+    /**
+     * Returns the stream position of the last edge added by replay, or of its checkpoint if there was none.
+     * @return
+     */
+    long replayedPosition() {
+        return replayedPosition;
+    }
+
+    /**
+     * Returns the stream offset matching replayedPosition.
+     * @return
+     */
+    long replayedOffset() {
+        return replayedOffset;
+    }
+
+    /**
+     * Returns the number of payments answered in the answer files given to replay, or replayedPosition if
+     * there were none.
+     * @return
+     */
+    long answeredPayments() {
+        return answeredPayments;
+    }
+
+    /**
+     * Returns true if checkpointEdges edges or more were appended since the last checkpoint, and none is
+     * being saved.
+     * @param checkpointEdges
+     * @return
+     */
+    boolean checkpointDue(long checkpointEdges) {
+        return appendedSinceCheckpoint >= checkpointEdges && !checkpointing;
+    }
+
+    /**
+     * Rolls the log over to a new segment that starts at the given stream position and offset, and saves
+     * frozen, which holds every edge appended so far, as its checkpoint on another thread: once answers are
+     * forced to disk and the writer has started the segment. The segments and checkpoint before it are
+     * deleted after. Waits for the checkpoint being saved, if any. Must be called by the thread that
+     * appends; a checkpoint that cannot be saved fails the next append.
+     * @param frozen
+     * @param position
+     * @param offset
+     * @param answers the files of the answers up to position, flushed
+     * @throws IOException
+     */
+    void checkpoint(final Graph frozen, long position, long offset, final Path[] answers) throws IOException {
+        awaitCheckpoint();
+        rethrow();
+        long[] lengths = new long[answers.length];
+        for (int i = 0; i < answers.length; i++) {
+            lengths[i] = Files.size(answers[i]);
+        }
+        final long segment = ++lastSegment;
+        nextHeader = header(position, offset, lengths);
+        int at = ring.claim();
+        long[] slots = ring.slots();
+        slots[at] = segment;
+        slots[at + 1] = ROLL;
+        ring.publish();
+        appendedSinceCheckpoint = 0;
+        checkpointing = true;
+        checkpointer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                save(frozen, segment, answers);
+            }
+        }, "edge-log-checkpoint");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * Checkpointer: saves frozen as the checkpoint of segment, see checkpoint.
+     */
+    private void save(Graph frozen, long segment, Path[] answers) {
+        try {
+            // Recovery resumes the stream after the answers, they must reach the disk before the checkpoint
+            for (Path file : answers) {
+                try (FileChannel answer = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    answer.force(true);
+                }
+            }
+            while (openedSegment < segment) {
+                if (failure != null) {
+                    return;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            frozen.writeSnapshot(checkpointFile(directory, segment).toString());
+            delete(directory, firstSegment, segment);
+            firstSegment = segment;
+            checkpoints++;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } finally {
+            frozen.release();
+            checkpointing = false;
+        }
+    }
+
+    /**
+     * Returns the number of checkpoints saved since the log was opened.
+     * @return
+     */
+    long checkpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Returns the number of edges written and forced to disk so far.
+     * @return
+     */
+    long durableEdges() {
+        return durable;
+    }
+
+    /**
+     * Returns the number of times the log was forced to disk so far.
+     * @return
+     */
+    long syncs() {
+        return syncs;
+    }
+
+    /**
+     * Waits for the checkpoint being saved, writes the edges appended so far and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        awaitCheckpoint();
+        ring.close();
+        join(writer);
+        channel.close();
+        rethrow();
+    }
+
+    private void awaitCheckpoint() {
+        if (checkpointer != null) {
+            join(checkpointer);
+            checkpointer = null;
+        }
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer: takes the records waiting in the ring as one frame, writes and forces it, and rolls over to the
+     * next segment when asked, until the ring is closed.
+     */
+    private void write() {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + MAX_FRAME * RECORD_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        long[] records = ring.slots();
+        try {
+            for (int at = ring.take(); at >= 0; at = ring.take()) {
+                frame.clear().position(FRAME_HEADER_BYTES);
+                int count = 0;
+                long position = 0;
+                long offset = -1;
+                long roll = -1;
+                while (true) {
+                    long pair = records[at];
+                    long recordPosition = records[at + 1];
+                    long recordOffset = records[at + 2];
+                    ring.release();
+                    if (recordPosition == ROLL) {
+                        roll = pair;
+                        break;
+                    }
+                    frame.putInt((int) (pair >>> 32)).putInt((int) pair);
+                    position = recordPosition;
+                    offset = recordOffset;
+                    if (++count == MAX_FRAME || ring.size() == 0) {
+                        break;
+                    }
+                    at = ring.take();
+                }
+                if (count > 0) {
+                    frame.putLong(8, position).putLong(16, offset);
+                    crc.reset();
+                    crc.update(frame.array(), 8, frame.position() - 8);
+                    frame.putInt(0, count).putInt(4, (int) crc.getValue()).flip();
+                    while (frame.hasRemaining()) {
+                        channel.write(frame);
+                    }
+                    channel.force(false);
+                    syncs++;
+                    durable += count;
+                }
+                if (roll >= 0) {
+                    FileChannel next = openSegment(segmentFile(directory, roll), nextHeader);
+                    channel.close();
+                    channel = next;
+                    openedSegment = roll;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            ring.abandon();
+        }
+    }
+
+    private void rethrow() throws IOException {
+        Throwable cause = failure;
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause != null) {
+            throw (RuntimeException) cause;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.paymo;
+
+import java.util.Arrays;
+
+/**
+ * EdgeWindow keeps the time of the latest payment on each edge of a graph, so that edges with no payment
+ * in the last windowSeconds can be removed.
+ *
+ * Time is cut into buckets of windowSeconds / BUCKETS seconds. Each edge is keyed by the ids of its two
+ * nodes and stored in an open-addressing table with the bucket of its latest payment; a payment on the edge
+ * in a later bucket also appends the edge to that bucket's list. Once the window has moved past a bucket,
+ * its list is read once and the edges still stamped with it are expired: their key is removed and handed
+ * back to the graph. Edges that were paid again since are skipped, their stamp is newer. Expiring thus
+ * costs one lookup per payment of the bucket, never a scan of all edges, and an edge leaves the graph at
+ * most one bucket (windowSeconds / BUCKETS) after it left the window.
+ *
+ * Buckets are numbered time / bucketSeconds; the live ones are kept in a ring of BUCKETS + 2 lists.
+ *
+ * @author rena
+ */
+final class EdgeWindow {
+    static final int BUCKETS = 64;
+
+    private static final int RING = BUCKETS + 2;
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final long windowSeconds;
+    private final long bucketSeconds;
+
+    // Edge keys and the bucket of their latest payment, counted from firstBucket; 0 means the slot is free
+    private long[] keys;
+    private int[] stamps;
+    private int size;
+    private int resizeAt;
+    // Stamps are relative to the first bucket, so that they fit in an int
+    private long firstBucket = Long.MIN_VALUE;
+
+    // Keys appended to each live bucket, in slot bucket % RING
+    private final long[][] bucketKeys = new long[RING][];
+    private final int[] bucketSizes = new int[RING];
+    // Latest bucket seen and oldest bucket not expired yet
+    private long newestBucket = Long.MIN_VALUE;
+    private long oldestBucket;
+
+    private long[] expired = new long[16];
+    private long expiredTotal;
+
+    /**
+     * Constructor- keep edges paid in the last windowSeconds seconds
+     * @param windowSeconds
+     */
+    EdgeWindow(long windowSeconds) {
+        if (windowSeconds < 1) {
+            throw new IllegalArgumentException("Invalid time window " + windowSeconds);
+        }
+        this.windowSeconds = windowSeconds;
+        this.bucketSeconds = (windowSeconds + BUCKETS - 1) / BUCKETS;
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Constructor- deep copy of otherWindow
+     * @param otherWindow
+     */
+    EdgeWindow(EdgeWindow otherWindow) {
+        this.windowSeconds = otherWindow.windowSeconds;
+        this.bucketSeconds = otherWindow.bucketSeconds;
+        this.keys = otherWindow.keys.clone();
+        this.stamps = otherWindow.stamps.clone();
+        this.size = otherWindow.size;
+        this.resizeAt = otherWindow.resizeAt;
+        this.firstBucket = otherWindow.firstBucket;
+        for (int ring = 0; ring < RING; ring++) {
+            if (otherWindow.bucketKeys[ring] != null) {
+                bucketKeys[ring] = otherWindow.bucketKeys[ring].clone();
+            }
+            bucketSizes[ring] = otherWindow.bucketSizes[ring];
+        }
+        this.newestBucket = otherWindow.newestBucket;
+        this.oldestBucket = otherWindow.oldestBucket;
+        this.expiredTotal = otherWindow.expiredTotal;
+    }
+
+    /**
+     * Returns the length of the window in seconds.
+     * @return
+     */
+    long windowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * Moves the end of the window to time if it is later than the latest time seen, and returns the number
+     * of edges whose buckets left the window; their keys are the first entries of expired(), until the next
+     * call. Returns 0 if no bucket left, which is the case for all but about BUCKETS calls per window.
+     * @param time in seconds
+     * @return
+     */
+    int advance(long time) {
+        long bucket = Math.floorDiv(time, bucketSeconds);
+        long live = liveFrom(time);
+        if (newestBucket == Long.MIN_VALUE) {
+            newestBucket = bucket;
+            oldestBucket = live;
+            firstBucket = live - 1;
+            return 0;
+        }
+        newestBucket = Math.max(newestBucket, bucket);
+        if (live <= oldestBucket) {
+            return 0;
+        }
+        int count = 0;
+        // Only the RING buckets from oldestBucket on can hold edges, however far time jumped
+        for (long expiring = oldestBucket; expiring < live && expiring < oldestBucket + RING; expiring++) {
+            int ring = ringSlot(expiring);
+            long[] list = bucketKeys[ring];
+            int stamp = stampOf(expiring);
+            for (int i = 0; i < bucketSizes[ring]; i++) {
+                // Skip the edges paid again in a later bucket
+                if (remove(list[i], stamp)) {
+                    if (count == expired.length) {
+                        expired = Arrays.copyOf(expired, count << 1);
+                    }
+                    expired[count++] = list[i];
+                }
+            }
+            bucketKeys[ring] = null;
+            bucketSizes[ring] = 0;
+        }
+        oldestBucket = Math.max(oldestBucket, live);
+        expiredTotal += count;
+        return count;
+    }
+
+    /**
+     * Returns the keys of the edges expired by the last call to advance.
+     * @return
+     */
+    long[] expired() {
+        return expired;
+    }
+
+    /**
+     * Returns true if a payment at time is already out of the window.
+     * @param time
+     * @return
+     */
+    boolean isExpired(long time) {
+        return newestBucket != Long.MIN_VALUE && Math.floorDiv(time, bucketSeconds) < oldestBucket;
+    }
+
+    /**
+     * Records a payment at time on the edge between the nodes with ids id1 and id2. The time must not be
+     * expired, and advance must have been called with it or a later time.
+     * @param id1
+     * @param id2
+     * @param time
+     */
+    void touch(int id1, int id2, long time) {
+        long key = key(id1, id2);
+        long bucket = Math.floorDiv(time, bucketSeconds);
+        int stamp = stampOf(bucket);
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (stamps[slot] != 0) {
+            if (keys[slot] == key) {
+                if (stamps[slot] >= stamp) {
+                    return;
+                }
+                stamps[slot] = stamp;
+                append(bucket, key);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        stamps[slot] = stamp;
+        append(bucket, key);
+        if (++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Returns the number of edges in the window.
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of edges expired so far.
+     * @return
+     */
+    long expiredTotal() {
+        return expiredTotal;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the window.
+     * @return
+     */
+    long memoryFootprint() {
+        long bytes = MemoryEstimates.longArray(keys.length) + MemoryEstimates.intArray(stamps.length)
+                + MemoryEstimates.referenceArray(RING) + MemoryEstimates.intArray(RING)
+                + MemoryEstimates.longArray(expired.length);
+        for (long[] list : bucketKeys) {
+            if (list != null) {
+                bytes += MemoryEstimates.longArray(list.length);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the id of the first node of the edge key.
+     * @param key
+     * @return
+     */
+    static int id1(long key) {
+        return (int) (key >> 32);
+    }
+
+    /**
+     * Returns the id of the second node of the edge key.
+     * @param key
+     * @return
+     */
+    static int id2(long key) {
+        return (int) key;
+    }
+
+    private static long key(int id1, int id2) {
+        return id1 < id2 ? ((long) id1 << 32) | (id2 & 0xFFFFFFFFL) : ((long) id2 << 32) | (id1 & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the first bucket that is still in a window ending at time: the buckets before it end at
+     * least windowSeconds before time.
+     */
+    private long liveFrom(long time) {
+        return Math.floorDiv(time - windowSeconds, bucketSeconds);
+    }
+
+    private int ringSlot(long bucket) {
+        return (int) Math.floorMod(bucket, (long) RING);
+    }
+
+    private int stampOf(long bucket) {
+        return (int) (bucket - firstBucket);
+    }
+
+    private void append(long bucket, long key) {
+        int ring = ringSlot(bucket);
+        long[] list = bucketKeys[ring];
+        if (list == null) {
+            list = new long[16];
+            bucketKeys[ring] = list;
+        } else if (bucketSizes[ring] == list.length) {
+            list = Arrays.copyOf(list, list.length << 1);
+            bucketKeys[ring] = list;
+        }
+        list[bucketSizes[ring]++] = key;
+    }
+
+    /**
+     * Removes key if its stamp is stamp. Returns true if it did.
+     */
+    private boolean remove(long key, int stamp) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != key || stamps[slot] == 0) {
+            if (stamps[slot] == 0) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (stamps[slot] != stamp) {
+            return false;
+        }
+        int free = slot;
+        for (int next = (free + 1) & mask; stamps[next] != 0; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // Move the entry back if its home slot is not between the free slot and it
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                stamps[free] = stamps[next];
+                free = next;
+            }
+        }
+        stamps[free] = 0;
+        size--;
+        return true;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldStamps = stamps;
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldStamps[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (stamps[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                stamps[slot] = oldStamps[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        stamps = new int[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Mixes all bits of key, since folding its two ids together would collide for pairs of small ids.
+     */
+    private static int hash(long key) {
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) (key ^ (key >>> 33));
+    }
+}
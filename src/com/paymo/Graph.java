@@ -1,29 +1,89 @@
 package com.paymo;
 
-import java.util.Queue;
-import java.util.LinkedList;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  * Graph is a unweighted, undirected graph of nodes and edges.
  * It supports breadth-first search on the graph, including specifying the depth of the search
  * 
+ * Nodes are numbered densely in the order they are added. The id of a node is only used to look up
+ * its index; edges and searches work on the indices, which are kept in primitive int arrays.
+ * The connected components of the nodes are kept up to date as edges are added (Components), so a pair in
+ * different components is answered without a search.
+ *
+ * With a time window (enableTimeWindow), edges are added with the time of their payment and removed once
+ * they have had no payment for the length of the window (EdgeWindow). Nodes left without edges are dropped
+ * when they make up most of the graph, which renumbers the nodes that are left.
+ *
+ * The neighbor lists of a graph made by offHeap are kept outside the Java heap (OffHeapLists), in direct
+ * buffers or a mapped file, so that a large graph does not slow down garbage collection.
+ *
+ * A graph can be saved to a binary snapshot and opened from it later (GraphSnapshot). The nodes of an
+ * opened snapshot stay in the mapped file, numbered in increasing id order and looked up by binary search;
+ * nodes added afterwards are numbered after them and looked up in the hash map.
+ *
+ * With an edge log (enableEdgeLog), every new edge is also appended to a write-ahead log (EdgeLog), with the
+ * position in the stream of the payment that added it, and the caller saves the graph as a checkpoint every
+ * so many edges (checkpointDue, checkpoint), on another thread while edges are still added. A graph that
+ * stopped is rebuilt by recover from its last checkpoint and the edges logged since, and a stream resumes
+ * after the payments whose answers were written.
+ *
  * @author rena
  */
 public class Graph {
-    //Dummy id for oneDepthBFS to indicate when finished looking at all nodes in current level in queue
-    private static Integer LEVEL_END_NODE_ID = null; 
-    // Key is the id representing the node, Value is the list of edges for the node
-    private HashMap<Integer, HashSet<Integer>> nodes; 
+    // Returned by separation when the nodes are not within the requested degree of each other
+    public static final int NOT_CONNECTED = -1;
+    // Returned by separation when the search ran out of its SearchBudget before knowing
+    public static final int UNDETERMINED = -2;
+    // Key is the id representing the node, Value is the index of the node
+    private IntIntHashMap nodeIndexes;
+    // Id of the node at each index, from snapshotSize on
+    private int[] nodeIds;
+    // Ids of the nodes read from a snapshot in increasing order, node i has id snapshotIds[i]
+    private IntBuffer snapshotIds;
+    private int snapshotSize;
+    // Edges of each node, as lists of neighbor indexes
+    private IntAdjacency adjacency;
+    // Number of distinct edges added to the graph
+    private long edgeCount;
+    // Connected components of the nodes, so that pairs in different ones are not searched
+    private Components components;
+    // Edges removed since the components were found; the components may have split since
+    private long edgesRemovedSinceComponents;
+    // Edges removed in all, for the version of the graph
+    private long removedEdges;
+    // Nodes without edges, counted while the time window is enabled
+    private int isolatedNodes;
+    // Optional sets of each node's neighbors and two-hop neighbors, answers degrees up to 4 without searching
+    private NeighborhoodIndex neighborhoodIndex;
+    // Optional degrees of separation already found, in front of the search
+    private SeparationCache separationCache;
+    // Optional time of the latest payment on each edge, for edges that expire
+    private EdgeWindow window;
+    // Optional limit on the work of each search
+    private SearchBudget searchBudget;
+    // Optional log of the edges added since the checkpoint in logDirectory
+    private EdgeLog edgeLog;
+    private long checkpointEdges;
+    // Position and offset in the stream of the payment whose edge is added (setStreamPosition)
+    private long streamPosition;
+    private long streamOffset = -1;
+    // Payments whose answers recover found written
+    private long answeredPayments;
     
     /**
      * Default constructor, initialize empty graph
      */
     public Graph() {
-        this.nodes = new HashMap<Integer, HashSet<Integer>>();
+        this.nodeIndexes = new IntIntHashMap();
+        this.nodeIds = new int[16];
+        this.adjacency = new IntAdjacency();
+        this.components = new Components();
     }
 
     /**
@@ -35,19 +95,352 @@ public class Graph {
             throw new IllegalArgumentException("Invalid Graph");
         }
 
-        this.nodes = new HashMap<Integer, HashSet<Integer>>();
-        
-        for(Entry<Integer, HashSet<Integer>> entry : otherGraph.nodes.entrySet()){
-            this.nodes.put(entry.getKey(), new HashSet<Integer>(entry.getValue()));
+        this.nodeIndexes = new IntIntHashMap(otherGraph.nodeIndexes);
+        this.nodeIds = otherGraph.nodeIds.clone();
+        this.snapshotIds = otherGraph.snapshotIds;
+        this.snapshotSize = otherGraph.snapshotSize;
+        this.adjacency = new IntAdjacency(otherGraph.adjacency);
+        this.edgeCount = otherGraph.edgeCount;
+        this.components = new Components(otherGraph.components);
+        this.edgesRemovedSinceComponents = otherGraph.edgesRemovedSinceComponents;
+        this.removedEdges = otherGraph.removedEdges;
+        this.isolatedNodes = otherGraph.isolatedNodes;
+        if (otherGraph.neighborhoodIndex != null) {
+            this.neighborhoodIndex = otherGraph.neighborhoodIndex.copyFor(adjacency);
+        }
+        if (otherGraph.separationCache != null) {
+            this.separationCache = new SeparationCache(otherGraph.separationCache.capacity());
+        }
+        if (otherGraph.window != null) {
+            this.window = new EdgeWindow(otherGraph.window);
         }
+        this.searchBudget = otherGraph.searchBudget;
     }
     
+    /**
+     * Constructor- initialize graph from nodes already numbered densely: the node with index i has id ids[i]
+     * and the neighbor indexes neighbors[i], which must be distinct and listed on both ends of each edge.
+     * @param ids
+     * @param neighbors
+     * @param edgeCount number of distinct edges
+     */
+    Graph(int[] ids, int[][] neighbors, long edgeCount) {
+        if (ids.length != neighbors.length) {
+            throw new IllegalArgumentException("Need one neighbor list per node");
+        }
+        this.nodeIndexes = new IntIntHashMap(ids.length);
+        for (int index = 0; index < ids.length; index++) {
+            nodeIndexes.put(ids[index], index);
+        }
+        this.nodeIds = ids.length == 0 ? new int[16] : ids;
+        this.adjacency = new IntAdjacency(neighbors);
+        this.edgeCount = edgeCount;
+        this.components = Components.of(adjacency);
+    }
+
+    /**
+     * Constructor- initialize graph on an opened snapshot
+     * @param snapshot
+     */
+    private Graph(GraphSnapshot snapshot) {
+        this.nodeIndexes = new IntIntHashMap();
+        this.nodeIds = new int[16];
+        this.snapshotIds = snapshot.ids;
+        this.snapshotSize = snapshot.nodeCount;
+        this.adjacency = new IntAdjacency(snapshot.offsets, snapshot.targets, snapshot.nodeCount, snapshot.maxDegree);
+        this.edgeCount = snapshot.edgeCount;
+        // Snapshots of version 1 have no components, they are found by reading every list once
+        this.components = snapshot.componentRoots == null ? Components.of(adjacency)
+                : Components.of(snapshot.componentRoots, snapshot.componentSizes, snapshot.nodeCount,
+                        snapshot.componentClasses, snapshot.largestComponent);
+    }
+
+    /**
+     * Returns an empty graph whose neighbor lists are kept outside the Java heap: in filename, which is
+     * created or emptied and then mapped as it grows, or in direct buffers if filename is null. Direct buffers
+     * count against -XX:MaxDirectMemorySize, which defaults to the maximum heap size; a mapped file does not.
+     * The lists of such a graph cannot be compressed.
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static Graph offHeap(String filename) throws IOException {
+        Graph graph = new Graph();
+        OffHeapLists lists = filename == null ? new OffHeapLists() : new OffHeapLists(Paths.get(filename));
+        graph.adjacency = new IntAdjacency(lists);
+        return graph;
+    }
+
+    /**
+     * Returns the graph saved by writeSnapshot to filename. The file is mapped, not read: nodes and edges are
+     * read from it as they are used, and edges added later are kept on the heap. The connected components are
+     * mapped from the snapshot with it, and only the components that merge later are kept on the heap.
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static Graph openSnapshot(String filename) throws IOException {
+        return new Graph(GraphSnapshot.open(Paths.get(filename)));
+    }
+
+    /**
+     * Returns the graph whose edge log (enableEdgeLog) is in directory: its last checkpoint, opened as a
+     * snapshot, with the edges logged since added. Edges added afterwards are logged to the same log, with
+     * checkpointDue true every checkpointEdges of them.
+     * @param directory
+     * @param checkpointEdges
+     * @return
+     * @throws IOException if directory holds no checkpoint
+     */
+    public static Graph recover(String directory, long checkpointEdges) throws IOException {
+        return recover(directory, checkpointEdges, new String[0]);
+    }
+
+    /**
+     * Same as recover(directory, checkpointEdges) for a graph fed from a stream whose answers are written one
+     * line per payment to answerFiles, as given to checkpoint. The answer files are cut to the lines complete
+     * in all of them, answeredPayments, and only the edges of those payments are recovered: the graph holds
+     * those of the payments up to streamPosition, and the stream resumes by adding the edges of the payments
+     * after it up to answeredPayments again. The work is that of the edges and answers written since the
+     * last checkpoint.
+     * @param directory
+     * @param checkpointEdges
+     * @param answerFiles
+     * @return
+     * @throws IOException if directory holds no checkpoint, or the answer files end before it
+     */
+    public static Graph recover(String directory, long checkpointEdges, String[] answerFiles) throws IOException {
+        Path logDirectory = Paths.get(directory);
+        long checkpoint = EdgeLog.lastCheckpoint(logDirectory);
+        if (checkpoint < 0) {
+            throw new IOException(directory + " holds no checkpoint");
+        }
+        Graph graph = new Graph(GraphSnapshot.open(EdgeLog.checkpointFile(logDirectory, checkpoint)));
+        graph.edgeLog = EdgeLog.replay(logDirectory, checkpoint, graph, paths(answerFiles));
+        graph.checkpointEdges = checkpointEdges;
+        graph.streamPosition = graph.edgeLog.replayedPosition();
+        graph.streamOffset = graph.edgeLog.replayedOffset();
+        graph.answeredPayments = graph.edgeLog.answeredPayments();
+        return graph;
+    }
+
+    /**
+     * Returns true if directory holds the checkpoint of an edge log, for recover.
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static boolean hasCheckpoint(String directory) throws IOException {
+        return EdgeLog.lastCheckpoint(Paths.get(directory)) >= 0;
+    }
+
+    /**
+     * Logs every edge added from now on to a write-ahead log in directory, which is created if needed, and
+     * saves the graph there as its first checkpoint, so that recover can rebuild it. checkpointDue is then
+     * true every checkpointEdges logged edges. Replaces any log the directory held and starts the stream
+     * over. The time window must not be enabled.
+     * @param directory
+     * @param checkpointEdges
+     * @throws IOException
+     */
+    public void enableEdgeLog(String directory, long checkpointEdges) throws IOException {
+        if (window != null) {
+            throw new IllegalStateException("Edges that expire cannot be logged");
+        }
+        if (checkpointEdges < 1) {
+            throw new IllegalArgumentException("Invalid checkpoint interval " + checkpointEdges);
+        }
+        disableEdgeLog();
+        Path logDirectory = Paths.get(directory);
+        Files.createDirectories(logDirectory);
+        edgeLog = EdgeLog.create(logDirectory);
+        this.checkpointEdges = checkpointEdges;
+        streamPosition = 0;
+        streamOffset = -1;
+        answeredPayments = 0;
+        writeSnapshot(EdgeLog.checkpointFile(logDirectory, 0).toString());
+    }
+
+    /**
+     * Sets the stream position and offset logged with the edges added next: the number of payments read from
+     * the stream up to the one adding them, and the byte offset of its line.
+     * @param position
+     * @param offset
+     */
+    public void setStreamPosition(long position, long offset) {
+        this.streamPosition = position;
+        this.streamOffset = offset;
+    }
+
+    public long streamPosition() {
+        return streamPosition;
+    }
+
+    public long streamOffset() {
+        return streamOffset;
+    }
+
+    /**
+     * Returns the number of payments whose answers recover found in the answer files, 0 if the graph was not
+     * recovered.
+     * @return
+     */
+    public long answeredPayments() {
+        return answeredPayments;
+    }
+
+    /**
+     * Returns true if the edge log is enabled, checkpointEdges edges were logged since the last checkpoint,
+     * and no checkpoint is being saved.
+     * @return
+     */
+    public boolean checkpointDue() {
+        return edgeLog != null && edgeLog.checkpointDue(checkpointEdges);
+    }
+
+    /**
+     * Same as checkpoint(answerFiles) for a graph not fed from a stream.
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        checkpoint(new String[0]);
+    }
+
+    /**
+     * Saves the graph as the checkpoint of its edge log, at the stream position: the log starts a new
+     * segment, and a frozen copy of the graph (frozen) is saved on another thread once answerFiles, which must
+     * hold the answers up to the stream position, are forced to disk. Only the copy costs the caller, O(nodes):
+     * the neighbor lists are shared, on or off the heap.
+     * Waits for the checkpoint being saved, if any. Must be called by the thread that adds edges.
+     * @param answerFiles
+     * @throws IOException
+     */
+    public void checkpoint(String[] answerFiles) throws IOException {
+        if (edgeLog == null) {
+            throw new IllegalStateException("The edge log is not enabled");
+        }
+        Graph frozen = frozen();
+        boolean saving = false;
+        try {
+            edgeLog.checkpoint(frozen, streamPosition, streamOffset, paths(answerFiles));
+            saving = true;
+        } finally {
+            if (!saving) {
+                frozen.release();
+            }
+        }
+    }
+
+    private static Path[] paths(String[] filenames) {
+        Path[] paths = new Path[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            paths[i] = Paths.get(filenames[i]);
+        }
+        return paths;
+    }
+
+    /**
+     * Returns a copy of the nodes, edges and components of the graph as they are now, which stays the same
+     * while edges are added to this graph. The neighbor arrays are shared (IntAdjacency.frozen); the graph
+     * must not lose edges while the copy is in use.
+     * @return
+     */
+    private Graph frozen() {
+        Graph frozen = new Graph();
+        frozen.nodeIds = nodeIds;
+        frozen.snapshotIds = snapshotIds;
+        frozen.snapshotSize = snapshotSize;
+        frozen.adjacency = adjacency.frozen();
+        frozen.edgeCount = edgeCount;
+        frozen.components = new Components(components);
+        return frozen;
+    }
+
+    /**
+     * Releases a copy returned by frozen once it is saved, see IntAdjacency.release.
+     */
+    void release() {
+        adjacency.release();
+    }
+
+    /**
+     * Waits until the edges logged so far are on disk and closes the edge log, if it is enabled.
+     * @throws IOException
+     */
+    public void disableEdgeLog() throws IOException {
+        if (edgeLog != null) {
+            try {
+                edgeLog.close();
+            } finally {
+                edgeLog = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the edge log, or null if it is not enabled.
+     * @return
+     */
+    EdgeLog edgeLog() {
+        return edgeLog;
+    }
+
+    /**
+     * Saves the nodes and edges of the graph to filename, replacing the file once it is complete.
+     * The neighborhood index is not saved.
+     * @param filename
+     * @throws IOException
+     */
+    public void writeSnapshot(String filename) throws IOException {
+        int[] ids = new int[adjacency.size()];
+        for (int index = 0; index < ids.length; index++) {
+            ids[index] = idOf(index);
+        }
+        GraphSnapshot.write(Paths.get(filename), ids, adjacency, edgeCount, components);
+    }
+
+    /**
+     * Packs the neighbor lists into compressed immutable lists (CompressedLists), a few bytes per edge
+     * instead of two ints plus the arrays around them, for a graph that is mostly loaded. Searches read the
+     * compressed lists as they are; edges added afterwards are kept in small lists beside them.
+     */
+    public void compress() {
+        if (window != null) {
+            throw new IllegalStateException("Compressed lists cannot lose expired edges");
+        }
+        if (adjacency.isOffHeap()) {
+            throw new IllegalStateException("Lists kept off the heap cannot be compressed");
+        }
+        adjacency = adjacency.compress();
+        if (neighborhoodIndex != null) {
+            neighborhoodIndex = neighborhoodIndex.copyFor(adjacency);
+        }
+    }
+
     /**
      * Adds a node with the given id to the graph. The node has no edges.
      * @param nodeId
+     * @throws IllegalArgumentException if the graph already has a node with that id
      */
     public void addNode(Integer nodeId) {
-        nodes.put(nodeId, new HashSet<Integer>());
+        if (containsNode(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " is already in the graph");
+        }
+
+        int index = adjacency.addNode();
+        if (window != null) {
+            isolatedNodes++;
+        }
+        components.addNode();
+        if (neighborhoodIndex != null) {
+            neighborhoodIndex.addNode();
+        }
+        int slot = index - snapshotSize;
+        if (slot == nodeIds.length) {
+            nodeIds = Arrays.copyOf(nodeIds, Math.max(16, slot + (slot >> 1)));
+        }
+        nodeIds[slot] = nodeId;
+        nodeIndexes.put(nodeId, index);
     }
     
     /**
@@ -56,21 +449,114 @@ public class Graph {
      * @return
      */
     public boolean containsNode(Integer id) {
-        return nodes.containsKey(id);
+        return indexOf(id) != IntIntHashMap.NO_VALUE;
     }
 
     /**
-     * Adds an edge from node with id nodeId1 and node with id nodeId2
+     * Adds an edge from node with id nodeId1 and node with id nodeId2, and logs it if it is new and the edge
+     * log is enabled.
      * @param nodeId1
      * @param nodeId2
      */
     public void addEdge(Integer nodeId1, Integer nodeId2) {
-        if (!nodes.containsKey(nodeId1) || !nodes.containsKey(nodeId2)) {
+        int index1 = indexOf(nodeId1);
+        int index2 = indexOf(nodeId2);
+        if (index1 == IntIntHashMap.NO_VALUE || index2 == IntIntHashMap.NO_VALUE) {
             throw new IllegalArgumentException();
         }
         
-        nodes.get(nodeId1).add(nodeId2);
-        nodes.get(nodeId2).add(nodeId1);
+        if (window != null) {
+            // Ends that had no edge are no longer isolated
+            if (adjacency.degree(index1) == 0) {
+                isolatedNodes--;
+            }
+            if (index2 != index1 && adjacency.degree(index2) == 0) {
+                isolatedNodes--;
+            }
+        }
+        boolean added = adjacency.addNeighbor(index1, index2);
+        if (adjacency.addNeighbor(index2, index1)) {
+            added = true;
+        }
+        if (added) {
+            edgeCount++;
+            components.union(index1, index2);
+            if (neighborhoodIndex != null) {
+                neighborhoodIndex.addEdge(index1, index2);
+            }
+            if (edgeLog != null) {
+                edgeLog.append(nodeId1, nodeId2, streamPosition, streamOffset);
+            }
+        }
+    }
+
+    /**
+     * Adds an edge from node with id nodeId1 and node with id nodeId2 for a payment at time, in seconds, and
+     * adds the nodes that are not in the graph. The time window must be enabled: the window is first moved
+     * to time (advanceTime), and the edge is only added if time is still in it. An edge that is already in
+     * the graph is kept for the length of the window from its latest payment.
+     * @param nodeId1
+     * @param nodeId2
+     * @param time
+     */
+    public void addEdge(Integer nodeId1, Integer nodeId2, long time) {
+        advanceTime(time);
+        if (window.isExpired(time)) {
+            return;
+        }
+        if (!containsNode(nodeId1)) {
+            addNode(nodeId1);
+        }
+        if (!containsNode(nodeId2)) {
+            addNode(nodeId2);
+        }
+        addEdge(nodeId1, nodeId2);
+        window.touch(nodeId1, nodeId2, time);
+    }
+
+    /**
+     * Moves the end of the time window to time, in seconds, if it is later than the latest time seen, and
+     * removes the edges whose latest payment is now out of the window. Nodes that are left without edges may
+     * be removed.
+     * @param time
+     */
+    public void advanceTime(long time) {
+        if (window == null) {
+            throw new IllegalStateException("The time window is not enabled");
+        }
+        int count = window.advance(time);
+        if (count == 0) {
+            return;
+        }
+        long[] expired = window.expired();
+        for (int i = 0; i < count; i++) {
+            int index1 = indexOf(EdgeWindow.id1(expired[i]));
+            int index2 = indexOf(EdgeWindow.id2(expired[i]));
+            if (index1 == IntIntHashMap.NO_VALUE || index2 == IntIntHashMap.NO_VALUE) {
+                continue;
+            }
+            boolean removed1 = adjacency.removeNeighbor(index1, index2);
+            boolean removed2 = index1 != index2 && adjacency.removeNeighbor(index2, index1);
+            if (removed1 && adjacency.degree(index1) == 0) {
+                isolatedNodes++;
+            }
+            if (removed2 && adjacency.degree(index2) == 0) {
+                isolatedNodes++;
+            }
+            if (removed1 || removed2) {
+                edgeCount--;
+                edgesRemovedSinceComponents++;
+                removedEdges++;
+                if (neighborhoodIndex != null) {
+                    neighborhoodIndex.removeEdge(index1, index2);
+                }
+            }
+        }
+        boolean renumbered = isolatedNodes > adjacency.size() / 2;
+        if (renumbered) {
+            removeIsolatedNodes();
+        }
+        edgesRemoved(renumbered);
     }
 
     /**
@@ -81,12 +567,413 @@ public class Graph {
      * @return
      */
     public boolean containsEdge(Integer nodeId1, Integer nodeId2) {
+        int index1 = indexOf(nodeId1);
+        int index2 = indexOf(nodeId2);
         // Check if both nodes in the graph
-        if (!nodes.containsKey(nodeId1) || !nodes.containsKey(nodeId2)) {
+        if (index1 == IntIntHashMap.NO_VALUE || index2 == IntIntHashMap.NO_VALUE) {
+            return false;
+        }
+
+        return adjacency.hasNeighbor(index1, index2);
+    }
+
+    /**
+     * Returns the index of the node with id nodeId, or -1 if there is no such node.
+     * @param nodeId
+     * @return
+     */
+    int indexOf(int nodeId) {
+        int index = nodeIndexes.get(nodeId);
+        if (index != IntIntHashMap.NO_VALUE || snapshotSize == 0) {
+            return index;
+        }
+        int low = 0;
+        int high = snapshotSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int id = snapshotIds.get(middle);
+            if (id < nodeId) {
+                low = middle + 1;
+            } else if (id > nodeId) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return IntIntHashMap.NO_VALUE;
+    }
+
+    /**
+     * Returns the id of the node with the given index.
+     * @param index
+     * @return
+     */
+    int idOf(int index) {
+        return index < snapshotSize ? snapshotIds.get(index) : nodeIds[index - snapshotSize];
+    }
+
+    /**
+     * Returns 0 if the node with id nodeId is one of the nodes with the first count indexes of nodes, 1 if
+     * one of its neighbors is, else 2. nodeSet must hold the same indexes. A hub looks them up in its
+     * neighbor set when there are fewer of them than it has neighbors.
+     * @param nodeId
+     * @param nodes
+     * @param count
+     * @param nodeSet
+     * @return
+     */
+    int distanceToAny(int nodeId, int[] nodes, int count, IntHashSet nodeSet) {
+        int index = indexOf(nodeId);
+        if (index == IntIntHashMap.NO_VALUE) {
+            return 2;
+        }
+        if (nodeSet.contains(index)) {
+            return 0;
+        }
+        int degree = adjacency.degree(index);
+        if (adjacency.isHub(index) && degree > count) {
+            for (int i = 0; i < count; i++) {
+                if (adjacency.hasNeighbor(index, nodes[i])) {
+                    return 1;
+                }
+            }
+        } else {
+            int[] neighbors = adjacency.neighbors(index);
+            for (int i = 0; i < degree; i++) {
+                if (nodeSet.contains(neighbors[i])) {
+                    return 1;
+                }
+            }
+        }
+        return 2;
+    }
+
+    /**
+     * Returns the number of nodes in the graph.
+     * @return
+     */
+    public int nodeCount() {
+        return adjacency.size();
+    }
+
+    /**
+     * Returns the number of distinct edges in the graph.
+     * @return
+     */
+    public long edgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the graph's nodes and edges.
+     * @return
+     */
+    public long memoryFootprint() {
+        long bytes = nodeIndexes.memoryFootprint() + MemoryEstimates.intArray(nodeIds.length) + adjacency.memoryFootprint()
+                + components.memoryFootprint();
+        if (neighborhoodIndex != null) {
+            bytes += neighborhoodIndex.memoryFootprint();
+        }
+        if (separationCache != null) {
+            bytes += separationCache.memoryFootprint();
+        }
+        if (window != null) {
+            bytes += window.memoryFootprint();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes of the neighbor lists kept off the heap, 0 if they are on the heap.
+     * @return
+     */
+    public long offHeapFootprint() {
+        return adjacency.offHeapFootprint();
+    }
+
+    /**
+     * Returns the number of edges removed so far because they left the time window.
+     * @return
+     */
+    public long expiredEdgeCount() {
+        return window == null ? 0 : window.expiredTotal();
+    }
+
+    /**
+     * Brings up to date what only follows a growing graph, for a graph that lost edges; the neighborhood
+     * index is updated edge by edge as they are removed.
+     * The components found before edges were removed are still a safe filter, only coarser: a component may
+     * have split, never merged. So they are found again only when the nodes were renumbered or when the edges
+     * removed since outnumber half of the edges, which keeps the cost at O(1) per removed edge.
+     * @param renumbered true if the nodes were renumbered
+     */
+    private void edgesRemoved(boolean renumbered) {
+        if (renumbered || edgesRemovedSinceComponents > edgeCount / 2) {
+            Components previous = components;
+            components = Components.of(adjacency);
+            components.addRejections(previous);
+            edgesRemovedSinceComponents = 0;
+        }
+        if (renumbered && neighborhoodIndex != null) {
+            neighborhoodIndex = neighborhoodIndex.copyFor(adjacency);
+        }
+        if (separationCache != null) {
+            // Pairs may now be further apart, and nodes may have been renumbered
+            separationCache.invalidate(version());
+        }
+    }
+
+    /**
+     * Returns the version of the graph for the separation cache: it grows by one with every edge added or
+     * removed, as an edge removed takes one from the edge count and adds two here.
+     */
+    private long version() {
+        return edgeCount + 2 * removedEdges;
+    }
+
+    /**
+     * Drops the nodes without edges, numbering the others densely again in the same order. The graph must
+     * not have base lists.
+     */
+    private void removeIsolatedNodes() {
+        int size = adjacency.size();
+        int[] newIndexes = new int[size];
+        int kept = 0;
+        for (int node = 0; node < size; node++) {
+            newIndexes[node] = adjacency.degree(node) == 0 ? IntIntHashMap.NO_VALUE : kept++;
+        }
+        int[] ids = new int[kept];
+        // Lists kept off the heap are renumbered where they are
+        int[][] lists = adjacency.isOffHeap() ? null : new int[kept][];
+        IntIntHashMap indexes = new IntIntHashMap(kept);
+        for (int node = 0; node < size; node++) {
+            int index = newIndexes[node];
+            if (index == IntIntHashMap.NO_VALUE) {
+                continue;
+            }
+            if (lists != null) {
+                int degree = adjacency.degree(node);
+                int[] neighbors = adjacency.neighbors(node);
+                int[] list = new int[degree];
+                for (int i = 0; i < degree; i++) {
+                    list[i] = newIndexes[neighbors[i]];
+                }
+                lists[index] = list;
+            }
+            ids[index] = idOf(node);
+            indexes.put(ids[index], index);
+        }
+        nodeIndexes = indexes;
+        nodeIds = kept == 0 ? new int[16] : ids;
+        snapshotIds = null;
+        snapshotSize = 0;
+        if (lists != null) {
+            adjacency = new IntAdjacency(lists);
+        } else {
+            adjacency.renumber(newIndexes, kept);
+        }
+        isolatedNodes = 0;
+    }
+
+    /**
+     * Returns the number of connected components of the graph, counting every node without edges as one.
+     * With a time window, this may be the count from before the latest expired edges split some of them.
+     * @return
+     */
+    public int componentCount() {
+        return components.count();
+    }
+
+    /**
+     * Returns the number of nodes of the largest connected component.
+     * @return
+     */
+    public int largestComponentSize() {
+        return components.largest();
+    }
+
+    /**
+     * Returns how many connected components there are of each size: entry i counts the components of 2^i to
+     * 2^(i+1)-1 nodes.
+     * @return
+     */
+    public long[] componentSizeHistogram() {
+        return components.sizeClasses();
+    }
+
+    /**
+     * Returns the connected components of the graph.
+     * @return
+     */
+    Components components() {
+        return components;
+    }
+
+    /**
+     * Builds an index of each node's neighbors and two-hop neighbors, kept up to date by addEdge, so that
+     * separation up to degree 4 is answered by set intersections instead of a search.
+     * Nodes whose two-hop set has more than maxTwoHopSize nodes, or that do not fit in maxBytes, are left
+     * out of the index and still searched.
+     * @param maxTwoHopSize
+     * @param maxBytes
+     */
+    public void enableNeighborhoodIndex(int maxTwoHopSize, long maxBytes) {
+        neighborhoodIndex = new NeighborhoodIndex(adjacency, maxTwoHopSize, maxBytes);
+    }
+
+    /**
+     * Drops the index built by enableNeighborhoodIndex.
+     */
+    public void disableNeighborhoodIndex() {
+        neighborhoodIndex = null;
+    }
+
+    /**
+     * Returns the number of nodes answered by the neighborhood index, 0 if it is not enabled.
+     * @return
+     */
+    public int neighborhoodIndexedNodes() {
+        return neighborhoodIndex == null ? 0 : neighborhoodIndex.indexedNodes();
+    }
+
+    /**
+     * Keeps the degrees of separation found by separation for up to about capacity pairs, so that a pair
+     * asked again is answered without a search, or with a shorter one, as long as edges are only added.
+     * Replaces any earlier cache.
+     * @param capacity
+     */
+    public void enableSeparationCache(int capacity) {
+        separationCache = new SeparationCache(capacity);
+    }
+
+    /**
+     * Drops the cache built by enableSeparationCache.
+     */
+    public void disableSeparationCache() {
+        separationCache = null;
+    }
+
+    /**
+     * Limits the work of each search of separation to budget: a query whose search uses it up is answered
+     * UNDETERMINED instead. Replaces any earlier budget.
+     * @param budget
+     */
+    public void enableSearchBudget(SearchBudget budget) {
+        searchBudget = budget;
+    }
+
+    /**
+     * Drops the budget set by enableSearchBudget.
+     */
+    public void disableSearchBudget() {
+        searchBudget = null;
+    }
+
+    /**
+     * Returns the budget of each search, or null if it is not limited.
+     * @return
+     */
+    public SearchBudget searchBudget() {
+        return searchBudget;
+    }
+
+    /**
+     * Returns true if a query answered separation by separation is within degree: if the separation is at
+     * most degree, or if it is UNDETERMINED and the search budget trusts such queries.
+     * @param separation
+     * @param degree
+     * @return
+     */
+    public boolean withinDegree(int separation, int degree) {
+        if (separation == UNDETERMINED) {
+            SearchBudget budget = searchBudget;
+            return budget != null && budget.trustsUndetermined();
+        }
+        return separation != NOT_CONNECTED && separation <= degree;
+    }
+
+    /**
+     * Makes the edges added with a time (addEdge(nodeId1, nodeId2, time)) expire once they have had no
+     * payment for windowSeconds, within windowSeconds / EdgeWindow.BUCKETS. Edges already in the graph, or
+     * added without a time, never expire. The lists must be on the heap: not those of a snapshot, nor
+     * compressed. They may be kept off the heap.
+     * @param windowSeconds
+     */
+    public void enableTimeWindow(long windowSeconds) {
+        if (adjacency.hasBase()) {
+            throw new IllegalStateException("Snapshot and compressed lists cannot lose expired edges");
+        }
+        if (edgeLog != null) {
+            throw new IllegalStateException("Edges that expire cannot be logged");
+        }
+        window = new EdgeWindow(windowSeconds);
+        isolatedNodes = 0;
+        for (int node = 0; node < adjacency.size(); node++) {
+            if (adjacency.degree(node) == 0) {
+                isolatedNodes++;
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the time window in seconds, 0 if it is not enabled.
+     * @return
+     */
+    public long timeWindow() {
+        return window == null ? 0 : window.windowSeconds();
+    }
+
+    /**
+     * Returns the cache of separation, or null if it is not enabled.
+     * @return
+     */
+    SeparationCache separationCache() {
+        return separationCache;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     * Two graphs are equal if they have the same node ids and the same edges between them, whatever the
+     * order the nodes and edges were added in.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Graph)) {
+            return false;
+        }
+        Graph otherGraph = (Graph) other;
+        if (otherGraph.nodeCount() != nodeCount() || otherGraph.edgeCount != edgeCount) {
             return false;
         }
+        for (int node = 0; node < adjacency.size(); node++) {
+            int otherNode = otherGraph.indexOf(idOf(node));
+            if (otherNode == IntIntHashMap.NO_VALUE || otherGraph.adjacency.degree(otherNode) != adjacency.degree(node)) {
+                return false;
+            }
+            int[] neighbors = adjacency.neighbors(node);
+            for (int i = 0; i < adjacency.degree(node); i++) {
+                int otherNeighbor = otherGraph.indexOf(idOf(neighbors[i]));
+                if (otherNeighbor == IntIntHashMap.NO_VALUE || !otherGraph.adjacency.hasNeighbor(otherNode, otherNeighbor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
 
-        return nodes.get(nodeId1).contains(nodeId2);
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int node = 0; node < adjacency.size(); node++) {
+            hash += IntIntHashMap.hash(idOf(node)) ^ adjacency.degree(node);
+        }
+        return hash;
     }
 
     /* (non-Javadoc)
@@ -95,11 +982,12 @@ public class Graph {
      */
     public String toString() {
         StringBuilder str = new StringBuilder("");
-        for (Entry<Integer, HashSet<Integer>> node : nodes.entrySet()) {
-            str.append(node.getKey());
+        for (int node = 0; node < adjacency.size(); node++) {
+            str.append(idOf(node));
             str.append("- ");
-            for (Integer neighbors : node.getValue()) {
-                str.append(neighbors);
+            int[] neighbors = adjacency.neighbors(node);
+            for (int i = 0; i < adjacency.degree(node); i++) {
+                str.append(idOf(neighbors[i]));
                 str.append(",");
             }
             str.append("\n");
@@ -107,94 +995,53 @@ public class Graph {
         return str.toString();
     }
 
-    /**
-     * Traverse one more degree away in BFS, from the node corresponding to queue.
-     * visitedThisNode is the list of nodes already reached from the node corresponding to queue.
-     * visitedOtherNode is the list of nodes already reached from the searching starting at the other node.
-     *
-     * @param queue
-     * @param visitedThisNode
-     * @param visitedOtherNode
-     * @return Return true if found a node already visited by other BFS
-     */
-    private boolean oneDepthBFS(Queue<Integer> queue, Set<Integer> visitedThisNode, Set<Integer> visitedOtherNode) {
-        //Keep going through all nodes in queue at BFSDepth, until reach dummy node indicating finished seaching this level
-        while (!queue.isEmpty()) {
-            Integer curId = queue.poll();
-
-            //If finished seaching this level, but there are more nodes to search in next level
-            //Add dummy node to end of next level's nodes in queue
-            if(curId == LEVEL_END_NODE_ID){
-                if(!queue.isEmpty()){
-                    queue.add(LEVEL_END_NODE_ID);
-                }
-                break;
-            }
-            
-            for (Integer friendId : nodes.get(curId)) {
-                //Check if friendId node is in set of visitedOthers
-                //If true, the two BFS overlap and there is a path between the start and end nodes
-                if (visitedOtherNode.contains(friendId)) {
-                      return true;
-                }
-                
-                // Don't add friendId to queue if already visited that node
-                if (!visitedThisNode.contains(friendId)) {
-                    visitedThisNode.add(friendId);
-                    queue.add(friendId);
-                }
-            }
-        }
-        return false;
-    }
-    
     /**
      * Performs breadth-first search on the graph starting at the node with the id startNodeId.
      * Returns true if a node with id endNodeId is discovered within degreeSeparation depth from
-     * the starting node.
+     * the starting node, or if the search ran out of budget and the budget trusts such queries.
      * @param startNodeId
      * @param endNodeId
      * @param degreeSeparation
      * @return
      */
     public boolean BFS(int startNodeId, int endNodeId, int degreeSeparation) {
-        if (degreeSeparation < 0 || !nodes.containsKey(startNodeId) || !nodes.containsKey(endNodeId)) {
-            return false;
-        }
+        return withinDegree(separation(startNodeId, endNodeId, degreeSeparation), degreeSeparation);
+    }
 
-        if(startNodeId == endNodeId){
-            return true;
+    /**
+     * Returns the degree of separation between the nodes with ids startNodeId and endNodeId,
+     * ie. the length of the shortest path between them, if it is at most maxDegree.
+     * Returns NOT_CONNECTED if there is no such path or one of the nodes is not in the graph, and
+     * UNDETERMINED if the search ran out of the budget set by enableSearchBudget before knowing.
+     * One call answers BFS for every degreeSeparation up to maxDegree.
+     * The search reuses per-thread buffers, so it does not allocate once warmed up.
+     * @param startNodeId
+     * @param endNodeId
+     * @param maxDegree
+     * @return
+     */
+    public int separation(int startNodeId, int endNodeId, int maxDegree) {
+        int startIndex = indexOf(startNodeId);
+        int endIndex = indexOf(endNodeId);
+        if (maxDegree < 0 || startIndex == IntIntHashMap.NO_VALUE || endIndex == IntIntHashMap.NO_VALUE
+                || !components.connected(startIndex, endIndex)) {
+            return NOT_CONNECTED;
+        }
+        if (window != null && startIndex == endIndex && adjacency.degree(startIndex) == 0) {
+            // A node whose edges all expired may be dropped any time, it answers as if it already was
+            return NOT_CONNECTED;
         }
 
-        //In queue, hold tuple (nodeId, depth of node from startNodeId [or endNodeId])
-        Queue<Integer> queueStart = new LinkedList<>();
-        Queue<Integer> queueEnd = new LinkedList<>();
-
-        Set<Integer> visitedStart = new HashSet<>();// The set of nodes already visited from Start
-        Set<Integer> visitedEnd = new HashSet<>();// The set of nodes already visited from End
-
-        queueStart.add(startNodeId);
-        queueEnd.add(endNodeId);
-        queueStart.add(LEVEL_END_NODE_ID);
-        queueEnd.add(LEVEL_END_NODE_ID);
-
-        visitedStart.add(startNodeId);
-        visitedEnd.add(endNodeId);
-        
-        int curDepth = 0;
-        while ((curDepth < degreeSeparation) && !queueStart.isEmpty() && !queueEnd.isEmpty()) {
-            //Do one level BFS from start node
-            if (oneDepthBFS(queueStart, visitedStart, visitedEnd)){
-                return true;
+        if (neighborhoodIndex != null) {
+            int separation = neighborhoodIndex.separation(startIndex, endIndex, maxDegree);
+            if (separation != NeighborhoodIndex.UNKNOWN) {
+                return separation;
             }
-            curDepth++;
-            
-            //Do one level BFS from end node
-            if ((curDepth < degreeSeparation) && oneDepthBFS(queueEnd, visitedEnd, visitedStart)){
-                return true;
-            }
-            curDepth++;
         }
-        return false;
+        if (separationCache != null) {
+            return separationCache.separation(adjacency, startIndex, endIndex, maxDegree, version(), searchBudget);
+        }
+        return BidirectionalSearch.forCurrentThread().separation(adjacency, startIndex, endIndex, maxDegree,
+                searchBudget);
     }
 }
@@ -0,0 +1,250 @@
+package com.paymo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * GraphSnapshot is the binary file a Graph is saved to and opened from without parsing the batch file again.
+ *
+ * The file is little-endian: a 32 byte header (magic, version, node count, largest degree, edge count and
+ * number of neighbor entries), the node ids in increasing order, then the neighbor lists of those nodes in
+ * the same order as offsets (one int per node plus a final one) into a flat array of node indexes, each list
+ * sorted. A node's index is its position in the id table, so an id is looked up by binary search. Version 3
+ * adds the connected components of the graph (Components) as two more tables of one int per node, the index
+ * of the root of the node's component and the number of nodes of the component for a root (0 for others),
+ * followed by the size of the largest component and the number of components of each size class (one long
+ * per class).
+ *
+ * Opening a snapshot only reads its header and the component counts, and maps the tables; their pages are
+ * read by the operating system when a lookup, a search or a component check first touches them. Version 2
+ * snapshots, whose component counts are found by reading the sizes table, and version 1 snapshots, which
+ * have no components, are still opened.
+ *
+ * @author rena
+ */
+final class GraphSnapshot {
+    private static final int MAGIC = 0x47594150; // "PAYG" in the file
+    private static final int VERSION = 3;
+    // Versions without the component counts, and without the component tables
+    private static final int VERSION_WITHOUT_COUNTS = 2;
+    private static final int VERSION_WITHOUT_COMPONENTS = 1;
+    private static final int COUNTS_BYTES = 4 + 8 * Components.SIZE_CLASSES;
+    private static final int HEADER_BYTES = 32;
+    // Each table is mapped as one buffer, which can hold at most Integer.MAX_VALUE bytes
+    private static final long MAX_TABLE_INTS = Integer.MAX_VALUE / 4;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    final int nodeCount;
+    final int maxDegree;
+    final long edgeCount;
+    // Node ids in increasing order
+    final IntBuffer ids;
+    // Neighbors of node i are targets[offsets[i]..offsets[i + 1])
+    final IntBuffer offsets;
+    final IntBuffer targets;
+    // Root of the component of each node and number of nodes of the component of each root, null for version 1
+    final IntBuffer componentRoots;
+    final IntBuffer componentSizes;
+    // Number of components of each size class and size of the largest, null and 0 before version 3
+    final long[] componentClasses;
+    final int largestComponent;
+
+    private GraphSnapshot(int nodeCount, int maxDegree, long edgeCount, IntBuffer ids, IntBuffer offsets,
+            IntBuffer targets, IntBuffer componentRoots, IntBuffer componentSizes, long[] componentClasses,
+            int largestComponent) {
+        this.nodeCount = nodeCount;
+        this.maxDegree = maxDegree;
+        this.edgeCount = edgeCount;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.componentRoots = componentRoots;
+        this.componentSizes = componentSizes;
+        this.componentClasses = componentClasses;
+        this.largestComponent = largestComponent;
+    }
+
+    /**
+     * Maps the snapshot in file. The mapping stays valid after this returns, until the buffers are collected.
+     * @param file
+     * @return
+     * @throws IOException if the file is not a snapshot of a supported version
+     */
+    static GraphSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a graph snapshot");
+            }
+            int version = header.getInt(4);
+            if (version != VERSION && version != VERSION_WITHOUT_COUNTS && version != VERSION_WITHOUT_COMPONENTS) {
+                throw new IOException(file + " is a graph snapshot of unsupported version " + version);
+            }
+            int nodeCount = header.getInt(8);
+            int maxDegree = header.getInt(12);
+            long edgeCount = header.getLong(16);
+            long targetCount = header.getLong(24);
+            long componentBytes = version == VERSION_WITHOUT_COMPONENTS ? 0
+                    : 8L * nodeCount + (version == VERSION ? COUNTS_BYTES : 0);
+            if (nodeCount < 0 || maxDegree < 0 || targetCount < 0 || targetCount > MAX_TABLE_INTS || channel.size()
+                    != HEADER_BYTES + 4L * (2L * nodeCount + 1 + targetCount) + componentBytes) {
+                throw new IOException(file + " is a truncated or corrupt graph snapshot");
+            }
+
+            long position = HEADER_BYTES;
+            IntBuffer ids = map(channel, position, nodeCount);
+            position += 4L * nodeCount;
+            IntBuffer offsets = map(channel, position, nodeCount + 1);
+            position += 4L * (nodeCount + 1);
+            IntBuffer targets = map(channel, position, targetCount);
+            position += 4L * targetCount;
+            if (version == VERSION_WITHOUT_COMPONENTS) {
+                return new GraphSnapshot(nodeCount, maxDegree, edgeCount, ids, offsets, targets, null, null, null, 0);
+            }
+            IntBuffer roots = map(channel, position, nodeCount);
+            position += 4L * nodeCount;
+            IntBuffer sizes = map(channel, position, nodeCount);
+            position += 4L * nodeCount;
+            if (version == VERSION_WITHOUT_COUNTS) {
+                return new GraphSnapshot(nodeCount, maxDegree, edgeCount, ids, offsets, targets, roots, sizes, null, 0);
+            }
+            ByteBuffer counts = ByteBuffer.allocate(COUNTS_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (counts.hasRemaining() && channel.read(counts, position + counts.position()) >= 0) {
+                // read all the counts
+            }
+            counts.flip();
+            int largest = counts.getInt();
+            long[] classes = new long[Components.SIZE_CLASSES];
+            long components = 0;
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = counts.getLong();
+                components += classes[i];
+            }
+            if (largest < 0 || largest > nodeCount || components > nodeCount || (components == 0) != (nodeCount == 0)) {
+                throw new IOException(file + " is a corrupt graph snapshot");
+            }
+            return new GraphSnapshot(nodeCount, maxDegree, edgeCount, ids, offsets, targets, roots, sizes, classes,
+                    largest);
+        }
+    }
+
+    private static IntBuffer map(FileChannel channel, long position, long ints) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, 4 * ints).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * Writes a snapshot of the nodes 0..adjacency.size()-1 of adjacency, with ids[i] the id of node i and
+     * components their connected components, to file. The snapshot is written next to file and moved over it
+     * once complete, so a reader never sees part of it.
+     * @param file
+     * @param ids
+     * @param adjacency
+     * @param edgeCount
+     * @param components
+     * @throws IOException
+     */
+    static void write(Path file, int[] ids, IntAdjacency adjacency, long edgeCount, Components components)
+            throws IOException {
+        int nodeCount = adjacency.size();
+
+        // Renumber the nodes in increasing id order: order[rank] is a node, ranks[node] its new index
+        long[] keys = new long[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            keys[node] = ((long) ids[node] << 32) | node;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[nodeCount];
+        int[] ranks = new int[nodeCount];
+        long targetCount = 0;
+        int maxDegree = 0;
+        for (int rank = 0; rank < nodeCount; rank++) {
+            int node = (int) keys[rank];
+            order[rank] = node;
+            ranks[node] = rank;
+            targetCount += adjacency.degree(node);
+            maxDegree = Math.max(maxDegree, adjacency.degree(node));
+        }
+        if (targetCount > MAX_TABLE_INTS) {
+            throw new IOException("Graph has too many edges for a snapshot");
+        }
+
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(nodeCount).putInt(maxDegree)
+                    .putLong(edgeCount).putLong(targetCount);
+            for (int rank = 0; rank < nodeCount; rank++) {
+                buffer = putInt(channel, buffer, ids[order[rank]]);
+            }
+            int offset = 0;
+            buffer = putInt(channel, buffer, offset);
+            for (int rank = 0; rank < nodeCount; rank++) {
+                offset += adjacency.degree(order[rank]);
+                buffer = putInt(channel, buffer, offset);
+            }
+            int[] list = new int[maxDegree];
+            for (int rank = 0; rank < nodeCount; rank++) {
+                int node = order[rank];
+                int degree = adjacency.degree(node);
+                int[] neighbors = adjacency.neighbors(node, list);
+                for (int i = 0; i < degree; i++) {
+                    list[i] = ranks[neighbors[i]];
+                }
+                Arrays.sort(list, 0, degree);
+                for (int i = 0; i < degree; i++) {
+                    buffer = putInt(channel, buffer, list[i]);
+                }
+            }
+            for (int rank = 0; rank < nodeCount; rank++) {
+                buffer = putInt(channel, buffer, ranks[components.componentOf(order[rank])]);
+            }
+            for (int rank = 0; rank < nodeCount; rank++) {
+                int node = order[rank];
+                int root = components.componentOf(node);
+                buffer = putInt(channel, buffer, root == node ? components.componentSize(root) : 0);
+            }
+            buffer = putInt(channel, buffer, components.largest());
+            for (long classCount : components.sizeClasses()) {
+                if (buffer.remaining() < 8) {
+                    drain(channel, buffer);
+                }
+                buffer.putLong(classCount);
+            }
+            drain(channel, buffer);
+            channel.force(false);
+        }
+        try {
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static ByteBuffer putInt(FileChannel channel, ByteBuffer buffer, int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            drain(channel, buffer);
+        }
+        return buffer.putInt(value);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
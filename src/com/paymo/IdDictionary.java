@@ -0,0 +1,79 @@
+package com.paymo;
+
+/**
+ * IdDictionary numbers external account ids densely, 0, 1, 2, ... in the order they are first added, so
+ * that ids which do not fit in an int (64-bit numbers, or arbitrary strings) can be used as Graph ids.
+ * Ids are read from the raw bytes of a field, and the dense numbers are translated back by externalId.
+ *
+ * A dictionary is not thread-safe.
+ *
+ * @author rena
+ */
+public interface IdDictionary {
+    // Returned by add for bytes that are not an id
+    int NO_ID = -1;
+
+    /**
+     * Returns the dense number of the id in bytes[from..to), numbering it if it is new, or NO_ID if the
+     * bytes are not an id.
+     * @param bytes
+     * @param from
+     * @param to
+     * @return
+     */
+    int add(byte[] bytes, int from, int to);
+
+    /**
+     * Returns the external id numbered id, as text.
+     * @param id
+     * @return
+     */
+    String externalId(int id);
+
+    /**
+     * Returns the number of ids numbered so far.
+     * @return
+     */
+    int size();
+
+    /**
+     * Returns an empty dictionary of the same kind.
+     * @return
+     */
+    IdDictionary newDictionary();
+
+    /**
+     * Adds the ids of other, which must be of the same kind, in the order of their numbers, and returns
+     * the number each of them has in this dictionary.
+     * @param other
+     * @return
+     */
+    int[] addAll(IdDictionary other);
+
+    /**
+     * Returns the approximate number of heap bytes used by the dictionary.
+     * @return
+     */
+    long memoryFootprint();
+
+    /**
+     * Returns an empty dictionary for the given id format: "long" for ids parsed as 64-bit integers (as
+     * Long.parseLong would after removing all whitespace), "string" for ids taken as text (without leading
+     * and trailing whitespace). Returns null for "int", whose ids are used as they are, and throws for any
+     * other format.
+     * @param format
+     * @return
+     */
+    static IdDictionary forFormat(String format) {
+        switch (format) {
+            case "int":
+                return null;
+            case "long":
+                return new LongIdDictionary();
+            case "string":
+                return new StringIdDictionary();
+            default:
+                throw new IllegalArgumentException("Unknown id format " + format);
+        }
+    }
+}
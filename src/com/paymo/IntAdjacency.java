@@ -0,0 +1,569 @@
+package com.paymo;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * IntAdjacency holds the neighbor lists of a graph whose nodes are numbered densely 0..size()-1.
+ * Each node owns a growable int[] of neighbor indices, so an edge endpoint costs 4 bytes plus
+ * the unused tail of its array instead of a boxed Integer inside a HashSet entry.
+ * Duplicates are rejected on insertion: low-degree nodes scan their short list, and nodes above
+ * HUB_DEGREE also keep an IntHashSet of their neighbors so the check stays O(1).
+ *
+ * The lists of the first nodes may instead be immutable base lists: those of a mapped snapshot
+ * (SnapshotLists), or a compressed copy made by compress (CompressedLists). A neighbor added to a node of
+ * the base goes to a small growable overlay list kept beside it, so the base list is never copied, and
+ * the node's neighbors are its base list followed by its overlay.
+ *
+ * The lists may instead all be kept outside the Java heap (OffHeapLists), for graphs too large for it; such
+ * an adjacency has no base.
+ *
+ * @author rena
+ */
+final class IntAdjacency implements Adjacency {
+    // Nodes with more neighbors than this keep a hash set beside their list for duplicate checks
+    static final int HUB_DEGREE = 64;
+
+    private static final int INITIAL_NODE_CAPACITY = 16;
+    private static final int INITIAL_NEIGHBOR_CAPACITY = 2;
+    private static final int[] NO_NEIGHBORS = new int[0];
+
+    // Immutable lists of nodes 0..baseSize-1, null if baseSize is 0
+    private BaseLists base;
+    private int baseSize;
+    // Degree of each base node, overlay included, so that searches read it in one place
+    private int[] baseDegrees;
+    // Lists of nodes baseSize..size-1, node's list is in slot node - baseSize
+    private MutableLists lists;
+    // Lists of all nodes when they are kept off the heap, in place of lists; null otherwise
+    private OffHeapLists offHeap;
+    // Neighbors added to base nodes, in slot overlaySlots.get(node) for the nodes whose overlaid bit is set
+    private MutableLists overlays;
+    private IntIntHashMap overlaySlots;
+    private long[] overlaid;
+    // Largest degree of a base node, overlay included
+    private int baseMaxDegree;
+    private int size;
+
+    /**
+     * Default constructor, initialize empty adjacency
+     */
+    IntAdjacency() {
+        this.lists = new MutableLists(INITIAL_NODE_CAPACITY);
+    }
+
+    /**
+     * Constructor- deep copy of otherAdjacency, neighbor arrays are trimmed to their degree. The base lists
+     * are immutable and shared; lists kept off the heap are copied to direct buffers.
+     * @param otherAdjacency
+     */
+    IntAdjacency(IntAdjacency otherAdjacency) {
+        this.base = otherAdjacency.base;
+        this.baseSize = otherAdjacency.baseSize;
+        this.baseDegrees = otherAdjacency.baseDegrees == null ? null : otherAdjacency.baseDegrees.clone();
+        if (otherAdjacency.offHeap != null) {
+            this.offHeap = new OffHeapLists(otherAdjacency.offHeap);
+        } else {
+            this.lists = new MutableLists(otherAdjacency.lists);
+        }
+        this.baseMaxDegree = otherAdjacency.baseMaxDegree;
+        this.size = otherAdjacency.size;
+        if (otherAdjacency.overlays != null) {
+            this.overlays = new MutableLists(otherAdjacency.overlays);
+            this.overlaySlots = new IntIntHashMap(otherAdjacency.overlaySlots);
+            this.overlaid = otherAdjacency.overlaid.clone();
+        }
+    }
+
+    /**
+     * Constructor- take over lists as the neighbor lists of nodes 0..lists.length-1. Each list must hold
+     * distinct neighbors and be exactly as long as the node's degree.
+     * @param lists
+     */
+    IntAdjacency(int[][] lists) {
+        this.lists = new MutableLists(lists);
+        this.size = lists.length;
+    }
+
+    /**
+     * Constructor- no nodes yet, their lists will be kept in offHeap, which must be empty
+     * @param offHeap
+     */
+    IntAdjacency(OffHeapLists offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Constructor- nodes 0..nodeCount-1 with the sorted neighbor lists of a snapshot, which are read from
+     * targets between the offsets of each node and its successor. Nothing is copied up front.
+     * @param offsets
+     * @param targets
+     * @param nodeCount
+     * @param maxDegree largest degree of the snapshot's nodes
+     */
+    IntAdjacency(IntBuffer offsets, IntBuffer targets, int nodeCount, int maxDegree) {
+        this(new SnapshotLists(offsets, targets, nodeCount, maxDegree));
+    }
+
+    /**
+     * Constructor- nodes 0..base.size()-1 with the lists of base
+     * @param base
+     */
+    private IntAdjacency(BaseLists base) {
+        this.base = base;
+        this.baseSize = base.size();
+        this.baseDegrees = new int[baseSize];
+        for (int node = 0; node < baseSize; node++) {
+            baseDegrees[node] = base.degree(node);
+        }
+        this.baseMaxDegree = base.maxDegree();
+        this.size = baseSize;
+        this.lists = new MutableLists(INITIAL_NODE_CAPACITY);
+    }
+
+    /**
+     * Returns a read-only copy of the lists as they are now, which stays the same while neighbors are added
+     * to this adjacency: it shares the neighbor arrays, whose entries below a node's degree are not written
+     * again as neighbors are added, and copies their references and degrees, O(nodes). Lists kept off the
+     * heap share their blocks the same way (OffHeapLists.frozen). No neighbor may be removed while the copy
+     * is in use, and the copy must be released once read.
+     * @return
+     */
+    IntAdjacency frozen() {
+        if (offHeap != null) {
+            IntAdjacency frozen = new IntAdjacency(offHeap.frozen());
+            frozen.size = size;
+            return frozen;
+        }
+        IntAdjacency frozen = new IntAdjacency();
+        frozen.base = base;
+        frozen.baseSize = baseSize;
+        frozen.baseDegrees = baseDegrees == null ? null : baseDegrees.clone();
+        frozen.lists = lists.frozen();
+        frozen.baseMaxDegree = baseMaxDegree;
+        frozen.size = size;
+        if (overlays != null) {
+            frozen.overlays = overlays.frozen();
+            frozen.overlaySlots = new IntIntHashMap(overlaySlots);
+            frozen.overlaid = overlaid.clone();
+        }
+        return frozen;
+    }
+
+    /**
+     * Returns a copy of this adjacency whose lists, overlays included, are all compressed base lists
+     * (CompressedLists), the smallest layout for a graph that mostly stops growing. Node indexes are kept;
+     * neighbors added to the copy go to overlays.
+     * @return
+     */
+    IntAdjacency compress() {
+        CompressedLists.Builder builder = new CompressedLists.Builder();
+        int[] sorted = new int[Math.max(baseMaxDegree, 1)];
+        for (int node = 0; node < size; node++) {
+            int degree = degree(node);
+            if (degree > sorted.length) {
+                sorted = new int[degree];
+            }
+            int[] list = neighbors(node, sorted);
+            if (list != sorted) {
+                System.arraycopy(list, 0, sorted, 0, degree);
+            }
+            Arrays.sort(sorted, 0, degree);
+            builder.add(sorted, degree);
+        }
+        return new IntAdjacency(builder.build());
+    }
+
+    /**
+     * Adds a node without neighbors and returns its index.
+     * @return
+     */
+    int addNode() {
+        if (offHeap != null) {
+            offHeap.addSlot();
+        } else {
+            lists.addSlot();
+        }
+        return size++;
+    }
+
+    /**
+     * Adds neighbor to the list of node. Returns true if it was not already there.
+     * @param node
+     * @param neighbor
+     * @return
+     */
+    boolean addNeighbor(int node, int neighbor) {
+        if (hasNeighbor(node, neighbor)) {
+            return false;
+        }
+        if (offHeap != null) {
+            offHeap.append(node, neighbor);
+            return true;
+        }
+        if (node >= baseSize) {
+            lists.append(node - baseSize, neighbor);
+            return true;
+        }
+
+        if (!isOverlaid(node)) {
+            if (overlays == null) {
+                overlays = new MutableLists(INITIAL_NODE_CAPACITY);
+                overlaySlots = new IntIntHashMap();
+                overlaid = new long[(baseSize + 63) >>> 6];
+            }
+            overlaySlots.put(node, overlays.addSlot());
+            overlaid[node >>> 6] |= 1L << node;
+        }
+        overlays.append(overlaySlots.get(node), neighbor);
+        baseMaxDegree = Math.max(baseMaxDegree, ++baseDegrees[node]);
+        return true;
+    }
+
+    /**
+     * Removes neighbor from the list of node, which must not be a node of the base. Returns true if it was
+     * there. The last neighbor of the list takes its place.
+     * @param node
+     * @param neighbor
+     * @return
+     */
+    boolean removeNeighbor(int node, int neighbor) {
+        if (node < baseSize) {
+            throw new IllegalStateException("Base lists are immutable");
+        }
+        if (offHeap != null) {
+            return offHeap.remove(node, neighbor);
+        }
+        return lists.remove(node - baseSize, neighbor);
+    }
+
+    /**
+     * Returns true if the lists of some nodes are immutable base lists.
+     * @return
+     */
+    boolean hasBase() {
+        return base != null;
+    }
+
+    /**
+     * Returns true if the lists are kept off the heap.
+     * @return
+     */
+    boolean isOffHeap() {
+        return offHeap != null;
+    }
+
+    /**
+     * Renumbers the nodes of an adjacency kept off the heap as OffHeapLists.renumber does.
+     * @param newIndexes
+     * @param kept
+     */
+    void renumber(int[] newIndexes, int kept) {
+        offHeap.renumber(newIndexes, kept);
+        size = kept;
+    }
+
+    /**
+     * Returns true if neighbor is in the list of node.
+     * @param node
+     * @param neighbor
+     * @return
+     */
+    @Override
+    public boolean hasNeighbor(int node, int neighbor) {
+        if (offHeap != null) {
+            return offHeap.contains(node, neighbor);
+        }
+        if (node >= baseSize) {
+            return lists.contains(node - baseSize, neighbor);
+        }
+        return (isOverlaid(node) && overlays.contains(overlaySlots.get(node), neighbor))
+                || base.contains(node, neighbor);
+    }
+
+    /**
+     * Returns true if hasNeighbor on node does not scan its list: the node keeps a neighbor set, or its
+     * list is a long one in the base, which is searched without reading all of it.
+     * @param node
+     * @return
+     */
+    @Override
+    public boolean isHub(int node) {
+        if (offHeap != null) {
+            return offHeap.isHub(node);
+        }
+        if (node >= baseSize) {
+            return lists.hubSets[node - baseSize] != null;
+        }
+        return base.degree(node) > HUB_DEGREE
+                || (isOverlaid(node) && overlays.hubSets[overlaySlots.get(node)] != null);
+    }
+
+    /**
+     * Returns the number of neighbors of node.
+     * @param node
+     * @return
+     */
+    @Override
+    public int degree(int node) {
+        if (offHeap != null) {
+            return offHeap.degree(node);
+        }
+        if (node >= baseSize) {
+            return lists.degrees[node - baseSize];
+        }
+        return baseDegrees[node];
+    }
+
+    /**
+     * Returns the backing neighbor array of node, or for a node of the base or kept off the heap a copy of its
+     * list. Only the first degree(node) entries are neighbors; callers must not modify the array.
+     * @param node
+     * @return
+     */
+    int[] neighbors(int node) {
+        if (node >= baseSize && offHeap == null) {
+            return lists.lists[node - baseSize];
+        }
+        return neighbors(node, new int[degree(node)]);
+    }
+
+    /**
+     * Same as neighbors(node), but reads the list of a node of the base or kept off the heap into scratch
+     * instead of a new array, so that searches do not allocate. scratch must hold at least
+     * snapshotMaxDegree() ints.
+     * @param node
+     * @param scratch
+     * @return
+     */
+    @Override
+    public int[] neighbors(int node, int[] scratch) {
+        if (offHeap != null) {
+            offHeap.read(node, scratch);
+            return scratch;
+        }
+        if (node >= baseSize) {
+            return lists.lists[node - baseSize];
+        }
+        int degree = base.read(node, scratch);
+        if (isOverlaid(node)) {
+            int slot = overlaySlots.get(node);
+            System.arraycopy(overlays.lists[slot], 0, scratch, degree, overlays.degrees[slot]);
+        }
+        return scratch;
+    }
+
+    /**
+     * Returns the largest degree of the nodes of the base, or of any node when the lists are kept off the
+     * heap; 0 if there is none.
+     * @return
+     */
+    @Override
+    public int snapshotMaxDegree() {
+        return offHeap != null ? offHeap.maxDegree() : baseMaxDegree;
+    }
+
+    /**
+     * Returns the number of nodes.
+     * @return
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Releases a copy returned by frozen, which must not be read after.
+     */
+    void release() {
+        if (offHeap != null) {
+            offHeap.release();
+        }
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the neighbor lists and their indexes.
+     * Base lists mapped from a snapshot and lists kept off the heap are not counted.
+     * @return
+     */
+    long memoryFootprint() {
+        long bytes = offHeap != null ? offHeap.memoryFootprint() : lists.memoryFootprint();
+        if (base != null) {
+            bytes += base.memoryFootprint() + MemoryEstimates.intArray(baseDegrees.length);
+        }
+        if (overlays != null) {
+            bytes += overlays.memoryFootprint() + overlaySlots.memoryFootprint() + MemoryEstimates.longArray(overlaid.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes of the lists kept off the heap, 0 if they are on the heap.
+     * @return
+     */
+    long offHeapFootprint() {
+        return offHeap != null ? offHeap.offHeapFootprint() : 0;
+    }
+
+    private boolean isOverlaid(int node) {
+        return overlaid != null && (overlaid[node >>> 6] & (1L << node)) != 0;
+    }
+
+    /**
+     * MutableLists holds growable neighbor lists numbered by slot, with a hash set beside each list longer
+     * than HUB_DEGREE.
+     */
+    private static final class MutableLists {
+        int[][] lists;
+        int[] degrees;
+        IntHashSet[] hubSets; // null entry for lists at or below HUB_DEGREE
+        int count;
+
+        MutableLists(int capacity) {
+            this.lists = new int[capacity][];
+            this.degrees = new int[capacity];
+            this.hubSets = new IntHashSet[capacity];
+        }
+
+        /**
+         * Deep copy of other, arrays are trimmed to their degree
+         */
+        MutableLists(MutableLists other) {
+            this(Math.max(INITIAL_NODE_CAPACITY, other.count));
+            this.count = other.count;
+            System.arraycopy(other.degrees, 0, degrees, 0, count);
+            for (int slot = 0; slot < count; slot++) {
+                int degree = degrees[slot];
+                lists[slot] = degree == 0 ? NO_NEIGHBORS : Arrays.copyOf(other.lists[slot], degree);
+                if (other.hubSets[slot] != null) {
+                    hubSets[slot] = new IntHashSet(other.hubSets[slot]);
+                }
+            }
+        }
+
+        /**
+         * Returns a copy sharing the neighbor arrays, without hub sets, see IntAdjacency.frozen
+         */
+        MutableLists frozen() {
+            MutableLists frozen = new MutableLists(Math.max(INITIAL_NODE_CAPACITY, count));
+            System.arraycopy(lists, 0, frozen.lists, 0, count);
+            System.arraycopy(degrees, 0, frozen.degrees, 0, count);
+            frozen.count = count;
+            return frozen;
+        }
+
+        /**
+         * Takes over lists, each exactly as long as its degree
+         */
+        MutableLists(int[][] lists) {
+            this(Math.max(INITIAL_NODE_CAPACITY, lists.length));
+            this.count = lists.length;
+            System.arraycopy(lists, 0, this.lists, 0, count);
+            for (int slot = 0; slot < count; slot++) {
+                int[] list = lists[slot];
+                degrees[slot] = list.length;
+                if (list.length > HUB_DEGREE) {
+                    IntHashSet hubSet = new IntHashSet(list.length << 1);
+                    for (int neighbor : list) {
+                        hubSet.add(neighbor);
+                    }
+                    hubSets[slot] = hubSet;
+                } else if (list.length == 0) {
+                    this.lists[slot] = NO_NEIGHBORS;
+                }
+            }
+        }
+
+        int addSlot() {
+            if (count == degrees.length) {
+                int capacity = count + (count >> 1);
+                lists = Arrays.copyOf(lists, capacity);
+                degrees = Arrays.copyOf(degrees, capacity);
+                hubSets = Arrays.copyOf(hubSets, capacity);
+            }
+            lists[count] = NO_NEIGHBORS;
+            return count++;
+        }
+
+        /**
+         * Appends neighbor, which must not be in the list yet
+         */
+        void append(int slot, int neighbor) {
+            int degree = degrees[slot];
+            int[] list = lists[slot];
+            if (degree == list.length) {
+                list = Arrays.copyOf(list, Math.max(INITIAL_NEIGHBOR_CAPACITY, degree + (degree >> 1)));
+                lists[slot] = list;
+            }
+            list[degree++] = neighbor;
+            degrees[slot] = degree;
+
+            IntHashSet hubSet = hubSets[slot];
+            if (hubSet != null) {
+                hubSet.add(neighbor);
+            } else if (degree > HUB_DEGREE) {
+                hubSet = new IntHashSet(degree << 1);
+                for (int i = 0; i < degree; i++) {
+                    hubSet.add(list[i]);
+                }
+                hubSets[slot] = hubSet;
+            }
+        }
+
+        /**
+         * Removes neighbor, moving the last entry into its place. Returns false if it is not in the list
+         */
+        boolean remove(int slot, int neighbor) {
+            IntHashSet hubSet = hubSets[slot];
+            if (hubSet != null && !hubSet.remove(neighbor)) {
+                return false;
+            }
+            int[] list = lists[slot];
+            int degree = degrees[slot];
+            for (int i = degree - 1; i >= 0; i--) {
+                if (list[i] == neighbor) {
+                    list[i] = list[--degree];
+                    degrees[slot] = degree;
+                    // Give back the memory of lists that shrank a lot, keeping room to grow again
+                    if (degree == 0) {
+                        lists[slot] = NO_NEIGHBORS;
+                    } else if (degree < list.length >> 2) {
+                        lists[slot] = Arrays.copyOf(list, degree << 1);
+                    }
+                    if (degree <= HUB_DEGREE >> 1) {
+                        hubSets[slot] = null;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean contains(int slot, int neighbor) {
+            IntHashSet hubSet = hubSets[slot];
+            if (hubSet != null) {
+                return hubSet.contains(neighbor);
+            }
+            int[] list = lists[slot];
+            for (int i = degrees[slot] - 1; i >= 0; i--) {
+                if (list[i] == neighbor) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long memoryFootprint() {
+            long bytes = 2 * MemoryEstimates.referenceArray(lists.length) + MemoryEstimates.intArray(degrees.length);
+            for (int slot = 0; slot < count; slot++) {
+                if (lists[slot] != NO_NEIGHBORS) {
+                    bytes += MemoryEstimates.intArray(lists[slot].length);
+                }
+                if (hubSets[slot] != null) {
+                    bytes += hubSets[slot].memoryFootprint();
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.paymo;
+
+/**
+ * IntHashSet is an open-addressing hash set of non-negative ints backed by a single int[].
+ * Graph uses it next to the neighbor list of high-degree nodes so that duplicate checks on
+ * those nodes stay O(1) instead of scanning the whole list.
+ *
+ * @author rena
+ */
+final class IntHashSet {
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] slots; // element + 1, 0 means the slot is free
+    private int size;
+    private int resizeAt;
+
+    /**
+     * Constructor- initialize empty set able to hold expectedSize elements without resizing
+     * @param expectedSize
+     */
+    IntHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR <= expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Constructor- deep copy of otherSet
+     * @param otherSet
+     */
+    IntHashSet(IntHashSet otherSet) {
+        this.slots = otherSet.slots.clone();
+        this.size = otherSet.size;
+        this.resizeAt = otherSet.resizeAt;
+    }
+
+    /**
+     * Adds value to the set. Returns true if it was not already present.
+     * @param value must be non-negative
+     * @return
+     */
+    boolean add(int value) {
+        int stored = value + 1;
+        int mask = slots.length - 1;
+        int slot = IntIntHashMap.hash(value) & mask;
+        while (slots[slot] != 0) {
+            if (slots[slot] == stored) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = stored;
+        if (++size >= resizeAt) {
+            rehash(slots.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if value is in the set.
+     * @param value
+     * @return
+     */
+    boolean contains(int value) {
+        int stored = value + 1;
+        int mask = slots.length - 1;
+        for (int slot = IntIntHashMap.hash(value) & mask; ; slot = (slot + 1) & mask) {
+            int current = slots[slot];
+            if (current == stored) {
+                return true;
+            }
+            if (current == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes value from the set. Returns true if it was present.
+     * The elements after it in its run of slots are moved back, so lookups never need tombstones.
+     * @param value
+     * @return
+     */
+    boolean remove(int value) {
+        int stored = value + 1;
+        int mask = slots.length - 1;
+        int slot = IntIntHashMap.hash(value) & mask;
+        while (slots[slot] != stored) {
+            if (slots[slot] == 0) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int free = slot;
+        for (int next = (free + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            int home = IntIntHashMap.hash(slots[next] - 1) & mask;
+            // Move the element back if its home slot is not between the free slot and it
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                slots[free] = slots[next];
+                free = next;
+            }
+        }
+        slots[free] = 0;
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the number of elements in the set.
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the set.
+     * @return
+     */
+    long memoryFootprint() {
+        return MemoryEstimates.intArray(slots.length) + MemoryEstimates.OBJECT_HEADER + 12;
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldSlots = slots;
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int stored : oldSlots) {
+            if (stored != 0) {
+                int slot = IntIntHashMap.hash(stored - 1) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = stored;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+}
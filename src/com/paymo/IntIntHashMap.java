@@ -0,0 +1,148 @@
+package com.paymo;
+
+/**
+ * IntIntHashMap is an open-addressing hash map from int keys to non-negative int values.
+ * Keys and values are kept in two flat primitive arrays, so there is no boxing and no
+ * per-entry object. Any int may be used as a key; a stored value of 0 marks a free slot,
+ * which is why values are kept shifted by one internally.
+ *
+ * @author rena
+ */
+final class IntIntHashMap {
+    // Returned by get when the key is not in the map
+    static final int NO_VALUE = -1;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private int[] values; // value + 1, 0 means the slot is free
+    private int size;
+    private int resizeAt;
+
+    /**
+     * Default constructor, initialize empty map
+     */
+    IntIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Constructor- initialize empty map able to hold expectedSize keys without resizing
+     * @param expectedSize
+     */
+    IntIntHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Constructor- deep copy of otherMap
+     * @param otherMap
+     */
+    IntIntHashMap(IntIntHashMap otherMap) {
+        this.keys = otherMap.keys.clone();
+        this.values = otherMap.values.clone();
+        this.size = otherMap.size;
+        this.resizeAt = otherMap.resizeAt;
+    }
+
+    /**
+     * Returns the value mapped to key, or NO_VALUE if the key is not in the map.
+     * @param key
+     * @return
+     */
+    int get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int value = values[slot];
+            if (value == 0) {
+                return NO_VALUE;
+            }
+            if (keys[slot] == key) {
+                return value - 1;
+            }
+        }
+    }
+
+    /**
+     * Maps key to value, replacing any previous value.
+     * @param key
+     * @param value must be non-negative
+     */
+    void put(int key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] = value + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value + 1;
+        if (++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Returns the number of keys in the map.
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the map.
+     * @return
+     */
+    long memoryFootprint() {
+        return 2 * MemoryEstimates.intArray(keys.length) + MemoryEstimates.OBJECT_HEADER + 16;
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR <= expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads the bits of key so that sequential ids do not cluster in the table.
+     * @param key
+     * @return
+     */
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,107 @@
+package com.paymo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LogHistogram counts non-negative long values in buckets that grow with the value, so that any percentile
+ * is known to within 1/8 of its value in a fixed 4KB of counters. Values below 16 have a bucket each; above,
+ * every power of two is split into 8 buckets. Recording is one increment of an atomic counter and does not
+ * allocate, so it can stay on in production and be read by another thread at any time.
+ *
+ * @author rena
+ */
+final class LogHistogram {
+    private static final int EXACT = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Exponents 4..62 of the values above EXACT, with SUB_BUCKETS each
+    private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts value, negative values as 0.
+     * @param value
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of values counted.
+     * @return
+     */
+    long count() {
+        return total.get();
+    }
+
+    /**
+     * Returns the mean of the values counted, 0 if there is none.
+     * @return
+     */
+    double mean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Returns the largest value counted.
+     * @return
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the value at the given percentile (0 to 100), which is
+     * at most 1/8 above the actual value. Returns 0 if no value was counted.
+     * @param percentile
+     * @return
+     */
+    long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(upperBound(bucket), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int exponent = 4 + (bucket - EXACT) / SUB_BUCKETS;
+        long subBucket = (bucket - EXACT) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,149 @@
+package com.paymo;
+
+import java.util.Arrays;
+
+/**
+ * LongIdDictionary numbers ids that are 64-bit integers. The fields are parsed without creating a String,
+ * on the same terms as PaymentReader parses int ids, and looked up in an open-addressing table of the
+ * long values; ids holds the value of each number.
+ *
+ * @author rena
+ */
+final class LongIdDictionary implements IdDictionary {
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] values; // number + 1, 0 means the slot is free
+    private long[] ids = new long[MIN_CAPACITY];
+    private int size;
+    private int resizeAt;
+
+    /**
+     * Default constructor, no ids
+     */
+    LongIdDictionary() {
+        allocate(MIN_CAPACITY);
+    }
+
+    @Override
+    public int add(byte[] bytes, int from, int to) {
+        boolean negative = false;
+        boolean signAllowed = true;
+        int digits = 0;
+        long value = 0; // accumulated negatively, so that Long.MIN_VALUE fits
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                int digit = b - '0';
+                if (value < Long.MIN_VALUE / 10 || value * 10 < Long.MIN_VALUE + digit) {
+                    return NO_ID;
+                }
+                value = value * 10 - digit;
+                digits++;
+                signAllowed = false;
+            } else if ((b == '-' || b == '+') && signAllowed) {
+                negative = b == '-';
+                signAllowed = false;
+            } else if (!isWhitespace(b)) {
+                return NO_ID;
+            }
+        }
+        if (digits == 0 || (!negative && value == Long.MIN_VALUE)) {
+            return NO_ID;
+        }
+        return add(negative ? value : -value);
+    }
+
+    @Override
+    public String externalId(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No id numbered " + id);
+        }
+        return Long.toString(ids[id]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IdDictionary newDictionary() {
+        return new LongIdDictionary();
+    }
+
+    @Override
+    public int[] addAll(IdDictionary other) {
+        LongIdDictionary dictionary = (LongIdDictionary) other;
+        int[] numbers = new int[dictionary.size];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = add(dictionary.ids[i]);
+        }
+        return numbers;
+    }
+
+    @Override
+    public long memoryFootprint() {
+        return MemoryEstimates.longArray(keys.length) + MemoryEstimates.intArray(values.length)
+                + MemoryEstimates.longArray(ids.length);
+    }
+
+    /**
+     * Returns the number of id, numbering it if it is new.
+     */
+    private int add(long id) {
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (values[slot] != 0) {
+            if (keys[slot] == id) {
+                return values[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size + (size >> 1));
+        }
+        ids[size] = id;
+        keys[slot] = id;
+        values[slot] = ++size;
+        if (size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return size - 1;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long id) {
+        return IntIntHashMap.hash((int) (id ^ (id >>> 32)));
+    }
+
+    /**
+     * Returns true for the bytes matched by the regex \s, other than the line terminators.
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+    }
+}
@@ -0,0 +1,63 @@
+package com.paymo;
+
+/**
+ * MemoryEstimates holds the object layout sizes used to report the heap footprint of the graph.
+ * The numbers assume a 64-bit JVM with compressed object pointers, which is the default for
+ * heaps below 32GB.
+ *
+ * @author rena
+ */
+final class MemoryEstimates {
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    private MemoryEstimates() {
+    }
+
+    /**
+     * Returns the heap bytes of an int[] of the given length.
+     * @param length
+     * @return
+     */
+    static long intArray(int length) {
+        return align(ARRAY_HEADER + 4L * length);
+    }
+
+    /**
+     * Returns the heap bytes of a long[] of the given length.
+     * @param length
+     * @return
+     */
+    static long longArray(int length) {
+        return align(ARRAY_HEADER + 8L * length);
+    }
+
+    /**
+     * Returns the heap bytes of a byte[] or boolean[] of the given length.
+     * @param length
+     * @return
+     */
+    static long byteArray(int length) {
+        return align(ARRAY_HEADER + (long) length);
+    }
+
+    /**
+     * Returns the heap bytes of an Object[] (or int[][]) of the given length, not counting the
+     * objects it refers to.
+     * @param length
+     * @return
+     */
+    static long referenceArray(int length) {
+        return align(ARRAY_HEADER + (long) REFERENCE * length);
+    }
+
+    /**
+     * Rounds size up to the 8 byte object alignment.
+     * @param size
+     * @return
+     */
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -0,0 +1,452 @@
+package com.paymo;
+
+import java.util.Arrays;
+
+/**
+ * NeighborhoodIndex keeps, for each node, its neighbors and its two-hop set (the nodes reached by a walk of
+ * two edges) as sorted int arrays, so that any degree of separation up to 4 is answered by a few set
+ * intersections instead of a search:
+ *  - 1 if end is a neighbor of start
+ *  - 2 if end is in the two-hop set of start
+ *  - 3 if a neighbor of start is in the two-hop set of end
+ *  - 4 if the two-hop sets of start and end intersect
+ * Each test is only made once the smaller ones failed, so the first walk found is a shortest path.
+ *
+ * The sets are updated in place as edges are added. A node whose two-hop set would grow past
+ * maxTwoHopSize, or that would take the index past maxBytes, drops its sets for good and is answered by
+ * the search instead. Since the neighbors of a node with more than maxTwoHopSize + 1 neighbors all
+ * overflow, edges added to such a hub cost O(1) here.
+ *
+ * The index is only correct for symmetric neighbor lists. It is built for a growing graph; removeEdge takes
+ * out the walks along an edge the graph lost, which only touches the sets of the edge's ends and of their
+ * neighbors. A node that overflowed stays left to the search until the index is built again.
+ *
+ * @author rena
+ */
+final class NeighborhoodIndex {
+    // Returned by separation when the index cannot answer and the graph must be searched
+    static final int UNKNOWN = -2;
+    // Largest degree of separation the index answers
+    static final int MAX_DEGREE = 4;
+
+    // Sets of a node that overflowed
+    private static final int[] OVERFLOWED = new int[0];
+    private static final int[] EMPTY = new int[0];
+
+    private final IntAdjacency adjacency;
+    private final int maxTwoHopSize;
+    private final long maxBytes;
+
+    private int[][] oneHop;
+    private int[] oneHopSizes;
+    private int[][] twoHop;
+    private int[] twoHopSizes;
+    private int size;
+    private int overflowedCount;
+    private long bytes;
+    // Scratch space for merging sets
+    private int[] sortedScratch = new int[16];
+    private int[] mergeScratch = new int[16];
+
+    /**
+     * Constructor- index every node of adjacency.
+     * @param adjacency the neighbor lists the index follows; addEdge must be called after each new edge
+     * @param maxTwoHopSize largest two-hop set kept for a node
+     * @param maxBytes largest number of bytes used by the sets of all nodes
+     */
+    NeighborhoodIndex(IntAdjacency adjacency, int maxTwoHopSize, long maxBytes) {
+        if (maxTwoHopSize < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid neighborhood index cap");
+        }
+        this.adjacency = adjacency;
+        this.maxTwoHopSize = maxTwoHopSize;
+        this.maxBytes = maxBytes;
+
+        int nodeCount = adjacency.size();
+        int capacity = Math.max(16, nodeCount);
+        this.oneHop = new int[capacity][];
+        this.oneHopSizes = new int[capacity];
+        this.twoHop = new int[capacity][];
+        this.twoHopSizes = new int[capacity];
+
+        int[] seen = new int[nodeCount];
+        int[] buffer = new int[16];
+        for (int node = 0; node < nodeCount; node++) {
+            addNode();
+            buffer = build(node, seen, buffer);
+        }
+    }
+
+    /**
+     * Returns a new index with the same caps over otherAdjacency.
+     * @param otherAdjacency
+     * @return
+     */
+    NeighborhoodIndex copyFor(IntAdjacency otherAdjacency) {
+        return new NeighborhoodIndex(otherAdjacency, maxTwoHopSize, maxBytes);
+    }
+
+    /**
+     * Fills the sets of node from the current neighbor lists, or marks it overflowed.
+     * seen is scratch space with one slot per node, buffer is scratch space that may be grown and returned.
+     */
+    private int[] build(int node, int[] seen, int[] buffer) {
+        int stamp = node + 1;
+        int count = 0;
+        int[] friends = adjacency.neighbors(node);
+        for (int i = 0; i < adjacency.degree(node) && count <= maxTwoHopSize; i++) {
+            int friend = friends[i];
+            int[] friendsOfFriend = adjacency.neighbors(friend);
+            for (int j = 0; j < adjacency.degree(friend) && count <= maxTwoHopSize; j++) {
+                int other = friendsOfFriend[j];
+                if (other != node && seen[other] != stamp) {
+                    seen[other] = stamp;
+                    if (count == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, count << 1);
+                    }
+                    buffer[count++] = other;
+                }
+            }
+        }
+        if (count > maxTwoHopSize || !reserve(4L * (count + adjacency.degree(node)))) {
+            overflow(node);
+            return buffer;
+        }
+
+        int degree = adjacency.degree(node);
+        int[] sortedFriends = Arrays.copyOf(friends, degree);
+        Arrays.sort(sortedFriends);
+        oneHop[node] = sortedFriends;
+        oneHopSizes[node] = degree;
+        int[] sortedTwoHop = Arrays.copyOf(buffer, count);
+        Arrays.sort(sortedTwoHop);
+        twoHop[node] = sortedTwoHop;
+        twoHopSizes[node] = count;
+        return buffer;
+    }
+
+    /**
+     * Adds a node without neighbors; it must be the next node of the adjacency.
+     */
+    void addNode() {
+        if (size == oneHop.length) {
+            int capacity = size + (size >> 1);
+            oneHop = Arrays.copyOf(oneHop, capacity);
+            oneHopSizes = Arrays.copyOf(oneHopSizes, capacity);
+            twoHop = Arrays.copyOf(twoHop, capacity);
+            twoHopSizes = Arrays.copyOf(twoHopSizes, capacity);
+        }
+        oneHop[size] = EMPTY;
+        twoHop[size] = EMPTY;
+        size++;
+    }
+
+    /**
+     * Updates the sets after the edge between node1 and node2 was added to the adjacency.
+     * @param node1
+     * @param node2
+     */
+    void addEdge(int node1, int node2) {
+        insert(oneHop, oneHopSizes, node1, node2);
+        insert(oneHop, oneHopSizes, node2, node1);
+        addWalks(node1, node2);
+        if (node1 != node2) {
+            addWalks(node2, node1);
+        }
+    }
+
+    /**
+     * Updates the sets after the edge between node1 and node2 was removed from the adjacency. The walks of
+     * two edges along it are node1 - node2 - other and other - node2 - node1 for every neighbor other of
+     * node2, and the same from node2 through node1; each end is dropped from a two-hop set unless another
+     * walk still joins them.
+     * @param node1
+     * @param node2
+     */
+    void removeEdge(int node1, int node2) {
+        remove(oneHop, oneHopSizes, node1, node2);
+        remove(oneHop, oneHopSizes, node2, node1);
+        removeWalks(node1, node2);
+        if (node1 != node2) {
+            removeWalks(node2, node1);
+        }
+    }
+
+    /**
+     * Removes the walks of two edges that went through the removed edge from node to via.
+     */
+    private void removeWalks(int node, int via) {
+        int degree = adjacency.degree(via);
+        int[] friends = adjacency.neighbors(via);
+        for (int i = 0; i < degree; i++) {
+            int other = friends[i];
+            if (other != node) {
+                removeWalk(node, other);
+                removeWalk(other, node);
+            }
+        }
+    }
+
+    /**
+     * Drops end from the two-hop set of node if no neighbor of node is a neighbor of end any more.
+     */
+    private void removeWalk(int node, int end) {
+        int[] set = twoHop[node];
+        int count = twoHopSizes[node];
+        if (set == OVERFLOWED || Arrays.binarySearch(set, 0, count, end) < 0) {
+            return;
+        }
+        int[] friends = oneHop[node];
+        for (int i = 0; i < oneHopSizes[node]; i++) {
+            if (adjacency.hasNeighbor(friends[i], end)) {
+                return;
+            }
+        }
+        remove(twoHop, twoHopSizes, node, end);
+    }
+
+    /**
+     * Adds the walks of two edges created by the new edge from node through its neighbor via:
+     * node - via - other for every neighbor other of via, and other - node - via for every neighbor other of node.
+     */
+    private void addWalks(int node, int via) {
+        if (adjacency.degree(via) > maxTwoHopSize + 1L) {
+            overflow(node);
+        } else if (twoHop[node] != OVERFLOWED) {
+            if (oneHop[via] != OVERFLOWED) {
+                mergeIntoTwoHop(node, oneHop[via], oneHopSizes[via]);
+            } else {
+                int degree = adjacency.degree(via);
+                sortedScratch = grow(sortedScratch, degree);
+                System.arraycopy(adjacency.neighbors(via), 0, sortedScratch, 0, degree);
+                Arrays.sort(sortedScratch, 0, degree);
+                mergeIntoTwoHop(node, sortedScratch, degree);
+            }
+        }
+
+        // Each other neighbor of node holds the rest of node's neighbors in its two-hop set, so once node had
+        // more than maxTwoHopSize + 1 neighbors before this edge, all of them have overflowed already
+        if (adjacency.degree(node) <= maxTwoHopSize + 2L) {
+            int[] friends = adjacency.neighbors(node);
+            for (int i = 0; i < adjacency.degree(node); i++) {
+                if (friends[i] != via) {
+                    insert(twoHop, twoHopSizes, friends[i], via);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the sorted values[0..valueCount), except node itself, to the two-hop set of node in one merge,
+     * overflowing node if the set gets too large.
+     */
+    private void mergeIntoTwoHop(int node, int[] values, int valueCount) {
+        int[] set = twoHop[node];
+        int count = twoHopSizes[node];
+        mergeScratch = grow(mergeScratch, count + valueCount);
+        int[] merged = mergeScratch;
+        int mergedCount = 0;
+        int i = 0;
+        int j = 0;
+        while (i < count || j < valueCount) {
+            int next;
+            if (j == valueCount || (i < count && set[i] <= values[j])) {
+                next = set[i++];
+            } else {
+                next = values[j++];
+            }
+            if (next != node && (mergedCount == 0 || merged[mergedCount - 1] != next)) {
+                merged[mergedCount++] = next;
+            }
+        }
+        if (mergedCount == count) {
+            return;
+        }
+        if (mergedCount > maxTwoHopSize) {
+            overflow(node);
+            return;
+        }
+        if (mergedCount > set.length) {
+            int capacity = Math.min(maxTwoHopSize, Math.max(mergedCount, count + (count >> 1)));
+            if (!reserve(4L * (capacity - set.length))) {
+                overflow(node);
+                return;
+            }
+            set = new int[capacity];
+            twoHop[node] = set;
+        }
+        System.arraycopy(merged, 0, set, 0, mergedCount);
+        twoHopSizes[node] = mergedCount;
+    }
+
+    private static int[] grow(int[] scratch, int length) {
+        return scratch.length >= length ? scratch : new int[Math.max(length, scratch.length << 1)];
+    }
+
+    /**
+     * Adds value to the sorted set sets[node], overflowing node if the set gets too large.
+     */
+    private void insert(int[][] sets, int[] sizes, int node, int value) {
+        int[] set = sets[node];
+        if (set == OVERFLOWED) {
+            return;
+        }
+        int count = sizes[node];
+        int position = Arrays.binarySearch(set, 0, count, value);
+        if (position >= 0) {
+            return;
+        }
+        position = -position - 1;
+
+        if (sets == twoHop && count == maxTwoHopSize) {
+            overflow(node);
+            return;
+        }
+        if (count == set.length) {
+            int capacity = Math.max(4, count + (count >> 1));
+            if (sets == twoHop) {
+                capacity = Math.min(capacity, maxTwoHopSize);
+            }
+            if (!reserve(4L * (capacity - count))) {
+                overflow(node);
+                return;
+            }
+            set = Arrays.copyOf(set, capacity);
+            sets[node] = set;
+        }
+        System.arraycopy(set, position, set, position + 1, count - position);
+        set[position] = value;
+        sizes[node] = count + 1;
+    }
+
+    /**
+     * Removes value from the sorted set sets[node] if it is there. The array keeps its length.
+     */
+    private static void remove(int[][] sets, int[] sizes, int node, int value) {
+        int[] set = sets[node];
+        if (set == OVERFLOWED) {
+            return;
+        }
+        int count = sizes[node];
+        int position = Arrays.binarySearch(set, 0, count, value);
+        if (position < 0) {
+            return;
+        }
+        System.arraycopy(set, position + 1, set, position, count - position - 1);
+        sizes[node] = count - 1;
+    }
+
+    private boolean reserve(long extraBytes) {
+        if (bytes + extraBytes > maxBytes) {
+            return false;
+        }
+        bytes += extraBytes;
+        return true;
+    }
+
+    private void overflow(int node) {
+        if (twoHop[node] == OVERFLOWED) {
+            return;
+        }
+        bytes -= 4L * (oneHop[node].length + twoHop[node].length);
+        oneHop[node] = OVERFLOWED;
+        oneHopSizes[node] = 0;
+        twoHop[node] = OVERFLOWED;
+        twoHopSizes[node] = 0;
+        overflowedCount++;
+    }
+
+    /**
+     * Returns the degree of separation of start and end if it is at most maxDegree, NOT_CONNECTED if it is
+     * known to be larger, or UNKNOWN if the index cannot tell and the graph must be searched.
+     * @param start
+     * @param end
+     * @param maxDegree
+     * @return
+     */
+    int separation(int start, int end, int maxDegree) {
+        if (twoHop[start] == OVERFLOWED || twoHop[end] == OVERFLOWED || maxDegree < 0) {
+            return UNKNOWN;
+        }
+        if (start == end) {
+            return 0;
+        }
+        if (maxDegree >= 1 && Arrays.binarySearch(oneHop[start], 0, oneHopSizes[start], end) >= 0) {
+            return 1;
+        }
+        if (maxDegree >= 2 && Arrays.binarySearch(twoHop[start], 0, twoHopSizes[start], end) >= 0) {
+            return 2;
+        }
+        if (maxDegree >= 3 && intersects(oneHop[start], oneHopSizes[start], twoHop[end], twoHopSizes[end])) {
+            return 3;
+        }
+        if (maxDegree >= 4 && intersects(twoHop[start], twoHopSizes[start], twoHop[end], twoHopSizes[end])) {
+            return 4;
+        }
+        return maxDegree <= MAX_DEGREE ? Graph.NOT_CONNECTED : UNKNOWN;
+    }
+
+    /**
+     * Returns true if the sorted arrays a[0..aSize) and b[0..bSize) have an element in common. A much smaller
+     * array is looked up in the larger one by binary search, otherwise both are merged.
+     */
+    static boolean intersects(int[] a, int aSize, int[] b, int bSize) {
+        if (aSize > bSize) {
+            return intersects(b, bSize, a, aSize);
+        }
+        if (aSize == 0) {
+            return false;
+        }
+        if ((long) aSize * 32 < bSize) {
+            int from = 0;
+            for (int i = 0; i < aSize; i++) {
+                int position = Arrays.binarySearch(b, from, bSize, a[i]);
+                if (position >= 0) {
+                    return true;
+                }
+                from = -position - 1;
+                if (from == bSize) {
+                    return false;
+                }
+            }
+            return false;
+        }
+        int i = 0;
+        int j = 0;
+        while (i < aSize && j < bSize) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of nodes answered by the index.
+     * @return
+     */
+    int indexedNodes() {
+        return size - overflowedCount;
+    }
+
+    /**
+     * Returns the number of nodes left to the search because their sets outgrew the caps.
+     * @return
+     */
+    int overflowedNodes() {
+        return overflowedCount;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the index.
+     * @return
+     */
+    long memoryFootprint() {
+        long arrays = 2 * MemoryEstimates.referenceArray(oneHop.length) + 2 * MemoryEstimates.intArray(oneHop.length);
+        return arrays + bytes + 2L * (size - overflowedCount) * MemoryEstimates.ARRAY_HEADER;
+    }
+}
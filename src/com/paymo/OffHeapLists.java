@@ -0,0 +1,569 @@
+package com.paymo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OffHeapLists holds growable neighbor lists numbered by slot outside the Java heap, in chunks of CHUNK_BYTES:
+ * direct buffers, or consecutive pages of a file mapped read-write, which the OS writes out and reads back
+ * as memory runs short. The heap only holds one buffer per chunk, so a collection has next to nothing to
+ * trace however large the graph is.
+ *
+ * Each slot has an entry of ENTRY_BYTES in the node chunks: the address of its list block, the address of its
+ * hash table block (NO_BLOCK for lists at or below IntAdjacency.HUB_DEGREE), its degree and the capacity of its
+ * list. Blocks hold a power of two ints and are taken from the block chunks. A list that fills its block is
+ * moved to a block twice as large, and the old block is pushed on the free list of its size, where the next
+ * block of that size is taken from; so memory given back by growing and shrinking lists is reused without
+ * ever moving the other lists. The table of a hub holds neighbor + 1 in twice as many slots as its list
+ * capacity, and is built again when the list moves.
+ *
+ * A frozen copy (frozen) shares the blocks and only copies the entries, for a checkpoint to read on another
+ * thread while lists keep growing: appends never write below a list's degree, and the blocks freed while a
+ * copy is in use are held back from the free lists until every copy is released, so none is overwritten.
+ *
+ * Lists can be read by several threads at once; changes need a single writer.
+ *
+ * @author rena
+ */
+final class OffHeapLists {
+    static final int CHUNK_BYTES = 1 << 26;
+
+    private static final int CHUNK_SHIFT = 26;
+    private static final int OFFSET_MASK = CHUNK_BYTES - 1;
+    private static final int ENTRY_BYTES = 24;
+    private static final int ENTRIES_PER_CHUNK = CHUNK_BYTES / ENTRY_BYTES;
+    // Largest block, in log2 of ints
+    private static final int MAX_BLOCK_LOG = CHUNK_SHIFT - 2;
+    private static final long NO_BLOCK = -1;
+
+    // Entry fields, in bytes from the start of the entry
+    private static final int LIST = 0;
+    private static final int TABLE = 8;
+    private static final int DEGREE = 16;
+    private static final int CAPACITY = 20;
+
+    // Mapped file the chunks are taken from, null for direct buffers
+    private final FileChannel file;
+    private int fileChunks;
+
+    private ByteBuffer[] nodeChunks = new ByteBuffer[4];
+    private int nodeChunkCount;
+    // Addresses are the index of a block chunk shifted by CHUNK_SHIFT, plus the offset in bytes
+    private ByteBuffer[] blockChunks = new ByteBuffer[4];
+    private int blockChunkCount;
+    // Next block taken from the last chunk, and the bytes left after it
+    private long blockTop;
+    private int blockRoom;
+    // First free block of each size (log2 of ints), which holds the address of the next one; NO_BLOCK if none
+    private final long[] freeBlocks = new long[MAX_BLOCK_LOG + 1];
+    private int count;
+    private int maxDegree;
+    // Frozen copies not released yet, shared with them; the blocks freed meanwhile, as pairs of address and size
+    private final AtomicInteger frozenCopies;
+    private long[] heldBlocks = new long[0];
+    private int heldCount;
+    // Set on a frozen copy once it is released
+    private boolean released;
+
+    /**
+     * Default constructor, lists kept in direct buffers
+     */
+    OffHeapLists() {
+        this.file = null;
+        this.frozenCopies = new AtomicInteger();
+        Arrays.fill(freeBlocks, NO_BLOCK);
+    }
+
+    /**
+     * Constructor- lists kept in file, which is created or emptied; the graph owns it until the process ends.
+     * @param file
+     * @throws IOException
+     */
+    OffHeapLists(Path file) throws IOException {
+        this.file = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.frozenCopies = new AtomicInteger();
+        Arrays.fill(freeBlocks, NO_BLOCK);
+    }
+
+    /**
+     * Constructor- frozen copy of other, see frozen
+     */
+    private OffHeapLists(OffHeapLists other, boolean frozen) {
+        this.file = null;
+        this.frozenCopies = other.frozenCopies;
+        this.nodeChunkCount = other.nodeChunkCount;
+        this.nodeChunks = new ByteBuffer[Math.max(1, nodeChunkCount)];
+        for (int i = 0; i < nodeChunkCount; i++) {
+            // Only the entries in use, so that a small graph does not copy whole chunks
+            int bytes = i < nodeChunkCount - 1 ? ENTRIES_PER_CHUNK * ENTRY_BYTES
+                    : (other.count - i * ENTRIES_PER_CHUNK) * ENTRY_BYTES;
+            ByteBuffer entries = other.nodeChunks[i].duplicate();
+            entries.clear().limit(bytes);
+            nodeChunks[i] = ByteBuffer.allocateDirect(Math.max(bytes, 1)).order(ByteOrder.nativeOrder()).put(entries);
+        }
+        this.blockChunkCount = other.blockChunkCount;
+        this.blockChunks = Arrays.copyOf(other.blockChunks, Math.max(1, blockChunkCount));
+        this.count = other.count;
+        this.maxDegree = other.maxDegree;
+        // The tables are written in place as neighbors are added, the copy scans its lists instead
+        for (int slot = 0; slot < count; slot++) {
+            setLong(slot, TABLE, NO_BLOCK);
+        }
+    }
+
+    /**
+     * Constructor- copy of the lists of other, in direct buffers
+     * @param other
+     */
+    OffHeapLists(OffHeapLists other) {
+        this();
+        for (int slot = 0; slot < other.count; slot++) {
+            addSlot();
+            long list = other.list(slot);
+            for (int i = 0, degree = other.degree(slot); i < degree; i++) {
+                append(slot, other.getInt(list, i));
+            }
+        }
+        this.maxDegree = other.maxDegree;
+    }
+
+    /**
+     * Returns a read-only copy of the lists as they are now, which stays the same while neighbors are added
+     * to these lists: it shares their blocks and copies their entries, without hash tables, to direct buffers,
+     * O(slots). It must be released once read; until then, no neighbor may be removed and the blocks freed
+     * are not reused.
+     * @return
+     */
+    OffHeapLists frozen() {
+        frozenCopies.incrementAndGet();
+        return new OffHeapLists(this, true);
+    }
+
+    /**
+     * Releases this frozen copy, which must not be read after: the blocks its lists hold may be reused once
+     * every copy is released. May be called from any thread, more than once.
+     */
+    synchronized void release() {
+        if (!released) {
+            released = true;
+            frozenCopies.decrementAndGet();
+        }
+    }
+
+    /**
+     * Adds an empty list and returns its slot.
+     * @return
+     */
+    int addSlot() {
+        if (count == nodeChunkCount * ENTRIES_PER_CHUNK) {
+            if (nodeChunkCount == nodeChunks.length) {
+                nodeChunks = Arrays.copyOf(nodeChunks, nodeChunkCount << 1);
+            }
+            nodeChunks[nodeChunkCount++] = newChunk();
+        }
+        setEntry(count, NO_BLOCK, NO_BLOCK, 0, 0);
+        return count++;
+    }
+
+    /**
+     * Empties the list of slot and frees its blocks.
+     * @param slot
+     */
+    void clear(int slot) {
+        freeBlock(list(slot), log2(capacity(slot)));
+        freeBlock(table(slot), log2(capacity(slot)) + 1);
+        setEntry(slot, NO_BLOCK, NO_BLOCK, 0, 0);
+    }
+
+    /**
+     * Appends neighbor, which must not be in the list yet.
+     * @param slot
+     * @param neighbor
+     */
+    void append(int slot, int neighbor) {
+        int degree = degree(slot);
+        if (degree == capacity(slot)) {
+            if (degree == 1 << (MAX_BLOCK_LOG - 1)) {
+                throw new IllegalStateException("Too many neighbors for an off-heap block: " + degree);
+            }
+            move(slot, Math.max(2, degree << 1));
+        }
+        putInt(list(slot), degree++, neighbor);
+        setInt(slot, DEGREE, degree);
+        maxDegree = Math.max(maxDegree, degree);
+
+        long table = table(slot);
+        if (table != NO_BLOCK) {
+            tableAdd(table, capacity(slot) << 1, neighbor);
+        } else if (degree > IntAdjacency.HUB_DEGREE) {
+            buildTable(slot);
+        }
+    }
+
+    /**
+     * Removes neighbor, moving the last entry into its place. Returns false if it is not in the list.
+     * @param slot
+     * @param neighbor
+     * @return
+     */
+    boolean remove(int slot, int neighbor) {
+        long table = table(slot);
+        int capacity = capacity(slot);
+        if (table != NO_BLOCK && !tableRemove(table, capacity << 1, neighbor)) {
+            return false;
+        }
+        long list = list(slot);
+        int degree = degree(slot);
+        for (int i = degree - 1; i >= 0; i--) {
+            if (getInt(list, i) == neighbor) {
+                putInt(list, i, getInt(list, --degree));
+                setInt(slot, DEGREE, degree);
+                if (table != NO_BLOCK && degree <= IntAdjacency.HUB_DEGREE >> 1) {
+                    freeBlock(table, log2(capacity) + 1);
+                    setLong(slot, TABLE, NO_BLOCK);
+                }
+                // Give back the blocks of lists that shrank a lot, keeping room to grow again
+                if (degree == 0) {
+                    clear(slot);
+                } else if (degree < capacity >> 2) {
+                    move(slot, capacity >> 1);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if neighbor is in the list of slot.
+     * @param slot
+     * @param neighbor
+     * @return
+     */
+    boolean contains(int slot, int neighbor) {
+        long table = table(slot);
+        if (table != NO_BLOCK) {
+            int stored = neighbor + 1;
+            int mask = (capacity(slot) << 1) - 1;
+            for (int i = IntIntHashMap.hash(neighbor) & mask; ; i = (i + 1) & mask) {
+                int current = getInt(table, i);
+                if (current == stored) {
+                    return true;
+                }
+                if (current == 0) {
+                    return false;
+                }
+            }
+        }
+        long list = list(slot);
+        for (int i = degree(slot) - 1; i >= 0; i--) {
+            if (getInt(list, i) == neighbor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the list of slot has a hash table.
+     * @param slot
+     * @return
+     */
+    boolean isHub(int slot) {
+        return table(slot) != NO_BLOCK;
+    }
+
+    /**
+     * Writes the neighbors of slot to the start of into, which must hold at least degree(slot) ints, and
+     * returns their number.
+     * @param slot
+     * @param into
+     * @return
+     */
+    int read(int slot, int[] into) {
+        int degree = degree(slot);
+        if (degree == 0) {
+            return 0;
+        }
+        long list = list(slot);
+        ByteBuffer chunk = blockChunks[(int) (list >>> CHUNK_SHIFT)];
+        int offset = (int) list & OFFSET_MASK;
+        for (int i = 0; i < degree; i++, offset += 4) {
+            into[i] = chunk.getInt(offset);
+        }
+        return degree;
+    }
+
+    /**
+     * Returns the number of neighbors of slot.
+     * @param slot
+     * @return
+     */
+    int degree(int slot) {
+        return getInt(slot, DEGREE);
+    }
+
+    /**
+     * Returns the number of slots.
+     * @return
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the largest degree any list has had.
+     * @return
+     */
+    int maxDegree() {
+        return maxDegree;
+    }
+
+    /**
+     * Gives slot newIndexes[slot], and replaces every neighbor by its new index. Slots whose new index is
+     * IntIntHashMap.NO_VALUE must have no neighbors and are dropped; the others keep their order and are
+     * numbered 0..kept-1.
+     * @param newIndexes
+     * @param kept
+     */
+    void renumber(int[] newIndexes, int kept) {
+        for (int slot = 0; slot < count; slot++) {
+            int index = newIndexes[slot];
+            if (index == IntIntHashMap.NO_VALUE) {
+                clear(slot);
+                continue;
+            }
+            long list = list(slot);
+            int degree = degree(slot);
+            for (int i = 0; i < degree; i++) {
+                putInt(list, i, newIndexes[getInt(list, i)]);
+            }
+            setEntry(index, list, table(slot), degree, capacity(slot));
+            if (table(index) != NO_BLOCK) {
+                freeBlock(table(index), log2(capacity(index)) + 1);
+                buildTable(index);
+            }
+        }
+        count = kept;
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used to reach the chunks.
+     * @return
+     */
+    long memoryFootprint() {
+        return MemoryEstimates.referenceArray(nodeChunks.length) + MemoryEstimates.referenceArray(blockChunks.length)
+                + MemoryEstimates.longArray(freeBlocks.length)
+                + (long) (nodeChunkCount + blockChunkCount) * (MemoryEstimates.OBJECT_HEADER + 48);
+    }
+
+    /**
+     * Returns the number of bytes of the chunks, in direct buffers or mapped from the file.
+     * @return
+     */
+    long offHeapFootprint() {
+        return (long) (nodeChunkCount + blockChunkCount) * CHUNK_BYTES;
+    }
+
+    /**
+     * Moves the list of slot to a new block of capacity ints, building its table again if it has one.
+     */
+    private void move(int slot, int capacity) {
+        long list = list(slot);
+        int oldCapacity = capacity(slot);
+        int degree = degree(slot);
+        long moved = allocate(log2(capacity));
+        for (int i = 0; i < degree; i++) {
+            putInt(moved, i, getInt(list, i));
+        }
+        freeBlock(list, log2(oldCapacity));
+        setLong(slot, LIST, moved);
+        setInt(slot, CAPACITY, capacity);
+        long table = table(slot);
+        if (table != NO_BLOCK) {
+            freeBlock(table, log2(oldCapacity) + 1);
+            buildTable(slot);
+        }
+    }
+
+    private void buildTable(int slot) {
+        int tableSize = capacity(slot) << 1;
+        long table = allocate(log2(tableSize));
+        for (int i = 0; i < tableSize; i++) {
+            putInt(table, i, 0);
+        }
+        long list = list(slot);
+        for (int i = 0, degree = degree(slot); i < degree; i++) {
+            tableAdd(table, tableSize, getInt(list, i));
+        }
+        setLong(slot, TABLE, table);
+    }
+
+    private void tableAdd(long table, int tableSize, int neighbor) {
+        int mask = tableSize - 1;
+        int i = IntIntHashMap.hash(neighbor) & mask;
+        while (getInt(table, i) != 0) {
+            i = (i + 1) & mask;
+        }
+        putInt(table, i, neighbor + 1);
+    }
+
+    /**
+     * Removes neighbor from table, moving back the entries after it as IntHashSet.remove does. Returns true
+     * if it was there.
+     */
+    private boolean tableRemove(long table, int tableSize, int neighbor) {
+        int stored = neighbor + 1;
+        int mask = tableSize - 1;
+        int i = IntIntHashMap.hash(neighbor) & mask;
+        while (getInt(table, i) != stored) {
+            if (getInt(table, i) == 0) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        int free = i;
+        for (int next = (free + 1) & mask; getInt(table, next) != 0; next = (next + 1) & mask) {
+            int home = IntIntHashMap.hash(getInt(table, next) - 1) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                putInt(table, free, getInt(table, next));
+                free = next;
+            }
+        }
+        putInt(table, free, 0);
+        return true;
+    }
+
+    /**
+     * Returns the address of a block of 2^log ints, from the free list of its size or the end of the last
+     * block chunk.
+     */
+    private long allocate(int log) {
+        long block = freeBlocks[log];
+        if (block != NO_BLOCK) {
+            freeBlocks[log] = getLong(block);
+            return block;
+        }
+        int bytes = 4 << log;
+        if (bytes > blockRoom) {
+            // Hand the end of the last chunk to the free lists, in the largest blocks it holds
+            for (int piece = MAX_BLOCK_LOG; piece >= 1; piece--) {
+                if (4 << piece <= blockRoom) {
+                    freeBlock(blockTop, piece);
+                    blockTop += 4 << piece;
+                    blockRoom -= 4 << piece;
+                }
+            }
+            if (blockChunkCount == blockChunks.length) {
+                blockChunks = Arrays.copyOf(blockChunks, blockChunkCount << 1);
+            }
+            blockChunks[blockChunkCount] = newChunk();
+            blockTop = (long) blockChunkCount++ << CHUNK_SHIFT;
+            blockRoom = CHUNK_BYTES;
+        }
+        block = blockTop;
+        blockTop += bytes;
+        blockRoom -= bytes;
+        return block;
+    }
+
+    private void freeBlock(long block, int log) {
+        if (block == NO_BLOCK) {
+            return;
+        }
+        if (frozenCopies.get() > 0) {
+            // A frozen copy may still read it
+            if (heldCount == heldBlocks.length) {
+                heldBlocks = Arrays.copyOf(heldBlocks, Math.max(16, heldCount << 1));
+            }
+            heldBlocks[heldCount++] = block;
+            heldBlocks[heldCount++] = log;
+            return;
+        }
+        while (heldCount > 0) {
+            heldCount -= 2;
+            long held = heldBlocks[heldCount];
+            int heldLog = (int) heldBlocks[heldCount + 1];
+            putLong(held, freeBlocks[heldLog]);
+            freeBlocks[heldLog] = held;
+        }
+        putLong(block, freeBlocks[log]);
+        freeBlocks[log] = block;
+    }
+
+    private ByteBuffer newChunk() {
+        ByteBuffer chunk;
+        if (file == null) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+        } else {
+            try {
+                chunk = file.map(FileChannel.MapMode.READ_WRITE, (long) fileChunks++ * CHUNK_BYTES, CHUNK_BYTES);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot grow the off-heap graph file", e);
+            }
+        }
+        return chunk.order(ByteOrder.nativeOrder());
+    }
+
+    private static int log2(int capacity) {
+        return 31 - Integer.numberOfLeadingZeros(capacity);
+    }
+
+    private long list(int slot) {
+        return getLong(slot, LIST);
+    }
+
+    private long table(int slot) {
+        return getLong(slot, TABLE);
+    }
+
+    private int capacity(int slot) {
+        return getInt(slot, CAPACITY);
+    }
+
+    private void setEntry(int slot, long list, long table, int degree, int capacity) {
+        setLong(slot, LIST, list);
+        setLong(slot, TABLE, table);
+        setInt(slot, DEGREE, degree);
+        setInt(slot, CAPACITY, capacity);
+    }
+
+    private int getInt(int slot, int field) {
+        return nodeChunks[slot / ENTRIES_PER_CHUNK].getInt(slot % ENTRIES_PER_CHUNK * ENTRY_BYTES + field);
+    }
+
+    private long getLong(int slot, int field) {
+        return nodeChunks[slot / ENTRIES_PER_CHUNK].getLong(slot % ENTRIES_PER_CHUNK * ENTRY_BYTES + field);
+    }
+
+    private void setInt(int slot, int field, int value) {
+        nodeChunks[slot / ENTRIES_PER_CHUNK].putInt(slot % ENTRIES_PER_CHUNK * ENTRY_BYTES + field, value);
+    }
+
+    private void setLong(int slot, int field, long value) {
+        nodeChunks[slot / ENTRIES_PER_CHUNK].putLong(slot % ENTRIES_PER_CHUNK * ENTRY_BYTES + field, value);
+    }
+
+    private int getInt(long block, int i) {
+        return blockChunks[(int) (block >>> CHUNK_SHIFT)].getInt(((int) block & OFFSET_MASK) + (i << 2));
+    }
+
+    private void putInt(long block, int i, int value) {
+        blockChunks[(int) (block >>> CHUNK_SHIFT)].putInt(((int) block & OFFSET_MASK) + (i << 2), value);
+    }
+
+    private long getLong(long block) {
+        return blockChunks[(int) (block >>> CHUNK_SHIFT)].getLong((int) block & OFFSET_MASK);
+    }
+
+    private void putLong(long block, long value) {
+        blockChunks[(int) (block >>> CHUNK_SHIFT)].putLong((int) block & OFFSET_MASK, value);
+    }
+}
@@ -0,0 +1,112 @@
+package com.paymo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options splits command line arguments into positional arguments and "--name=value" flags.
+ * A flag given without a value ("--name") is stored as "true".
+ *
+ * @author rena
+ */
+final class Options {
+    private final List<String> positional = new ArrayList<>();
+    private final Map<String, String> flags = new HashMap<>();
+
+    private Options() {
+    }
+
+    /**
+     * Parses args into positional arguments and flags, keeping the order of the positional ones.
+     * @param args
+     * @return
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.length() > 2) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    options.flags.put(arg.substring(2), "true");
+                } else {
+                    options.flags.put(arg.substring(2, equals), arg.substring(equals + 1));
+                }
+            } else {
+                options.positional.add(arg);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Returns the arguments that are not flags, in the order they were given.
+     * @return
+     */
+    List<String> positional() {
+        return positional;
+    }
+
+    /**
+     * Returns true if the flag was given.
+     * @param name
+     * @return
+     */
+    boolean has(String name) {
+        return flags.containsKey(name);
+    }
+
+    /**
+     * Returns the value of the flag, or defaultValue if it was not given.
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    String get(String name, String defaultValue) {
+        String value = flags.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Returns the value of the flag as an int, or defaultValue if it was not given.
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    int getInt(String name, int defaultValue) {
+        String value = flags.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+    }
+
+    /**
+     * Returns the value of the flag as a comma separated list of ints, or defaultValue if it was
+     * not given.
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    int[] getIntList(String name, int[] defaultValue) {
+        String value = flags.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        String[] items = value.split(",");
+        int[] list = new int[items.length];
+        try {
+            for (int i = 0; i < items.length; i++) {
+                list[i] = Integer.parseInt(items[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+        return list;
+    }
+}
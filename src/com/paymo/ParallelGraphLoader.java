@@ -0,0 +1,353 @@
+package com.paymo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ParallelGraphLoader builds a Graph from a batch payment file on several threads.
+ *
+ * The file is cut into byte ranges that start at the beginning of a line, and each range is parsed by
+ * its own PaymentReader on a fork-join worker, which collects the range's edges as pairs of ids.
+ * With an IdDictionary, each range numbers its ids in a dictionary of its own, and the range dictionaries
+ * are then added to the loader's one in file order, so every id gets the number it would get from reading
+ * the file on one thread.
+ * The ids of all ranges are then sorted and deduplicated to number the nodes, and each worker turns its
+ * ids into node indexes by binary search. Neighbor lists are laid out by counting each node's degree and
+ * scattering every edge endpoint into its node's slice; each slice is finally sorted and deduplicated.
+ *
+ * The result has the same nodes and edges as adding the file's edges one at a time (Graph.equals holds),
+ * with nodes numbered and neighbors listed in increasing id order rather than in the order they appear.
+ *
+ * @author rena
+ */
+final class ParallelGraphLoader {
+    // Ranges per thread, so that a slow range does not hold up the others
+    private static final int RANGES_PER_THREAD = 4;
+    private static final int MIN_RANGE_BYTES = 1 << 20;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final IdDictionary dictionary;
+    private final AtomicLong linesRead = new AtomicLong();
+    private final AtomicLong linesRejected = new AtomicLong();
+
+    /**
+     * Constructor- load with the given number of threads
+     * @param parallelism
+     */
+    ParallelGraphLoader(int parallelism) {
+        this(parallelism, null);
+    }
+
+    /**
+     * Constructor- load with the given number of threads, numbering ids with dictionary
+     * @param parallelism
+     * @param dictionary null to parse ids as ints
+     */
+    ParallelGraphLoader(int parallelism, IdDictionary dictionary) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid number of threads " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.dictionary = dictionary;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Reads the batch payment file into a new Graph.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    Graph load(final Path file) throws IOException {
+        try {
+            final long[] bounds = splitLines(file);
+            final int ranges = bounds.length - 1;
+
+            // Parse every range into pairs of ids
+            final int[][] pairs = new int[ranges][];
+            final int[] pairCounts = new int[ranges];
+            final IdDictionary[] rangeDictionaries = new IdDictionary[ranges];
+            forEachRange(ranges, new RangeTask() {
+                @Override
+                public void run(int range) throws IOException {
+                    int[] rangePairs = new int[1024];
+                    int count = 0;
+                    if (dictionary != null) {
+                        rangeDictionaries[range] = dictionary.newDictionary();
+                    }
+                    try (PaymentReader reader = new PaymentReader(file, bounds[range], bounds[range + 1], range == 0,
+                            rangeDictionaries[range])) {
+                        while (reader.next()) {
+                            if (count + 2 > rangePairs.length) {
+                                rangePairs = Arrays.copyOf(rangePairs, rangePairs.length << 1);
+                            }
+                            rangePairs[count++] = reader.id1();
+                            rangePairs[count++] = reader.id2();
+                        }
+                        linesRead.addAndGet(reader.linesRead());
+                        linesRejected.addAndGet(reader.linesRejected());
+                    }
+                    pairs[range] = rangePairs;
+                    pairCounts[range] = count;
+                }
+            });
+
+            if (dictionary != null) {
+                // Renumber the ids of each range as the dictionary numbers them, taking the ranges in order
+                final int[][] numbers = new int[ranges][];
+                for (int range = 0; range < ranges; range++) {
+                    numbers[range] = dictionary.addAll(rangeDictionaries[range]);
+                    rangeDictionaries[range] = null;
+                }
+                forEachRange(ranges, new RangeTask() {
+                    @Override
+                    public void run(int range) {
+                        int[] rangePairs = pairs[range];
+                        for (int i = 0; i < pairCounts[range]; i++) {
+                            rangePairs[i] = numbers[range][rangePairs[i]];
+                        }
+                    }
+                });
+            }
+
+            // Number the nodes in increasing id order
+            long total = 0;
+            for (int count : pairCounts) {
+                total += count;
+            }
+            if (total > Integer.MAX_VALUE - 8) {
+                throw new IOException("Too many payments in " + file + " to load in parallel");
+            }
+            final int[] ids = new int[(int) total];
+            int offset = 0;
+            for (int range = 0; range < ranges; range++) {
+                System.arraycopy(pairs[range], 0, ids, offset, pairCounts[range]);
+                offset += pairCounts[range];
+            }
+            submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Arrays.parallelSort(ids);
+                    return null;
+                }
+            });
+            final int nodeCount = unique(ids);
+            final int[] nodeIds = Arrays.copyOf(ids, nodeCount);
+
+            // Replace ids by node indexes and count the degree of each node, self loops only once
+            final AtomicIntegerArray degrees = new AtomicIntegerArray(nodeCount);
+            forEachRange(ranges, new RangeTask() {
+                @Override
+                public void run(int range) {
+                    int[] rangePairs = pairs[range];
+                    for (int i = 0; i < pairCounts[range]; i += 2) {
+                        int node1 = Arrays.binarySearch(nodeIds, 0, nodeCount, rangePairs[i]);
+                        int node2 = Arrays.binarySearch(nodeIds, 0, nodeCount, rangePairs[i + 1]);
+                        rangePairs[i] = node1;
+                        rangePairs[i + 1] = node2;
+                        degrees.incrementAndGet(node1);
+                        if (node1 != node2) {
+                            degrees.incrementAndGet(node2);
+                        }
+                    }
+                }
+            });
+
+            // Scatter each endpoint into the slice of its node
+            final int[] offsets = new int[nodeCount + 1];
+            for (int node = 0; node < nodeCount; node++) {
+                offsets[node + 1] = offsets[node] + degrees.get(node);
+            }
+            final int[] slices = ids; // same length, the sorted ids are no longer needed
+            final AtomicIntegerArray cursors = degrees;
+            for (int node = 0; node < nodeCount; node++) {
+                cursors.set(node, offsets[node]);
+            }
+            forEachRange(ranges, new RangeTask() {
+                @Override
+                public void run(int range) {
+                    int[] rangePairs = pairs[range];
+                    for (int i = 0; i < pairCounts[range]; i += 2) {
+                        int node1 = rangePairs[i];
+                        int node2 = rangePairs[i + 1];
+                        slices[cursors.getAndIncrement(node1)] = node2;
+                        if (node1 != node2) {
+                            slices[cursors.getAndIncrement(node2)] = node1;
+                        }
+                    }
+                    pairs[range] = null;
+                }
+            });
+
+            // Sort and deduplicate every slice into its neighbor list
+            final int[][] neighbors = new int[nodeCount][];
+            final long[] edgeEnds = new long[ranges];
+            forEachRange(ranges, new RangeTask() {
+                @Override
+                public void run(int range) {
+                    int from = (int) ((long) nodeCount * range / ranges);
+                    int to = (int) ((long) nodeCount * (range + 1) / ranges);
+                    long ends = 0;
+                    for (int node = from; node < to; node++) {
+                        Arrays.sort(slices, offsets[node], offsets[node + 1]);
+                        int degree = unique(slices, offsets[node], offsets[node + 1]);
+                        neighbors[node] = Arrays.copyOfRange(slices, offsets[node], offsets[node] + degree);
+                        // A self loop is one end of its edge, any other edge is counted from both ends
+                        ends += degree + (Arrays.binarySearch(neighbors[node], node) >= 0 ? 1 : 0);
+                    }
+                    edgeEnds[range] = ends;
+                }
+            });
+
+            long ends = 0;
+            for (long rangeEnds : edgeEnds) {
+                ends += rangeEnds;
+            }
+            return new Graph(nodeIds, neighbors, ends / 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of lines read by load, not counting the header.
+     * @return
+     */
+    long linesRead() {
+        return linesRead.get();
+    }
+
+    /**
+     * Returns the number of lines load skipped because they were not valid records.
+     * @return
+     */
+    long linesRejected() {
+        return linesRejected.get();
+    }
+
+    /**
+     * Returns the offsets where the ranges of the file start, followed by the file size. Each offset but
+     * the last is the start of a line.
+     */
+    private long[] splitLines(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int ranges = (int) Math.max(1, Math.min((long) parallelism * RANGES_PER_THREAD, size / MIN_RANGE_BYTES));
+            long[] bounds = new long[ranges + 1];
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (int range = 1; range < ranges; range++) {
+                bounds[range] = Math.max(bounds[range - 1], lineStartAfter(channel, size * range / ranges, buffer));
+            }
+            bounds[ranges] = size;
+            return bounds;
+        }
+    }
+
+    /**
+     * Returns the offset of the first line that starts at or after position.
+     */
+    private static long lineStartAfter(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        long offset = position - 1; // position starts a line if the byte before it ends one
+        boolean afterCarriageReturn = false;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (afterCarriageReturn) {
+                    return b == '\n' ? offset + i + 1 : offset + i;
+                }
+                if (b == '\n') {
+                    return offset + i + 1;
+                }
+                afterCarriageReturn = b == '\r';
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Removes the duplicates of the sorted array values, returning the number of distinct values left at its front.
+     */
+    private static int unique(int[] values) {
+        return unique(values, 0, values.length);
+    }
+
+    /**
+     * Removes the duplicates of the sorted values[from..to), returning the number of distinct values left
+     * from from on.
+     */
+    private static int unique(int[] values, int from, int to) {
+        if (from == to) {
+            return 0;
+        }
+        int last = from;
+        for (int i = from + 1; i < to; i++) {
+            if (values[i] != values[last]) {
+                values[++last] = values[i];
+            }
+        }
+        return last - from + 1;
+    }
+
+    /**
+     * RangeTask is the work done for one range of the file.
+     */
+    private interface RangeTask {
+        void run(int range) throws IOException;
+    }
+
+    /**
+     * Runs task for every range on the pool and waits for all of them.
+     */
+    private void forEachRange(int ranges, final RangeTask task) throws IOException {
+        List<Callable<Void>> calls = new ArrayList<>(ranges);
+        for (int range = 0; range < ranges; range++) {
+            final int current = range;
+            calls.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    task.run(current);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> result : pool.invokeAll(calls)) {
+            await(result);
+        }
+    }
+
+    private void submit(Callable<Void> call) throws IOException {
+        await(pool.submit(call));
+    }
+
+    private static void await(Future<Void> result) throws IOException {
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.paymo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PaymentReader reads payment records ("time, id1, id2, amount, message") from a csv file and extracts
+ * id1 and id2 as ints, scanning the raw bytes read from a FileChannel. No String is created per line and
+ * the message is never decoded.
+ *
+ * A line is read the way BufferedReader.readLine reads it (ended by \n, \r or \r\n), and is accepted on
+ * the same terms as splitting it on ',' and parsing fields 1 and 2 with Integer.parseInt after removing
+ * all whitespace: each id may have a sign and spaces anywhere, must have at least one digit and must fit
+ * in an int. Any other line, such as the rest of a message that spanned several lines, is skipped and the
+ * reader carries on at the next line.
+ *
+ * When given an IdDictionary, the reader passes it the bytes of fields 1 and 2 instead, and returns the
+ * dense numbers it gives them; a line is then a record if the dictionary takes both fields as ids.
+ * After readTimes, field 0 must also be a time, "yyyy-MM-dd HH:mm:ss" in UTC with optional whitespace around
+ * it, which is returned in seconds since the epoch.
+ *
+ * @author rena
+ */
+final class PaymentReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    // Returned by parseId for a field that is not an int
+    static final long INVALID = Long.MIN_VALUE;
+
+    private final FileChannel channel;
+    private final IdDictionary dictionary;
+    private final long end;
+    private long position;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferStart;
+    private int bufferEnd;
+    private boolean endOfInput;
+    private boolean skipLineFeed; // last line ended with \r, a \n right after it belongs to it
+    // Bounds of the current line in buffer, without its line terminator
+    private int lineStart;
+    private int lineEnd;
+
+    private boolean readTimes;
+    private int id1;
+    private int id2;
+    private long time;
+    private long linesRead;
+    private long linesRejected;
+
+    /**
+     * Constructor- read the whole file, skipping its header line
+     * @param file
+     * @throws IOException
+     */
+    PaymentReader(Path file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Constructor- read the whole file, skipping its header line, numbering ids with dictionary
+     * @param file
+     * @param dictionary null to parse ids as ints
+     * @throws IOException
+     */
+    PaymentReader(Path file, IdDictionary dictionary) throws IOException {
+        this(file, 0, Long.MAX_VALUE, true, dictionary);
+    }
+
+    /**
+     * Constructor- read the lines that start in the byte range [start, end) of the file.
+     * start must be the start of a line; a line starting before end is read to its end.
+     * @param file
+     * @param start
+     * @param end
+     * @param skipHeader true to skip the first line of the range
+     * @param dictionary null to parse ids as ints
+     * @throws IOException
+     */
+    PaymentReader(Path file, long start, long end, boolean skipHeader, IdDictionary dictionary) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.dictionary = dictionary;
+        this.position = start;
+        this.end = end;
+        if (skipHeader) {
+            nextLine();
+        }
+    }
+
+    /**
+     * Moves to the next valid record. Returns false at the end of the input.
+     * @return
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+        while (nextLine()) {
+            linesRead++;
+            if (parseLine()) {
+                return true;
+            }
+            linesRejected++;
+        }
+        return false;
+    }
+
+    /**
+     * Makes the reader parse the time of each record, and reject the lines whose time is not valid.
+     */
+    void readTimes() {
+        readTimes = true;
+    }
+
+    /**
+     * Returns the time of the current record in seconds since the epoch, if readTimes was called.
+     * @return
+     */
+    long time() {
+        return time;
+    }
+
+    /**
+     * Returns id1 of the current record.
+     * @return
+     */
+    int id1() {
+        return id1;
+    }
+
+    /**
+     * Returns id2 of the current record.
+     * @return
+     */
+    int id2() {
+        return id2;
+    }
+
+    /**
+     * Returns the offset in the file of the line of the current record, where a reader can start again to
+     * read it first.
+     * @return
+     */
+    long lineOffset() {
+        return offsetOf(lineStart);
+    }
+
+    /**
+     * Returns the number of lines read so far, not counting the header.
+     * @return
+     */
+    long linesRead() {
+        return linesRead;
+    }
+
+    /**
+     * Returns the number of lines skipped so far because they were not valid records.
+     * @return
+     */
+    long linesRejected() {
+        return linesRejected;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Moves lineStart and lineEnd to the next line. Returns false at the end of the input or of the range.
+     */
+    private boolean nextLine() throws IOException {
+        int scan = bufferStart;
+        while (true) {
+            if (skipLineFeed && scan < bufferEnd) {
+                skipLineFeed = false;
+                if (buffer[scan] == '\n') {
+                    scan++;
+                    bufferStart = scan;
+                }
+            }
+            if (offsetOf(bufferStart) >= end) {
+                return false;
+            }
+            while (scan < bufferEnd) {
+                byte b = buffer[scan];
+                if (b == '\n' || b == '\r') {
+                    lineStart = bufferStart;
+                    lineEnd = scan;
+                    bufferStart = scan + 1;
+                    skipLineFeed = b == '\r';
+                    return true;
+                }
+                scan++;
+            }
+            if (endOfInput) {
+                if (bufferStart == bufferEnd) {
+                    return false;
+                }
+                // Last line of the input, without a line terminator
+                lineStart = bufferStart;
+                lineEnd = bufferEnd;
+                bufferStart = bufferEnd;
+                return true;
+            }
+            scan -= bufferStart;
+            fill();
+        }
+    }
+
+    /**
+     * Returns the offset in the file of buffer[index].
+     */
+    private long offsetOf(int index) {
+        return position - bufferEnd + index;
+    }
+
+    /**
+     * Moves the unread bytes to the front of buffer and reads more after them, growing buffer when a single
+     * line fills it.
+     */
+    private void fill() throws IOException {
+        int unread = bufferEnd - bufferStart;
+        if (unread == buffer.length) {
+            byte[] larger = new byte[buffer.length << 1];
+            System.arraycopy(buffer, bufferStart, larger, 0, unread);
+            buffer = larger;
+        } else {
+            System.arraycopy(buffer, bufferStart, buffer, 0, unread);
+        }
+        bufferStart = 0;
+        bufferEnd = unread;
+
+        int read = channel.read(ByteBuffer.wrap(buffer, bufferEnd, buffer.length - bufferEnd), position);
+        if (read < 0) {
+            endOfInput = true;
+            return;
+        }
+        position += read;
+        bufferEnd += read;
+    }
+
+    /**
+     * Parses fields 1 and 2 of the current line into id1 and id2. Returns false if the line is not a record.
+     */
+    private boolean parseLine() {
+        int field1 = indexOfComma(buffer, lineStart, lineEnd);
+        if (field1 < 0) {
+            return false;
+        }
+        field1++;
+        int field2 = indexOfComma(buffer, field1, lineEnd);
+        if (field2 < 0) {
+            return false;
+        }
+        field2++;
+        int field2End = indexOfComma(buffer, field2, lineEnd);
+        if (field2End < 0) {
+            field2End = lineEnd;
+        }
+        if (readTimes) {
+            time = parseTime(lineStart, field1 - 1);
+            if (time == INVALID) {
+                return false;
+            }
+        }
+
+        if (dictionary != null) {
+            id1 = dictionary.add(buffer, field1, field2 - 1);
+            id2 = id1 == IdDictionary.NO_ID ? IdDictionary.NO_ID : dictionary.add(buffer, field2, field2End);
+            return id2 != IdDictionary.NO_ID;
+        }
+        long value1 = parseId(buffer, field1, field2 - 1);
+        if (value1 == INVALID) {
+            return false;
+        }
+        long value2 = parseId(buffer, field2, field2End);
+        if (value2 == INVALID) {
+            return false;
+        }
+        id1 = (int) value1;
+        id2 = (int) value2;
+        return true;
+    }
+
+    /**
+     * Returns the index of the first ',' in bytes[from..to), or -1 if there is none.
+     */
+    static int indexOfComma(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses bytes[from..to) as Integer.parseInt would after removing all whitespace.
+     * Returns INVALID if it is not an int.
+     */
+    static long parseId(byte[] bytes, int from, int to) {
+        boolean negative = false;
+        boolean signAllowed = true;
+        int digits = 0;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (value > 1L + Integer.MAX_VALUE) {
+                    return INVALID;
+                }
+                digits++;
+                signAllowed = false;
+            } else if ((b == '-' || b == '+') && signAllowed) {
+                negative = b == '-';
+                signAllowed = false;
+            } else if (!isWhitespace(b)) {
+                return INVALID;
+            }
+        }
+        if (digits == 0) {
+            return INVALID;
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? INVALID : value;
+    }
+
+    /**
+     * Parses buffer[from..to) as "yyyy-MM-dd HH:mm:ss" in UTC, with optional whitespace around it, into
+     * seconds since the epoch. Returns INVALID if it is not a valid time of that form.
+     */
+    private long parseTime(int from, int to) {
+        while (from < to && isWhitespace(buffer[from])) {
+            from++;
+        }
+        while (to > from && isWhitespace(buffer[to - 1])) {
+            to--;
+        }
+        if (to - from != 19 || buffer[from + 4] != '-' || buffer[from + 7] != '-' || buffer[from + 10] != ' '
+                || buffer[from + 13] != ':' || buffer[from + 16] != ':') {
+            return INVALID;
+        }
+        int year = digits(from, 4);
+        int month = digits(from + 5, 2);
+        int day = digits(from + 8, 2);
+        int hour = digits(from + 11, 2);
+        int minute = digits(from + 14, 2);
+        int second = digits(from + 17, 2);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || hour < 0 || hour > 23 || minute < 0 || minute > 59
+                || second < 0 || second > 59) {
+            return INVALID;
+        }
+        boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        int monthDays = month == 2 ? (leap ? 29 : 28) : (month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31);
+        if (day > monthDays) {
+            return INVALID;
+        }
+        // Days since 1970-01-01, counting years from March so that February comes last
+        int y = month <= 2 ? year - 1 : year;
+        int yearOfEra = y % 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long days = (y / 400) * 146097L + yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear - 719468;
+        return days * 86400 + hour * 3600 + minute * 60 + second;
+    }
+
+    /**
+     * Returns the value of the count decimal digits at buffer[from], or -1 if they are not all digits.
+     */
+    private int digits(int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns true for the bytes matched by the regex \s, other than the line terminators.
+     */
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+    }
+}
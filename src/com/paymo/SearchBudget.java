@@ -0,0 +1,62 @@
+package com.paymo;
+
+/**
+ * SearchBudget caps the work of one search of Graph.separation: the nodes it reaches, the neighbor entries
+ * it scans, and the time it runs, each unlimited when 0. A search that uses up any of them stops and answers
+ * Graph.UNDETERMINED instead of a degree of separation, and trustsUndetermined tells how such a query is
+ * then reported: as trusted, or as unverified.
+ *
+ * The limits are checked before each neighbor list is scanned: a search never scans more entries than its
+ * budget, but may reach more nodes, by those of one list, and may run over time, since the clock is read
+ * only once every CLOCK_PERIOD scanned entries.
+ *
+ * @author rena
+ */
+public final class SearchBudget {
+    // Neighbor entries scanned between two readings of the clock
+    static final int CLOCK_PERIOD = 1024;
+
+    private final long maxNodesVisited;
+    private final long maxEdgesScanned;
+    private final long maxNanos;
+    private final boolean trustsUndetermined;
+
+    /**
+     * Constructor- a budget of at most maxNodesVisited nodes, maxEdgesScanned neighbor entries and maxNanos
+     * nanoseconds per search, 0 for no limit
+     * @param maxNodesVisited
+     * @param maxEdgesScanned
+     * @param maxNanos
+     * @param trustsUndetermined
+     */
+    public SearchBudget(long maxNodesVisited, long maxEdgesScanned, long maxNanos, boolean trustsUndetermined) {
+        if (maxNodesVisited < 0 || maxEdgesScanned < 0 || maxNanos < 0) {
+            throw new IllegalArgumentException("Invalid search budget of " + maxNodesVisited + " nodes, "
+                    + maxEdgesScanned + " edges, " + maxNanos + " ns");
+        }
+        this.maxNodesVisited = maxNodesVisited;
+        this.maxEdgesScanned = maxEdgesScanned;
+        this.maxNanos = maxNanos;
+        this.trustsUndetermined = trustsUndetermined;
+    }
+
+    public long maxNodesVisited() {
+        return maxNodesVisited;
+    }
+
+    public long maxEdgesScanned() {
+        return maxEdgesScanned;
+    }
+
+    public long maxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Returns true if a query whose search ran out of budget is reported as trusted, false if unverified.
+     * @return
+     */
+    public boolean trustsUndetermined() {
+        return trustsUndetermined;
+    }
+}
@@ -0,0 +1,269 @@
+package com.paymo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SeparationCache remembers the degree of separation found for pairs of nodes, so that payments repeated
+ * between the same pair are not searched again.
+ *
+ * It relies on the graph growing: a pair found at distance d stays within d while no edge is removed, and
+ * can only get closer through edges added since. Each entry keeps the best distance found for its unordered
+ * pair (or that there is no path up to the depth searched) with the graph's version at that time, a number
+ * that changes with every edge added or removed, so invalidation costs nothing when edges are added: an
+ * entry is exact while the version is unchanged, and once it has changed
+ *  - a distance of 0 or 1 is still exact,
+ *  - a distance of 2 becomes 1 only through the pair's own edge, a single lookup,
+ *  - a longer distance d is checked by a search limited to d - 1, which is cheaper than the full one,
+ *  - a pair not connected is searched again.
+ * A graph that loses edges calls invalidate, after which the entries stored before are treated as missing
+ * and replaced as they are looked up, so removals cost O(1) here however large the cache.
+ *
+ * The cache is bounded: entries are kept in sets of WAYS, each pair hashing to one set, and a full set
+ * evicts with the CLOCK algorithm, which approximates least recently used. Positive entries get a second
+ * chance when referenced; negative ones, which go stale with any new edge, and stale ones do not.
+ * It is safe for concurrent searches: each set is guarded by one of LOCKS locks, and the search runs
+ * outside of it.
+ *
+ * @author rena
+ */
+final class SeparationCache {
+    private static final int WAYS = 8;
+    private static final int LOCKS = 64;
+    private static final long EMPTY = -1;
+    // Returned by lookups that found no entry
+    private static final int MISSING = -2;
+
+    private final int setMask;
+    private final long[] keys;
+    private final long[] versions;
+    // Best distance found, or Graph.NOT_CONNECTED
+    private final byte[] separations;
+    // Largest depth searched for a pair not connected
+    private final byte[] depths;
+    private final boolean[] referenced;
+    private final byte[] hands;
+    private final Object[] locks;
+    // Entries stored at an earlier version are stale
+    private long validVersion;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor- cache up to about capacity pairs
+     * @param capacity
+     */
+    SeparationCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid cache capacity " + capacity);
+        }
+        int sets = Integer.highestOneBit(Math.max(1, Math.min(capacity / WAYS, 1 << 26)));
+        this.setMask = sets - 1;
+        this.keys = new long[sets * WAYS];
+        this.versions = new long[sets * WAYS];
+        this.separations = new byte[sets * WAYS];
+        this.depths = new byte[sets * WAYS];
+        this.referenced = new boolean[sets * WAYS];
+        this.hands = new byte[sets];
+        this.locks = new Object[LOCKS];
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Returns the degree of separation of node1 and node2 in adjacency if it is at most maxDegree, else
+     * Graph.NOT_CONNECTED, searching only when the cache does not know it. version must be the version of
+     * the graph, which grows by at least one with every edge added or removed and must not change during the
+     * call. A search that runs out of budget (null for none) answers Graph.UNDETERMINED, which is not kept.
+     * @param adjacency
+     * @param node1
+     * @param node2
+     * @param maxDegree
+     * @param version
+     * @param budget
+     * @return
+     */
+    int separation(IntAdjacency adjacency, int node1, int node2, int maxDegree, long version, SearchBudget budget) {
+        long key = node1 < node2 ? ((long) node1 << 32) | node2 : ((long) node2 << 32) | node1;
+        int set = setOf(key);
+        int best = MISSING;
+        int depth = 0;
+        long storedVersion = 0;
+        synchronized (locks[set & (LOCKS - 1)]) {
+            int slot = find(set, key);
+            if (slot >= 0 && versions[slot] >= validVersion) {
+                best = separations[slot];
+                depth = depths[slot];
+                storedVersion = versions[slot];
+                referenced[slot] = true;
+            }
+        }
+
+        BidirectionalSearch search = BidirectionalSearch.forCurrentThread();
+        if (best >= 0) {
+            if (storedVersion == version || best <= 1) {
+                hits.increment();
+                return best <= maxDegree ? best : Graph.NOT_CONNECTED;
+            }
+            if (best == 2) {
+                hits.increment();
+                if (adjacency.hasNeighbor(node1, node2)) {
+                    put(set, key, 1, version, 0);
+                    best = 1;
+                }
+                return best <= maxDegree ? best : Graph.NOT_CONNECTED;
+            }
+            // Only a path the graph gained since can be shorter, look for that one
+            revalidations.increment();
+            int limit = Math.min(maxDegree, best - 1);
+            int found = search.separation(adjacency, node1, node2, limit, budget);
+            if (found == Graph.UNDETERMINED) {
+                // best still holds, but a shorter path may have been missed
+                return found;
+            }
+            if (found != Graph.NOT_CONNECTED) {
+                put(set, key, found, version, 0);
+                return found;
+            }
+            if (limit == best - 1) {
+                put(set, key, best, version, 0);
+                return best <= maxDegree ? best : Graph.NOT_CONNECTED;
+            }
+            return Graph.NOT_CONNECTED;
+        }
+        if (best == Graph.NOT_CONNECTED && storedVersion == version && maxDegree <= depth) {
+            hits.increment();
+            return Graph.NOT_CONNECTED;
+        }
+
+        misses.increment();
+        int found = search.separation(adjacency, node1, node2, maxDegree, budget);
+        if (found != Graph.UNDETERMINED && found <= Byte.MAX_VALUE && maxDegree <= Byte.MAX_VALUE) {
+            put(set, key, found, version, maxDegree);
+        }
+        return found;
+    }
+
+    /**
+     * Forgets every entry stored before version, for a graph that lost edges: any pair may now be further
+     * apart. Must not be called during a lookup.
+     * @param version the version of the graph once the edges were removed
+     */
+    void invalidate(long version) {
+        validVersion = version;
+    }
+
+    /**
+     * Returns the number of pairs the cache can hold.
+     * @return
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the number of lookups answered without a search.
+     * @return
+     */
+    long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups answered by a search shorter than the one asked for.
+     * @return
+     */
+    long revalidations() {
+        return revalidations.sum();
+    }
+
+    /**
+     * Returns the number of lookups that needed the full search.
+     * @return
+     */
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries evicted to make room for others.
+     * @return
+     */
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the approximate number of heap bytes used by the cache.
+     * @return
+     */
+    long memoryFootprint() {
+        return 2 * MemoryEstimates.longArray(keys.length) + 3 * MemoryEstimates.byteArray(keys.length)
+                + MemoryEstimates.byteArray(hands.length);
+    }
+
+    /**
+     * Stores separation for key, replacing its entry or an evicted one. A positive entry is not replaced by a
+     * negative one, which knows less.
+     */
+    private void put(int set, long key, int separation, long version, int depth) {
+        synchronized (locks[set & (LOCKS - 1)]) {
+            int slot = find(set, key);
+            if (slot < 0) {
+                slot = victim(set);
+            } else if (separation == Graph.NOT_CONNECTED && separations[slot] != Graph.NOT_CONNECTED
+                    && versions[slot] >= validVersion) {
+                return;
+            }
+            keys[slot] = key;
+            versions[slot] = version;
+            separations[slot] = (byte) separation;
+            depths[slot] = (byte) depth;
+            referenced[slot] = true;
+        }
+    }
+
+    private int find(int set, long key) {
+        for (int slot = set * WAYS, end = slot + WAYS; slot < end; slot++) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of set to store a new entry in: an empty one, else the one the clock hand stops at.
+     */
+    private int victim(int set) {
+        int base = set * WAYS;
+        for (int slot = base; slot < base + WAYS; slot++) {
+            if (keys[slot] == EMPTY) {
+                return slot;
+            }
+        }
+        int hand = hands[set];
+        while (true) {
+            int slot = base + hand;
+            hand = (hand + 1) & (WAYS - 1);
+            if (!referenced[slot] || separations[slot] == Graph.NOT_CONNECTED || versions[slot] < validVersion) {
+                hands[set] = (byte) hand;
+                evictions.increment();
+                return slot;
+            }
+            referenced[slot] = false;
+        }
+    }
+
+    private int setOf(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & setMask;
+    }
+}
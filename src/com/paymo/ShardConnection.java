@@ -0,0 +1,111 @@
+package com.paymo;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ShardConnection carries the binary protocol between a ShardedGraph and one of its ShardWorkers over a
+ * blocking socket: big-endian ints and longs, buffered both ways. Nothing is sent before flush.
+ *
+ * @author rena
+ */
+final class ShardConnection implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Constructor- protocol over the connected channel
+     * @param channel
+     * @throws IOException
+     */
+    ShardConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.socket().setTcpNoDelay(true);
+        in.limit(0);
+    }
+
+    /**
+     * Writes value to the output buffer.
+     * @param value
+     * @throws IOException
+     */
+    void writeInt(int value) throws IOException {
+        if (out.remaining() < 4) {
+            drain();
+        }
+        out.putInt(value);
+    }
+
+    /**
+     * Writes value to the output buffer.
+     * @param value
+     * @throws IOException
+     */
+    void writeLong(long value) throws IOException {
+        if (out.remaining() < 8) {
+            drain();
+        }
+        out.putLong(value);
+    }
+
+    /**
+     * Sends everything written so far.
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Returns the next int, waiting for it; throws EOFException if the other end closed the connection.
+     * @return
+     * @throws IOException
+     */
+    int readInt() throws IOException {
+        if (in.remaining() < 4) {
+            fill(4);
+        }
+        return in.getInt();
+    }
+
+    /**
+     * Returns the next long, waiting for it, as readInt does.
+     * @return
+     * @throws IOException
+     */
+    long readLong() throws IOException {
+        if (in.remaining() < 8) {
+            fill(8);
+        }
+        return in.getLong();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private void fill(int bytes) throws IOException {
+        in.compact();
+        while (in.position() < bytes) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("Shard connection closed");
+            }
+        }
+        in.flip();
+    }
+}
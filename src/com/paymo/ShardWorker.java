@@ -0,0 +1,195 @@
+package com.paymo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ShardWorker holds one shard of a ShardedGraph in its own process: the neighbor lists of the nodes it owns,
+ * those whose ids hash to it (owner). Lists hold local indexes; the ids of the neighbors owned by other
+ * shards get an index too, with an empty list, so that the lists can be answered with ids.
+ *
+ * The worker listens on a loopback port, prints "port N" on its standard output once it is bound, serves the
+ * first connection and exits when it is closed. Requests are an op followed by its arguments, all ints:
+ * OP_ADD count id1 id2 ... links each pair at the end or ends owned here, without an answer; OP_EXPAND count
+ * id ... answers, for each id in order, its degree followed by the ids of its neighbors, or UNKNOWN_NODE
+ * for an id that has no edge here; OP_STATS answers the number of nodes owned, neighbor entries and self
+ * loops, and the heap bytes of the lists; OP_QUIT ends the connection.
+ *
+ * Usage: ShardWorker [--off-heap] [--port=P] shard shards
+ *
+ * @author rena
+ */
+final class ShardWorker {
+    static final int OP_QUIT = 0;
+    static final int OP_ADD = 1;
+    static final int OP_EXPAND = 2;
+    static final int OP_STATS = 3;
+    // Answered by OP_EXPAND in place of the degree of a node that has no edge
+    static final int UNKNOWN_NODE = -1;
+
+    private final int shard;
+    private final int shards;
+    private final IntIntHashMap indexes = new IntIntHashMap();
+    private int[] ids = new int[16];
+    private final IntAdjacency adjacency;
+    private int[] scratch = new int[0];
+    private int owned;
+    private long entries;
+    private long loops;
+
+    /**
+     * Constructor- empty shard number shard of shards, with its lists on the heap or off it (OffHeapLists)
+     * @param shard
+     * @param shards
+     * @param offHeap
+     */
+    ShardWorker(int shard, int shards, boolean offHeap) {
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + shards);
+        }
+        this.shard = shard;
+        this.shards = shards;
+        this.adjacency = offHeap ? new IntAdjacency(new OffHeapLists()) : new IntAdjacency();
+    }
+
+    /**
+     * Returns the shard, out of shards, that owns the node with id.
+     * @param id
+     * @param shards
+     * @return
+     */
+    static int owner(int id, int shards) {
+        return (IntIntHashMap.hash(id) & Integer.MAX_VALUE) % shards;
+    }
+
+    /**
+     * Adds the edge between the nodes with ids id1 and id2 to the lists of its ends owned by this shard.
+     * @param id1
+     * @param id2
+     */
+    void addEdge(int id1, int id2) {
+        if (owner(id1, shards) == shard) {
+            link(id1, id2);
+        }
+        if (id1 != id2 && owner(id2, shards) == shard) {
+            link(id2, id1);
+        }
+    }
+
+    /**
+     * Answers the requests of connection until it ends.
+     * @param connection
+     * @throws IOException
+     */
+    void serve(ShardConnection connection) throws IOException {
+        while (true) {
+            int op;
+            try {
+                op = connection.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            switch (op) {
+                case OP_QUIT:
+                    return;
+                case OP_ADD:
+                    for (int count = connection.readInt(); count > 0; count--) {
+                        addEdge(connection.readInt(), connection.readInt());
+                    }
+                    break;
+                case OP_EXPAND:
+                    for (int count = connection.readInt(); count > 0; count--) {
+                        writeNeighbors(connection, connection.readInt());
+                    }
+                    connection.flush();
+                    break;
+                case OP_STATS:
+                    connection.writeInt(owned);
+                    connection.writeLong(entries);
+                    connection.writeLong(loops);
+                    connection.writeLong(indexes.memoryFootprint() + MemoryEstimates.intArray(ids.length)
+                            + adjacency.memoryFootprint());
+                    connection.flush();
+                    break;
+                default:
+                    throw new IOException("Unknown shard op " + op);
+            }
+        }
+    }
+
+    private void writeNeighbors(ShardConnection connection, int id) throws IOException {
+        int index = indexes.get(id);
+        if (index == IntIntHashMap.NO_VALUE || owner(id, shards) != shard) {
+            connection.writeInt(UNKNOWN_NODE);
+            return;
+        }
+        int degree = adjacency.degree(index);
+        if (scratch.length < adjacency.snapshotMaxDegree()) {
+            scratch = new int[adjacency.snapshotMaxDegree()];
+        }
+        int[] neighbors = adjacency.neighbors(index, scratch);
+        connection.writeInt(degree);
+        for (int i = 0; i < degree; i++) {
+            connection.writeInt(ids[neighbors[i]]);
+        }
+    }
+
+    private void link(int ownedId, int neighborId) {
+        int index = indexOf(ownedId);
+        if (adjacency.addNeighbor(index, indexOf(neighborId))) {
+            entries++;
+            if (ownedId == neighborId) {
+                loops++;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the node with id, giving it one if it has none.
+     */
+    private int indexOf(int id) {
+        int index = indexes.get(id);
+        if (index == IntIntHashMap.NO_VALUE) {
+            index = adjacency.addNode();
+            if (index == ids.length) {
+                ids = Arrays.copyOf(ids, index + (index >> 1));
+            }
+            ids[index] = id;
+            indexes.put(id, index);
+            if (owner(id, shards) == shard) {
+                owned++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Runs the worker of a shard until its ShardedGraph disconnects.
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parse(args);
+        List<String> positional = options.positional();
+        if (positional.size() != 2) {
+            System.err.println("Usage: ShardWorker [--off-heap] [--port=P] shard shards");
+            System.exit(2);
+        }
+        ShardWorker worker = new ShardWorker(Integer.parseInt(positional.get(0)), Integer.parseInt(positional.get(1)),
+                options.has("off-heap"));
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.getInt("port", 0)));
+            System.out.println("port " + ((InetSocketAddress) server.getLocalAddress()).getPort());
+            System.out.flush();
+            try (SocketChannel channel = server.accept(); ShardConnection connection = new ShardConnection(channel)) {
+                worker.serve(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,667 @@
+package com.paymo;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ShardedGraph splits a graph over worker processes (ShardWorker): node ids are hashed to the shard that owns
+ * them, which keeps their neighbor lists, so each process holds about 1/N of the lists and the graph can use
+ * the memory of N processes. The edges are routed to the shards of both their ends; they are
+ * buffered and sent in batches, which the shards add concurrently.
+ *
+ * Degrees of separation are found by a bidirectional breadth-first search that runs level by level: each
+ * level, the side with the smaller frontier sends the ids of its frontier to the shards that own them, which
+ * answer with their neighbors. The coordinator keeps what both sides have reached, so the search stops on the
+ * first node reached from both sides, with the same result as BidirectionalSearch.
+ *
+ * Searching one pair at a time would cost a round trip per level. So verify searches a whole window of
+ * transactions in lockstep: each round, the frontiers of all searches still running are merged into one
+ * request per shard, and the shards answer them in parallel. As in SpeculativeVerifier, the window is
+ * searched against the graph as it was before it, then committed in order: each transaction adds its edge,
+ * and a result is searched again only when the edges added earlier in the window could have made it shorter.
+ *
+ * It is meant for graphs whose lists do not fit in one heap, not as a speed-up: every level of a search costs
+ * a round trip to the workers, so a sharded run is slower than one in a single process, and gets slower as
+ * shards are added.
+ *
+ * A ShardedGraph is used by one thread.
+ *
+ * @author rena
+ */
+public final class ShardedGraph implements Closeable {
+    // Pairs sent to a shard in one OP_ADD
+    private static final int EDGE_BATCH = 4096;
+    // Result of a search that is still running
+    private static final int PENDING = -2;
+
+    private final ShardConnection[] connections;
+    private final Process[] workers;
+    private final int shards;
+    // Edges not sent yet to each shard, as pairs of ids
+    private final int[][] pendingEdges;
+    private final int[] pendingCounts;
+    // Ids asked from each shard in the current round, and the entry of their list in the round's Lists
+    private final int[][] requestIds;
+    private final int[][] requestEntries;
+    private final int[] requestCounts;
+    private final Lists roundLists = new Lists();
+    // Lists of the ends of the transactions of a window, and of a pair searched on its own
+    private final Lists endpointLists = new Lists();
+    private final Lists pairLists = new Lists();
+    private int[] roundIds = new int[1024];
+    private long searched;
+    private long researched;
+    private int nodeCount;
+    private long edgeCount;
+    private long memoryBytes;
+
+    /**
+     * Constructor- graph over the connected workers, one per shard, which are stopped by close
+     * @param connections
+     * @param workers the processes of the workers, or null entries for workers that run on their own
+     */
+    ShardedGraph(ShardConnection[] connections, Process[] workers) {
+        this.connections = connections;
+        this.workers = workers;
+        this.shards = connections.length;
+        this.pendingEdges = new int[shards][EDGE_BATCH * 2];
+        this.pendingCounts = new int[shards];
+        this.requestIds = new int[shards][64];
+        this.requestEntries = new int[shards][64];
+        this.requestCounts = new int[shards];
+    }
+
+    /**
+     * Starts shards worker processes on this host, running the JVM of this one with its class path and heap
+     * settings, and returns an empty graph split over them.
+     * @param shards
+     * @param offHeap true to keep the lists of the workers off the heap (OffHeapLists)
+     * @return
+     * @throws IOException if a worker cannot be started or reached
+     */
+    public static ShardedGraph launch(int shards, boolean offHeap) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Invalid number of shards " + shards);
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-Xmx") || argument.startsWith("-Xms") || argument.startsWith("-XX:MaxDirectMemorySize")) {
+                command.add(argument);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+        if (offHeap) {
+            command.add("--off-heap");
+        }
+        Process[] workers = new Process[shards];
+        ShardConnection[] connections = new ShardConnection[shards];
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                List<String> shardCommand = new ArrayList<>(command);
+                shardCommand.add(Integer.toString(shard));
+                shardCommand.add(Integer.toString(shards));
+                workers[shard] = new ProcessBuilder(shardCommand).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                BufferedReader output = new BufferedReader(
+                        new InputStreamReader(workers[shard].getInputStream(), StandardCharsets.US_ASCII));
+                String line = output.readLine();
+                if (line == null || !line.startsWith("port ")) {
+                    throw new IOException("Shard worker " + shard + " did not start");
+                }
+                int port = Integer.parseInt(line.substring(5).trim());
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                connections[shard] = new ShardConnection(channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Process worker : workers) {
+                if (worker != null) {
+                    worker.destroy();
+                }
+            }
+            throw e;
+        }
+        return new ShardedGraph(connections, workers);
+    }
+
+    /**
+     * Returns the number of shards.
+     * @return
+     */
+    public int shards() {
+        return shards;
+    }
+
+    /**
+     * Adds an edge between the nodes with ids id1 and id2, adding the nodes that are not in the graph. The edge
+     * is sent to the shards with the next batch, before any search.
+     * @param id1
+     * @param id2
+     * @throws IOException
+     */
+    public void addEdge(int id1, int id2) throws IOException {
+        int owner1 = ShardWorker.owner(id1, shards);
+        int owner2 = ShardWorker.owner(id2, shards);
+        queueEdge(owner1, id1, id2);
+        if (owner2 != owner1) {
+            queueEdge(owner2, id1, id2);
+        }
+    }
+
+    /**
+     * Sends the edges added so far to their shards.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        for (int shard = 0; shard < shards; shard++) {
+            sendEdges(shard);
+            connections[shard].flush();
+        }
+    }
+
+    /**
+     * Returns the degree of separation of the nodes with ids id1 and id2 if it is at most maxDegree, otherwise
+     * Graph.NOT_CONNECTED, as Graph.separation does.
+     * @param id1
+     * @param id2
+     * @param maxDegree
+     * @return
+     * @throws IOException
+     */
+    public int separation(int id1, int id2, int maxDegree) throws IOException {
+        flush();
+        Search[] searches = {new Search(id1, id2)};
+        searchAll(searches, 1, maxDegree, pairLists);
+        return searches[0].result;
+    }
+
+    /**
+     * Sets separations[i] to the degree of separation of ids1[i] and ids2[i], up to maxDegree, in the graph as
+     * it is when transaction i comes, and adds the edges of the count transactions in order.
+     * @param ids1
+     * @param ids2
+     * @param count
+     * @param maxDegree
+     * @param separations
+     * @throws IOException
+     */
+    public void verify(int[] ids1, int[] ids2, int count, int maxDegree, int[] separations) throws IOException {
+        flush();
+        Search[] searches = new Search[count];
+        for (int i = 0; i < count; i++) {
+            searches[i] = new Search(ids1[i], ids2[i]);
+        }
+        searchAll(searches, count, maxDegree, endpointLists);
+        searched += count;
+
+        // endpointLists still holds the lists of both ends of every transaction as they were before the window
+        IntIntHashMap touched = new IntIntHashMap();
+        for (int i = 0; i < count; i++) {
+            int id1 = ids1[i];
+            int id2 = ids2[i];
+            int separation = searches[i].result;
+            if (touched.size() > 0 && mayShorten(id1, id2, separation, maxDegree, touched)) {
+                separation = separation(id1, id2, maxDegree);
+                researched++;
+            }
+            separations[i] = separation;
+
+            addEdge(id1, id2);
+            if (!wasNeighbor(id1, id2)) {
+                touched.put(id1, 0);
+                touched.put(id2, 0);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Returns the number of transactions verified so far.
+     * @return
+     */
+    public long searched() {
+        return searched;
+    }
+
+    /**
+     * Returns the number of transactions that had to be searched again after the edges before them were added.
+     * @return
+     */
+    public long researched() {
+        return researched;
+    }
+
+    /**
+     * Asks every shard for the size of its part of the graph, which nodeCount, edgeCount and memoryFootprint
+     * then return.
+     * @throws IOException
+     */
+    public void refreshStats() throws IOException {
+        flush();
+        for (ShardConnection connection : connections) {
+            connection.writeInt(ShardWorker.OP_STATS);
+            connection.flush();
+        }
+        int nodes = 0;
+        long entries = 0;
+        long loops = 0;
+        long bytes = 0;
+        for (ShardConnection connection : connections) {
+            nodes += connection.readInt();
+            entries += connection.readLong();
+            loops += connection.readLong();
+            bytes += connection.readLong();
+        }
+        nodeCount = nodes;
+        // Each edge is listed at both ends, a self loop once
+        edgeCount = (entries + loops) / 2;
+        memoryBytes = bytes;
+    }
+
+    /**
+     * Returns the number of nodes at the last refreshStats.
+     * @return
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of edges at the last refreshStats.
+     * @return
+     */
+    public long edgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Returns the heap bytes used by the lists of all shards at the last refreshStats.
+     * @return
+     */
+    public long memoryFootprint() {
+        return memoryBytes;
+    }
+
+    /**
+     * Stops the workers, waiting for them to exit.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (int shard = 0; shard < shards; shard++) {
+            try {
+                connections[shard].writeInt(ShardWorker.OP_QUIT);
+                connections[shard].flush();
+                connections[shard].close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        for (Process worker : workers) {
+            if (worker != null) {
+                try {
+                    worker.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    worker.destroy();
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void queueEdge(int shard, int id1, int id2) throws IOException {
+        int[] edges = pendingEdges[shard];
+        int count = pendingCounts[shard];
+        edges[count++] = id1;
+        edges[count++] = id2;
+        pendingCounts[shard] = count;
+        if (count == edges.length) {
+            sendEdges(shard);
+        }
+    }
+
+    private void sendEdges(int shard) throws IOException {
+        int count = pendingCounts[shard];
+        if (count == 0) {
+            return;
+        }
+        ShardConnection connection = connections[shard];
+        connection.writeInt(ShardWorker.OP_ADD);
+        connection.writeInt(count >> 1);
+        int[] edges = pendingEdges[shard];
+        for (int i = 0; i < count; i++) {
+            connection.writeInt(edges[i]);
+        }
+        pendingCounts[shard] = 0;
+    }
+
+    /**
+     * Runs the count searches level by level until all have a result. The first round reads the lists of both
+     * ends of every search into endpoints.
+     */
+    private void searchAll(Search[] searches, int count, int maxDegree, Lists endpoints) throws IOException {
+        int ids = 0;
+        for (int i = 0; i < count; i++) {
+            ids = addRoundId(ids, searches[i].id1);
+            ids = addRoundId(ids, searches[i].id2);
+        }
+        endpoints.clear();
+        fetch(endpoints, ids);
+        // The searches still running, first in active
+        Search[] active = new Search[count];
+        int running = 0;
+        for (int i = 0; i < count; i++) {
+            if (searches[i].start(endpoints, maxDegree)) {
+                active[running++] = searches[i];
+            }
+        }
+        while (running > 0) {
+            ids = 0;
+            for (int i = 0; i < running; i++) {
+                Search search = active[i];
+                int[] frontier = search.frontier();
+                for (int j = 0, size = search.frontierSize(); j < size; j++) {
+                    if (endpoints.entry(frontier[j]) == IntIntHashMap.NO_VALUE) {
+                        ids = addRoundId(ids, frontier[j]);
+                    }
+                }
+            }
+            roundLists.clear();
+            fetch(roundLists, ids);
+            int stillRunning = 0;
+            for (int i = 0; i < running; i++) {
+                if (active[i].expand(roundLists, endpoints, maxDegree)) {
+                    active[stillRunning++] = active[i];
+                }
+            }
+            running = stillRunning;
+        }
+    }
+
+    private int addRoundId(int count, int id) {
+        if (count == roundIds.length) {
+            roundIds = Arrays.copyOf(roundIds, count << 1);
+        }
+        roundIds[count] = id;
+        return count + 1;
+    }
+
+    /**
+     * Reads the lists of the first count roundIds into lists, with one request per shard, all sent before
+     * any answer is read so that the shards work on them in parallel. Ids already in lists are not asked again.
+     */
+    private void fetch(Lists lists, int count) throws IOException {
+        Arrays.fill(requestCounts, 0);
+        for (int i = 0; i < count; i++) {
+            int id = roundIds[i];
+            if (lists.entry(id) != IntIntHashMap.NO_VALUE) {
+                continue;
+            }
+            int shard = ShardWorker.owner(id, shards);
+            int request = requestCounts[shard]++;
+            if (request == requestIds[shard].length) {
+                requestIds[shard] = Arrays.copyOf(requestIds[shard], request << 1);
+                requestEntries[shard] = Arrays.copyOf(requestEntries[shard], request << 1);
+            }
+            requestIds[shard][request] = id;
+            requestEntries[shard][request] = lists.reserve(id);
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            if (requestCounts[shard] > 0) {
+                ShardConnection connection = connections[shard];
+                connection.writeInt(ShardWorker.OP_EXPAND);
+                connection.writeInt(requestCounts[shard]);
+                for (int i = 0; i < requestCounts[shard]; i++) {
+                    connection.writeInt(requestIds[shard][i]);
+                }
+                connection.flush();
+            }
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            for (int i = 0; i < requestCounts[shard]; i++) {
+                lists.read(requestEntries[shard][i], connections[shard]);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the edges added earlier in the window may give id1 and id2 a path shorter than
+     * separation, or one of at most maxDegree if they were not connected, as SpeculativeVerifier does.
+     */
+    private boolean mayShorten(int id1, int id2, int separation, int maxDegree, IntIntHashMap touched) {
+        if (id1 == id2) {
+            return separation != 0; // a node that was not in the graph before the window
+        }
+        int longest = separation == Graph.NOT_CONNECTED ? maxDegree : separation - 1;
+        if (longest < 1) {
+            return false;
+        }
+        int distance1 = distanceToTouched(id1, touched);
+        if (distance1 > longest - 1) {
+            return false;
+        }
+        return distance1 + distanceToTouched(id2, touched) <= longest - 1;
+    }
+
+    /**
+     * Returns a lower bound of the distance from id to the nearest touched node: 0, 1, or 2 for farther. The
+     * list of id from before the window is enough, since a node given a new edge in the window is touched.
+     */
+    private int distanceToTouched(int id, IntIntHashMap touched) {
+        if (touched.get(id) != IntIntHashMap.NO_VALUE) {
+            return 0;
+        }
+        int entry = endpointLists.entry(id);
+        int[] pool = endpointLists.pool;
+        for (int i = endpointLists.starts[entry], end = i + Math.max(0, endpointLists.degrees[entry]); i < end; i++) {
+            if (touched.get(pool[i]) != IntIntHashMap.NO_VALUE) {
+                return 1;
+            }
+        }
+        return 2;
+    }
+
+    /**
+     * Returns true if id2 was a neighbor of id1 before the window.
+     */
+    private boolean wasNeighbor(int id1, int id2) {
+        int entry = endpointLists.entry(id1);
+        int[] pool = endpointLists.pool;
+        for (int i = endpointLists.starts[entry], end = i + Math.max(0, endpointLists.degrees[entry]); i < end; i++) {
+            if (pool[i] == id2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists holds the neighbor lists read from the shards in a round, by id: the list of entry is
+     * pool[starts[entry]..starts[entry] + degrees[entry]), and degrees[entry] is ShardWorker.UNKNOWN_NODE for
+     * an id with no edge.
+     */
+    private static final class Lists {
+        IntIntHashMap entries = new IntIntHashMap();
+        int[] starts = new int[64];
+        int[] degrees = new int[64];
+        int count;
+        int[] pool = new int[1024];
+        int poolSize;
+
+        void clear() {
+            if (count > 0) {
+                entries = new IntIntHashMap(count);
+            }
+            count = 0;
+            poolSize = 0;
+        }
+
+        int entry(int id) {
+            return entries.get(id);
+        }
+
+        /**
+         * Returns a new entry for the list of id, to be read later
+         */
+        int reserve(int id) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count << 1);
+                degrees = Arrays.copyOf(degrees, count << 1);
+            }
+            entries.put(id, count);
+            return count++;
+        }
+
+        /**
+         * Reads the answer to the list of entry from connection
+         */
+        void read(int entry, ShardConnection connection) throws IOException {
+            int degree = connection.readInt();
+            degrees[entry] = degree;
+            starts[entry] = poolSize;
+            if (degree <= 0) {
+                return;
+            }
+            if (poolSize + degree > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(poolSize + degree, pool.length << 1));
+            }
+            for (int i = 0; i < degree; i++) {
+                pool[poolSize++] = connection.readInt();
+            }
+        }
+    }
+
+    /**
+     * Search holds the state of one bidirectional search between the nodes with ids id1 and id2: the ids
+     * reached, with the side (1 or 2) that reached them, and the frontier and depth of each side.
+     */
+    private static final class Search {
+        final int id1;
+        final int id2;
+        int result = PENDING;
+        private final IntIntHashMap reached = new IntIntHashMap();
+        private int[] frontier1;
+        private int[] frontier2;
+        private int size1;
+        private int size2;
+        private int depth1;
+        private int depth2;
+
+        Search(int id1, int id2) {
+            this.id1 = id1;
+            this.id2 = id2;
+        }
+
+        /**
+         * Sets the result if it is known from the ends alone, and returns true if the search must go on.
+         */
+        boolean start(Lists endpoints, int maxDegree) {
+            if (maxDegree < 0 || endpoints.degrees[endpoints.entry(id1)] == ShardWorker.UNKNOWN_NODE
+                    || endpoints.degrees[endpoints.entry(id2)] == ShardWorker.UNKNOWN_NODE) {
+                result = Graph.NOT_CONNECTED;
+                return false;
+            }
+            if (id1 == id2) {
+                result = 0;
+                return false;
+            }
+            if (maxDegree == 0) {
+                result = Graph.NOT_CONNECTED;
+                return false;
+            }
+            reached.put(id1, 1);
+            reached.put(id2, 2);
+            frontier1 = new int[]{id1};
+            frontier2 = new int[]{id2};
+            size1 = 1;
+            size2 = 1;
+            return true;
+        }
+
+        /**
+         * Returns the frontier expanded next: the smaller one.
+         */
+        int[] frontier() {
+            return size1 <= size2 ? frontier1 : frontier2;
+        }
+
+        int frontierSize() {
+            return Math.min(size1, size2);
+        }
+
+        /**
+         * Expands the frontier returned by frontier() one level with the lists read this round, or before the
+         * window for the ends. Sets the result and returns false once it is known.
+         */
+        boolean expand(Lists round, Lists endpoints, int maxDegree) {
+            boolean first = size1 <= size2;
+            int[] frontier = first ? frontier1 : frontier2;
+            int size = first ? size1 : size2;
+            int side = first ? 1 : 2;
+            int depth = (first ? depth1 : depth2) + 1;
+            int otherDepth = first ? depth2 : depth1;
+            // On the last level, only a node reached from the other side matters
+            boolean last = depth + otherDepth >= maxDegree;
+
+            int[] next = new int[16];
+            int nextSize = 0;
+            for (int i = 0; i < size; i++) {
+                Lists lists = round;
+                int entry = round.entry(frontier[i]);
+                if (entry == IntIntHashMap.NO_VALUE) {
+                    lists = endpoints;
+                    entry = endpoints.entry(frontier[i]);
+                }
+                int[] pool = lists.pool;
+                for (int j = lists.starts[entry], end = j + Math.max(0, lists.degrees[entry]); j < end; j++) {
+                    int friend = pool[j];
+                    int reachedBy = reached.get(friend);
+                    if (reachedBy != side && reachedBy != IntIntHashMap.NO_VALUE) {
+                        // Both sides are complete up to their depth, so this is a shortest path
+                        result = depth + otherDepth;
+                        return false;
+                    }
+                    if (!last && reachedBy == IntIntHashMap.NO_VALUE) {
+                        reached.put(friend, side);
+                        if (nextSize == next.length) {
+                            next = Arrays.copyOf(next, nextSize << 1);
+                        }
+                        next[nextSize++] = friend;
+                    }
+                }
+            }
+            if (first) {
+                frontier1 = next;
+                size1 = nextSize;
+                depth1 = depth;
+            } else {
+                frontier2 = next;
+                size2 = nextSize;
+                depth2 = depth;
+            }
+            if (nextSize == 0 || depth1 + depth2 >= maxDegree) {
+                result = Graph.NOT_CONNECTED;
+                return false;
+            }
+            return true;
+        }
+    }
+}
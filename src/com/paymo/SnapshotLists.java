@@ -0,0 +1,78 @@
+package com.paymo;
+
+import java.nio.IntBuffer;
+
+/**
+ * SnapshotLists reads the neighbor lists of a snapshot from its mapped int tables: the list of node is
+ * targets[offsets[node]..offsets[node + 1]), sorted, so lookups are binary searches.
+ *
+ * @author rena
+ */
+final class SnapshotLists implements BaseLists {
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+    private final int size;
+    private final int maxDegree;
+
+    /**
+     * Constructor- lists of nodes 0..nodeCount-1 of a snapshot
+     * @param offsets
+     * @param targets
+     * @param nodeCount
+     * @param maxDegree largest degree of the snapshot's nodes
+     */
+    SnapshotLists(IntBuffer offsets, IntBuffer targets, int nodeCount, int maxDegree) {
+        this.offsets = offsets;
+        this.targets = targets;
+        this.size = nodeCount;
+        this.maxDegree = maxDegree;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int maxDegree() {
+        return maxDegree;
+    }
+
+    @Override
+    public int degree(int node) {
+        return offsets.get(node + 1) - offsets.get(node);
+    }
+
+    @Override
+    public int read(int node, int[] into) {
+        int from = offsets.get(node);
+        int to = offsets.get(node + 1);
+        for (int i = 0; from < to; i++, from++) {
+            into[i] = targets.get(from);
+        }
+        return to - offsets.get(node);
+    }
+
+    @Override
+    public boolean contains(int node, int neighbor) {
+        int low = offsets.get(node);
+        int high = offsets.get(node + 1) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = targets.get(middle);
+            if (value < neighbor) {
+                low = middle + 1;
+            } else if (value > neighbor) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long memoryFootprint() {
+        return 0;
+    }
+}
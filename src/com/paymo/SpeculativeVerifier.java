@@ -0,0 +1,195 @@
+package com.paymo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * SpeculativeVerifier finds the degrees of separation of a window of stream transactions on several threads,
+ * with the same results as checking them one at a time and adding each one's edge after its check.
+ *
+ * All the transactions of a window are first searched concurrently against the graph as it was before the
+ * window, which is not modified while they run. The window is then committed in order on the calling thread:
+ * each transaction adds its edge, and a result is searched again only if the edges added earlier in the
+ * window could have made it shorter.
+ *
+ * Added edges can only shorten paths. A shorter path through new edges runs from one end of the transaction
+ * to an endpoint of the first new edge it uses, and from an endpoint of the last new edge it uses to the
+ * other end, both over old edges. So the two ends' distances to the endpoints of new edges add up to at
+ * most the length of that path minus one. Those distances are only measured up to 1 (the end itself, or one
+ * of its neighbors, is an endpoint); when even these lower bounds add up to too much, the result stands.
+ * Edges that were already in the graph, repeated payments being the common case, change nothing.
+ *
+ * @author rena
+ */
+final class SpeculativeVerifier {
+    // Transactions searched by one task in the speculative phase
+    private static final int CHUNK_SIZE = 256;
+
+    private final ExecutorService pool;
+    private final int parallelism;
+    // Indexes of the endpoints of the edges added so far in the window
+    private int[] touched = new int[64];
+    private int touchedCount;
+    private long searched;
+    private long researched;
+
+    /**
+     * Constructor- search on the given number of threads
+     * @param parallelism
+     */
+    SpeculativeVerifier(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid number of threads " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Sets separations[i] to the degree of separation of ids1[i] and ids2[i], up to maxDegree, in g as it is
+     * when transaction i comes, and adds the edges of the count transactions to g in order. If offsets is
+     * given, the transactions follow the stream position of g, transaction i at the stream offset offsets[i],
+     * and move it on as their edges are added (Graph.setStreamPosition).
+     * @param g
+     * @param ids1
+     * @param ids2
+     * @param offsets null to leave the stream position of g as it is
+     * @param count
+     * @param maxDegree
+     * @param separations
+     */
+    void verify(final Graph g, final int[] ids1, final int[] ids2, long[] offsets, int count, final int maxDegree,
+            final int[] separations) {
+        speculate(g, ids1, ids2, count, maxDegree, separations);
+        searched += count;
+
+        touchedCount = 0;
+        IntHashSet touchedSet = new IntHashSet(16);
+        for (int i = 0; i < count; i++) {
+            int id1 = ids1[i];
+            int id2 = ids2[i];
+            if (touchedCount > 0 && mayShorten(g, id1, id2, separations[i], maxDegree, touchedSet)) {
+                separations[i] = VerificationMetrics.global().separation(g, id1, id2, maxDegree);
+                researched++;
+            }
+
+            if (offsets != null) {
+                g.setStreamPosition(g.streamPosition() + 1, offsets[i]);
+            }
+            if (!g.containsNode(id1)) {
+                g.addNode(id1);
+            }
+            if (!g.containsNode(id2)) {
+                g.addNode(id2);
+            }
+            long edgeCount = g.edgeCount();
+            g.addEdge(id1, id2);
+            if (g.edgeCount() != edgeCount) {
+                touch(g.indexOf(id1), touchedSet);
+                touch(g.indexOf(id2), touchedSet);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of transactions verified so far.
+     * @return
+     */
+    long searched() {
+        return searched;
+    }
+
+    /**
+     * Returns the number of transactions that had to be searched again after the edges before them were added.
+     * @return
+     */
+    long researched() {
+        return researched;
+    }
+
+    /**
+     * Stops the threads of the verifier.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Searches every transaction of the window against g on the pool, without modifying g.
+     */
+    private void speculate(final Graph g, final int[] ids1, final int[] ids2, int count, final int maxDegree,
+            final int[] separations) {
+        if (parallelism == 1 || count <= CHUNK_SIZE) {
+            search(g, ids1, ids2, 0, count, maxDegree, separations);
+            return;
+        }
+        List<Callable<Void>> chunks = new ArrayList<>();
+        for (int from = 0; from < count; from += CHUNK_SIZE) {
+            final int start = from;
+            final int end = Math.min(count, from + CHUNK_SIZE);
+            chunks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    search(g, ids1, ids2, start, end, maxDegree, separations);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> result : pool.invokeAll(chunks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void search(Graph g, int[] ids1, int[] ids2, int from, int to, int maxDegree, int[] separations) {
+        VerificationMetrics metrics = VerificationMetrics.global();
+        for (int i = from; i < to; i++) {
+            separations[i] = metrics.separation(g, ids1[i], ids2[i], maxDegree);
+        }
+    }
+
+    /**
+     * Returns true if the edges added earlier in the window may give id1 and id2 a path shorter than
+     * separation, or one of at most maxDegree if they were not connected. A search that ran out of budget
+     * (UNDETERMINED) is run again on the graph as committed, where its work may differ.
+     */
+    private boolean mayShorten(Graph g, int id1, int id2, int separation, int maxDegree, IntHashSet touchedSet) {
+        if (id1 == id2) {
+            return separation != 0; // a node that was not in the graph before the window
+        }
+        if (separation == Graph.UNDETERMINED) {
+            return true;
+        }
+        int longest = separation == Graph.NOT_CONNECTED ? maxDegree : separation - 1;
+        if (longest < 1) {
+            return false;
+        }
+        // Lower bounds of the distances from each end to a new edge must leave room for one new edge
+        int distance1 = g.distanceToAny(id1, touched, touchedCount, touchedSet);
+        if (distance1 > longest - 1) {
+            return false;
+        }
+        return distance1 + g.distanceToAny(id2, touched, touchedCount, touchedSet) <= longest - 1;
+    }
+
+    private void touch(int node, IntHashSet touchedSet) {
+        if (touchedSet.add(node)) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount << 1);
+            }
+            touched[touchedCount++] = node;
+        }
+    }
+}
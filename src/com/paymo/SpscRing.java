@@ -0,0 +1,148 @@
+package com.paymo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SpscRing is a bounded queue of fixed-width records of longs between one producer thread and one consumer
+ * thread, without locks. The records live in one preallocated long[]: the producer claims the slot of the
+ * next record, fills it in place and publishes it; the consumer takes the slot of the oldest record, reads
+ * it and releases it. Nothing is allocated per record.
+ *
+ * The producer's and the consumer's counts are published with ordered writes (lazySet), 128 bytes apart so
+ * that the two threads do not write to the same cache line, and each side keeps the last count it read of
+ * the other's so it only reads it again when the ring looks full or empty. A producer that finds the ring
+ * full, or a consumer that finds it empty, spins a little, then yields, then parks for short naps until the
+ * other side catches up: a slow stage holds back the stages before it instead of letting the queue grow.
+ *
+ * @author rena
+ */
+final class SpscRing {
+    // Indexes in counts of the records published and released so far
+    private static final int PUBLISHED = 15;
+    private static final int RELEASED = 31;
+    private static final int SPINS = 100;
+    private static final int YIELDS = 200;
+    private static final long PARK_NANOS = 20000;
+
+    private final long[] slots;
+    private final int width;
+    private final int mask;
+    private final AtomicLongArray counts = new AtomicLongArray(47);
+    private volatile boolean closed;
+    private volatile boolean abandoned;
+    // Producer side: records claimed, and the last count of released records read
+    private long claimed;
+    private long releasedSeen;
+    // Consumer side: records taken, and the last count of published records read
+    private long taken;
+    private long publishedSeen;
+
+    /**
+     * Constructor- room for capacity records of width longs, capacity being a power of two
+     * @param capacity
+     * @param width
+     */
+    SpscRing(int capacity, int width) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1 || width < 1) {
+            throw new IllegalArgumentException("Invalid ring of " + capacity + " records of " + width);
+        }
+        this.slots = new long[capacity * width];
+        this.width = width;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Returns the array holding the records; a record starts at an offset returned by claim or take.
+     * @return
+     */
+    long[] slots() {
+        return slots;
+    }
+
+    /**
+     * Producer: returns the offset in slots() of the next record to fill, waiting while the ring is full.
+     * Throws IllegalStateException if the consumer abandoned the ring.
+     * @return
+     */
+    int claim() {
+        if (claimed - releasedSeen > mask) {
+            for (int idle = 0; claimed - (releasedSeen = counts.get(RELEASED)) > mask; idle++) {
+                if (abandoned) {
+                    throw new IllegalStateException("Ring abandoned by its consumer");
+                }
+                idle(idle);
+            }
+        }
+        return (int) (claimed & mask) * width;
+    }
+
+    /**
+     * Producer: hands the record filled since claim to the consumer.
+     */
+    void publish() {
+        counts.lazySet(PUBLISHED, ++claimed);
+    }
+
+    /**
+     * Producer: tells the consumer that no record follows those published.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Consumer: tells the producer that no more records will be taken, so that it stops waiting for room.
+     */
+    void abandon() {
+        abandoned = true;
+    }
+
+    /**
+     * Consumer: returns the offset in slots() of the oldest record, waiting while the ring is empty, or -1
+     * once the producer closed the ring and every record was taken.
+     * @return
+     */
+    int take() {
+        if (taken == publishedSeen) {
+            for (int idle = 0; taken == (publishedSeen = counts.get(PUBLISHED)); idle++) {
+                if (closed) {
+                    // Records published before close are visible once closed is
+                    publishedSeen = counts.get(PUBLISHED);
+                    if (taken == publishedSeen) {
+                        return -1;
+                    }
+                    break;
+                }
+                idle(idle);
+            }
+        }
+        return (int) (taken & mask) * width;
+    }
+
+    /**
+     * Consumer: frees the slot of the record returned by take.
+     */
+    void release() {
+        counts.lazySet(RELEASED, ++taken);
+    }
+
+    /**
+     * Returns the number of records published and not yet released; any thread may call it.
+     * @return
+     */
+    int size() {
+        return (int) (counts.get(PUBLISHED) - counts.get(RELEASED));
+    }
+
+    private static void idle(int idle) {
+        if (idle < SPINS) {
+            return;
+        }
+        if (idle < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.paymo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * StagedVerifier verifies a stream file in three stages on three threads, so that reading, searching and
+ * writing overlap instead of taking turns: a reader thread parses the records into a ring of id pairs
+ * (and times), the calling thread searches and adds the edges in the order of the stream and puts each
+ * separation in a second ring, and a writer thread encodes the results of each degree into a direct buffer
+ * that it writes to its output file through a FileChannel. The rings are bounded single-producer,
+ * single-consumer queues (SpscRing), so a stage that falls behind makes the stage before it wait, and the
+ * order of the stream is kept from end to end. The output files are the same as those of
+ * VerifyTransaction.processTransactions on one thread.
+ *
+ * The number of records waiting in each ring is published to VerificationMetrics while the stream runs.
+ *
+ * @author rena
+ */
+final class StagedVerifier {
+    private static final int RING_SIZE = 1 << 14;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    // Records between two publications of the line counts and graph size
+    private static final int METRICS_PERIOD = 1 << 14;
+
+    // Two longs per record: id1 in the high half and id2 in the low half of the first, the time in the second
+    private final SpscRing parsed = new SpscRing(RING_SIZE, 2);
+    // One long per record: its degree of separation
+    private final SpscRing verified = new SpscRing(RING_SIZE, 1);
+    private volatile Throwable failure;
+
+    /**
+     * Verifies the records of inputFile against g, writing to each of outputFiles[i] whether they are within
+     * separationDegrees[i], and adding their edges to g in order. ids are numbered by dictionary if not null.
+     * Throws the first error of any stage once all three have stopped.
+     * @param inputFile
+     * @param outputFiles
+     * @param g
+     * @param separationDegrees
+     * @param dictionary
+     * @throws IOException
+     */
+    void verify(String inputFile, String[] outputFiles, Graph g, int[] separationDegrees, IdDictionary dictionary)
+            throws IOException {
+        if (outputFiles.length != separationDegrees.length) {
+            throw new IllegalArgumentException("Need one output file per degree of separation");
+        }
+        int maxDegree = -1;
+        for (int degree : separationDegrees) {
+            maxDegree = Math.max(maxDegree, degree);
+        }
+        final boolean timed = g.timeWindow() > 0;
+        final VerificationMetrics metrics = VerificationMetrics.global();
+
+        final PaymentReader reader = new PaymentReader(Paths.get(inputFile), dictionary);
+        final FileChannel[] channels = new FileChannel[outputFiles.length];
+        try {
+            for (int i = 0; i < outputFiles.length; i++) {
+                channels[i] = FileChannel.open(Paths.get(outputFiles[i]), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            }
+        } catch (IOException e) {
+            reader.close();
+            closeAll(channels);
+            throw e;
+        }
+        final int[] degrees = separationDegrees.clone();
+        final Graph graph = g;
+        Thread readerThread = start("payment-reader", new Runnable() {
+            @Override
+            public void run() {
+                read(reader, timed, metrics);
+            }
+        });
+        Thread writerThread = start("result-writer", new Runnable() {
+            @Override
+            public void run() {
+                write(channels, degrees, graph);
+            }
+        });
+
+        metrics.stages(parsed, verified);
+        try {
+            long[] records = parsed.slots();
+            long[] results = verified.slots();
+            int count = 0;
+            for (int at = parsed.take(); at >= 0; at = parsed.take()) {
+                long pair = records[at];
+                long time = records[at + 1];
+                parsed.release();
+                int separation = VerifyTransaction.verifyTransaction(g, (int) (pair >>> 32), (int) pair, timed, time,
+                        maxDegree, metrics);
+
+                int slot = verified.claim();
+                results[slot] = separation;
+                verified.publish();
+                if (++count % METRICS_PERIOD == 0) {
+                    metrics.graph(g);
+                }
+            }
+            metrics.graph(g);
+        } catch (RuntimeException e) {
+            fail(e);
+        } finally {
+            parsed.abandon();
+            verified.close();
+            join(readerThread);
+            join(writerThread);
+            metrics.stages(null, null);
+        }
+        Throwable cause = failure;
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause != null) {
+            throw (RuntimeException) cause;
+        }
+    }
+
+    /**
+     * Reader stage: parses the records into parsed, then closes it.
+     */
+    private void read(PaymentReader reader, boolean timed, VerificationMetrics metrics) {
+        try {
+            if (timed) {
+                reader.readTimes();
+            }
+            long[] records = parsed.slots();
+            while (reader.next()) { // Invalid lines are passed over by the reader
+                int at = parsed.claim();
+                records[at] = (long) reader.id1() << 32 | reader.id2() & 0xFFFFFFFFL;
+                records[at + 1] = reader.time();
+                parsed.publish();
+                if (reader.linesRead() % METRICS_PERIOD == 0) {
+                    metrics.streamLines(reader.linesRead(), reader.linesRejected());
+                }
+            }
+            metrics.streamLines(reader.linesRead(), reader.linesRejected());
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            parsed.close();
+            try {
+                reader.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Writer stage: writes the result of each record of verified to every channel, then closes them. g is
+     * only asked how to report the results.
+     */
+    private void write(FileChannel[] channels, int[] separationDegrees, Graph g) {
+        Charset charset = Charset.defaultCharset();
+        String lineSeparator = System.lineSeparator();
+        byte[] trusted = (VerifyTransaction.mapSolution(true) + lineSeparator).getBytes(charset);
+        byte[] unverified = (VerifyTransaction.mapSolution(false) + lineSeparator).getBytes(charset);
+        ByteBuffer[] buffers = new ByteBuffer[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        }
+        int longest = Math.max(trusted.length, unverified.length);
+        try {
+            long[] results = verified.slots();
+            for (int at = verified.take(); at >= 0; at = verified.take()) {
+                int separation = (int) results[at];
+                verified.release();
+                for (int i = 0; i < channels.length; i++) {
+                    ByteBuffer buffer = buffers[i];
+                    if (buffer.remaining() < longest) {
+                        drain(channels[i], buffer);
+                    }
+                    boolean isValid = g.withinDegree(separation, separationDegrees[i]);
+                    buffer.put(isValid ? trusted : unverified);
+                }
+            }
+            for (int i = 0; i < channels.length; i++) {
+                drain(channels[i], buffers[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            verified.abandon();
+        } finally {
+            closeAll(channels);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Keeps the first error of any stage, to be thrown by verify.
+     */
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void closeAll(FileChannel[] channels) {
+        for (FileChannel channel : channels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    private static Thread start(String name, Runnable stage) {
+        Thread thread = new Thread(stage, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.paymo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * StringIdDictionary numbers ids that are arbitrary text: a field without its leading and trailing
+ * whitespace, which must not be empty. The bytes of every id are copied once into one array, chars, where
+ * id n takes chars[starts[n]..starts[n + 1]), and the open-addressing table holds numbers only, so a lookup
+ * creates no String. Ids are compared as bytes; externalId decodes them as UTF-8.
+ *
+ * @author rena
+ */
+final class StringIdDictionary implements IdDictionary {
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] slots; // number + 1, 0 means the slot is free
+    private byte[] chars = new byte[1024];
+    private int[] starts = new int[MIN_CAPACITY + 1];
+    private int[] hashes = new int[MIN_CAPACITY];
+    private int size;
+    private int resizeAt;
+
+    /**
+     * Default constructor, no ids
+     */
+    StringIdDictionary() {
+        allocate(MIN_CAPACITY);
+    }
+
+    @Override
+    public int add(byte[] bytes, int from, int to) {
+        while (from < to && isWhitespace(bytes[from])) {
+            from++;
+        }
+        while (to > from && isWhitespace(bytes[to - 1])) {
+            to--;
+        }
+        if (from == to) {
+            return NO_ID;
+        }
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return add(bytes, from, to, hash);
+    }
+
+    @Override
+    public String externalId(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No id numbered " + id);
+        }
+        return new String(chars, starts[id], starts[id + 1] - starts[id], StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IdDictionary newDictionary() {
+        return new StringIdDictionary();
+    }
+
+    @Override
+    public int[] addAll(IdDictionary other) {
+        StringIdDictionary dictionary = (StringIdDictionary) other;
+        int[] numbers = new int[dictionary.size];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = add(dictionary.chars, dictionary.starts[i], dictionary.starts[i + 1], dictionary.hashes[i]);
+        }
+        return numbers;
+    }
+
+    @Override
+    public long memoryFootprint() {
+        return MemoryEstimates.intArray(slots.length) + MemoryEstimates.byteArray(chars.length)
+                + MemoryEstimates.intArray(starts.length) + MemoryEstimates.intArray(hashes.length);
+    }
+
+    /**
+     * Returns the number of the id in bytes[from..to), whose hash is given, numbering it if it is new.
+     */
+    private int add(byte[] bytes, int from, int to, int hash) {
+        int mask = slots.length - 1;
+        int slot = IntIntHashMap.hash(hash) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && equals(id, bytes, from, to)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int length = to - from;
+        int end = starts[size];
+        if (end + (long) length > chars.length) {
+            if (end + (long) length > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Ids too long to hold in one array");
+            }
+            chars = Arrays.copyOf(chars, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(end + (long) length, 2L * chars.length)));
+        }
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size + (size >> 1));
+            starts = Arrays.copyOf(starts, hashes.length + 1);
+        }
+        System.arraycopy(bytes, from, chars, end, length);
+        hashes[size] = hash;
+        starts[size + 1] = end + length;
+        slots[slot] = ++size;
+        if (size >= resizeAt) {
+            rehash(slots.length << 1);
+        }
+        return size - 1;
+    }
+
+    private boolean equals(int id, byte[] bytes, int from, int to) {
+        int start = starts[id];
+        if (starts[id + 1] - start != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (chars[start++] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int newCapacity) {
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = IntIntHashMap.hash(hashes[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Returns true for the bytes matched by the regex \s, other than the line terminators.
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+    }
+}
@@ -0,0 +1,440 @@
+package com.paymo;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * VerificationMetrics records how the verification of payments performs: the latency of each search and how
+ * many nodes and neighbor entries it went through, the lines read and rejected from the batch and stream
+ * files, the size of the graph and of its connected components, the edges that left its time window, how
+ * its separation cache does, how many searches ran out of their budget, and how its edge log keeps up. It
+ * is shared by the whole process (global()), exposed over JMX and can log a summary line at a fixed
+ * interval.
+ *
+ * Recording a search costs two clock reads and a few uncontended atomic increments, with no allocation, so
+ * the metrics are always on. Line counts and graph size are published by the processing thread every few
+ * thousand lines rather than per line; the graph's memory footprint, which walks every node, at most every
+ * MEMORY_REFRESH_NANOS.
+ *
+ * @author rena
+ */
+public final class VerificationMetrics implements VerificationMetricsMBean {
+    static final String OBJECT_NAME = "com.paymo:type=VerificationMetrics";
+    private static final Logger LOG = Logger.getLogger(VerificationMetrics.class.getName());
+    private static final long MEMORY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final VerificationMetrics GLOBAL = new VerificationMetrics();
+
+    private final LogHistogram latencies = new LogHistogram();
+    private final LogHistogram nodesVisited = new LogHistogram();
+    private final LogHistogram edgesScanned = new LogHistogram();
+    private final LongAdder budgetExhaustions = new LongAdder();
+
+    private volatile long batchLinesRead;
+    private volatile long batchLinesRejected;
+    private volatile long streamLinesRead;
+    private volatile long streamLinesRejected;
+    private volatile int graphNodes;
+    private volatile long graphEdges;
+    private volatile long graphMemoryBytes;
+    private volatile long graphOffHeapBytes;
+    private volatile long cacheHits;
+    private volatile long cacheRevalidations;
+    private volatile long cacheMisses;
+    private volatile long cacheEvictions;
+    private volatile int components;
+    private volatile int largestComponent;
+    private volatile long[] componentSizes = new long[Components.SIZE_CLASSES];
+    private volatile long componentRejections;
+    private volatile long expiredEdges;
+    private volatile long loggedEdges;
+    private volatile long logSyncs;
+    private volatile long checkpoints;
+    private volatile SpscRing parsedQueue;
+    private volatile SpscRing verifiedQueue;
+    private long memoryMeasuredAt;
+    private boolean memoryMeasured;
+
+    private ScheduledExecutorService logger;
+
+    VerificationMetrics() {
+    }
+
+    /**
+     * Returns the metrics of the process.
+     * @return
+     */
+    public static VerificationMetrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns g.separation(id1, id2, maxDegree), recording its latency and the cost of its search, and counting
+     * it if its search ran out of budget.
+     * @param g
+     * @param id1
+     * @param id2
+     * @param maxDegree
+     * @return
+     */
+    int separation(Graph g, int id1, int id2, int maxDegree) {
+        BidirectionalSearch search = BidirectionalSearch.forCurrentThread();
+        long visitedBefore = search.nodesVisited();
+        long scannedBefore = search.edgesScanned();
+        long start = System.nanoTime();
+        int separation = g.separation(id1, id2, maxDegree);
+        latencies.record(System.nanoTime() - start);
+        nodesVisited.record(search.nodesVisited() - visitedBefore);
+        edgesScanned.record(search.edgesScanned() - scannedBefore);
+        if (separation == Graph.UNDETERMINED) {
+            budgetExhaustions.increment();
+        }
+        return separation;
+    }
+
+    /**
+     * Publishes the line counts of the batch file.
+     * @param linesRead
+     * @param linesRejected
+     */
+    void batchLines(long linesRead, long linesRejected) {
+        batchLinesRead = linesRead;
+        batchLinesRejected = linesRejected;
+    }
+
+    /**
+     * Publishes the line counts of the stream file so far.
+     * @param linesRead
+     * @param linesRejected
+     */
+    void streamLines(long linesRead, long linesRejected) {
+        streamLinesRead = linesRead;
+        streamLinesRejected = linesRejected;
+    }
+
+    /**
+     * Publishes the size of g, its components and the counters of its separation cache and edge log. Must be
+     * called by the thread that modifies g.
+     * @param g
+     */
+    void graph(Graph g) {
+        graphNodes = g.nodeCount();
+        graphEdges = g.edgeCount();
+        long now = System.nanoTime();
+        if (!memoryMeasured || now - memoryMeasuredAt >= MEMORY_REFRESH_NANOS) {
+            graphMemoryBytes = g.memoryFootprint();
+            graphOffHeapBytes = g.offHeapFootprint();
+            memoryMeasuredAt = now;
+            memoryMeasured = true;
+        }
+        components = g.componentCount();
+        largestComponent = g.largestComponentSize();
+        componentSizes = g.componentSizeHistogram();
+        componentRejections = g.components().rejections();
+        expiredEdges = g.expiredEdgeCount();
+        SeparationCache cache = g.separationCache();
+        if (cache != null) {
+            cacheHits = cache.hits();
+            cacheRevalidations = cache.revalidations();
+            cacheMisses = cache.misses();
+            cacheEvictions = cache.evictions();
+        }
+        EdgeLog log = g.edgeLog();
+        if (log != null) {
+            loggedEdges = log.durableEdges();
+            logSyncs = log.syncs();
+            checkpoints = log.checkpoints();
+        }
+    }
+
+    /**
+     * Publishes the size of a graph split over worker processes, as of its last refreshStats. Must be called
+     * by the thread that uses g.
+     * @param g
+     */
+    void graph(ShardedGraph g) {
+        graphNodes = g.nodeCount();
+        graphEdges = g.edgeCount();
+        graphMemoryBytes = g.memoryFootprint();
+    }
+
+    /**
+     * Publishes the rings between the stages of a StagedVerifier, whose depths are then read live; null once
+     * the stream is done.
+     * @param parsed
+     * @param verified
+     */
+    void stages(SpscRing parsed, SpscRing verified) {
+        parsedQueue = parsed;
+        verifiedQueue = verified;
+    }
+
+    /**
+     * Registers the metrics as an MBean of the platform MBean server, replacing any earlier registration.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            LOG.warning("Cannot register " + OBJECT_NAME + ": " + e);
+        }
+    }
+
+    /**
+     * Logs summary() every intervalSeconds on a daemon thread, until stopLogging. 0 or less logs nothing.
+     * @param intervalSeconds
+     */
+    public synchronized void startLogging(long intervalSeconds) {
+        stopLogging();
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "verification-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logger.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                LOG.info(summary());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic log line.
+     */
+    public synchronized void stopLogging() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+
+    /**
+     * Returns the metrics as one line of text.
+     * @return
+     */
+    public String summary() {
+        return String.format(Locale.ROOT,
+                "searches=%d budget_exhausted=%d latency_ns p50=%d p99=%d p999=%d max=%d visited mean=%.1f p99=%d scanned mean=%.1f p99=%d"
+                        + " batch_lines=%d/%d rejected stream_lines=%d/%d rejected graph nodes=%d edges=%d bytes=%d off_heap=%d"
+                        + " cache hits=%d revalidated=%d misses=%d evictions=%d"
+                        + " components=%d largest=%d rejected=%d expired_edges=%d queued parsed=%d verified=%d"
+                        + " log durable=%d syncs=%d checkpoints=%d",
+                getSearches(), getBudgetExhaustions(), getLatencyP50Nanos(), getLatencyP99Nanos(), getLatencyP999Nanos(), getLatencyMaxNanos(),
+                getNodesVisitedMean(), getNodesVisitedP99(), getEdgesScannedMean(), getEdgesScannedP99(),
+                batchLinesRead, batchLinesRejected, streamLinesRead, streamLinesRejected,
+                graphNodes, graphEdges, graphMemoryBytes, graphOffHeapBytes, cacheHits, cacheRevalidations, cacheMisses, cacheEvictions,
+                components, largestComponent, componentRejections, expiredEdges, getParsedQueueDepth(),
+                getVerifiedQueueDepth(), loggedEdges, logSyncs, checkpoints);
+    }
+
+    @Override
+    public long getSearches() {
+        return latencies.count();
+    }
+
+    @Override
+    public long getBudgetExhaustions() {
+        return budgetExhaustions.sum();
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return latencies.percentile(50);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return latencies.percentile(99);
+    }
+
+    @Override
+    public long getLatencyP999Nanos() {
+        return latencies.percentile(99.9);
+    }
+
+    @Override
+    public long getLatencyMaxNanos() {
+        return latencies.max();
+    }
+
+    @Override
+    public double getLatencyMeanNanos() {
+        return latencies.mean();
+    }
+
+    @Override
+    public double getNodesVisitedMean() {
+        return nodesVisited.mean();
+    }
+
+    @Override
+    public long getNodesVisitedP99() {
+        return nodesVisited.percentile(99);
+    }
+
+    @Override
+    public long getNodesVisitedMax() {
+        return nodesVisited.max();
+    }
+
+    @Override
+    public double getEdgesScannedMean() {
+        return edgesScanned.mean();
+    }
+
+    @Override
+    public long getEdgesScannedP99() {
+        return edgesScanned.percentile(99);
+    }
+
+    @Override
+    public long getEdgesScannedMax() {
+        return edgesScanned.max();
+    }
+
+    @Override
+    public long getBatchLinesRead() {
+        return batchLinesRead;
+    }
+
+    @Override
+    public long getBatchLinesRejected() {
+        return batchLinesRejected;
+    }
+
+    @Override
+    public long getStreamLinesRead() {
+        return streamLinesRead;
+    }
+
+    @Override
+    public long getStreamLinesRejected() {
+        return streamLinesRejected;
+    }
+
+    @Override
+    public int getGraphNodes() {
+        return graphNodes;
+    }
+
+    @Override
+    public long getGraphEdges() {
+        return graphEdges;
+    }
+
+    @Override
+    public long getGraphMemoryBytes() {
+        return graphMemoryBytes;
+    }
+
+    @Override
+    public long getGraphOffHeapBytes() {
+        return graphOffHeapBytes;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    @Override
+    public long getCacheRevalidations() {
+        return cacheRevalidations;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cacheEvictions;
+    }
+
+    @Override
+    public int getComponents() {
+        return components;
+    }
+
+    @Override
+    public int getLargestComponentSize() {
+        return largestComponent;
+    }
+
+    /**
+     * Returns the number of components of each size class: entry i counts the components of 2^i to 2^(i+1)-1
+     * nodes.
+     */
+    @Override
+    public long[] getComponentSizeHistogram() {
+        return componentSizes.clone();
+    }
+
+    @Override
+    public long getComponentRejections() {
+        return componentRejections;
+    }
+
+    @Override
+    public long getExpiredEdges() {
+        return expiredEdges;
+    }
+
+    @Override
+    public long getLoggedEdges() {
+        return loggedEdges;
+    }
+
+    @Override
+    public long getLogSyncs() {
+        return logSyncs;
+    }
+
+    @Override
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    @Override
+    public int getParsedQueueDepth() {
+        SpscRing ring = parsedQueue;
+        return ring == null ? 0 : ring.size();
+    }
+
+    @Override
+    public int getVerifiedQueueDepth() {
+        SpscRing ring = verifiedQueue;
+        return ring == null ? 0 : ring.size();
+    }
+
+    /**
+     * Returns the share of cache lookups answered without a search, 0 before the first one.
+     */
+    @Override
+    public double getCacheHitRate() {
+        long lookups = cacheHits + cacheRevalidations + cacheMisses;
+        return lookups == 0 ? 0 : (double) cacheHits / lookups;
+    }
+}
@@ -0,0 +1,54 @@
+package com.paymo;
+
+/**
+ * VerificationMetricsMBean is the JMX view of VerificationMetrics, registered as
+ * com.paymo:type=VerificationMetrics. Latencies are in nanoseconds, percentiles within 1/8 of the actual value.
+ *
+ * @author rena
+ */
+public interface VerificationMetricsMBean {
+    long getSearches();
+    long getBudgetExhaustions();
+    long getLatencyP50Nanos();
+    long getLatencyP99Nanos();
+    long getLatencyP999Nanos();
+    long getLatencyMaxNanos();
+    double getLatencyMeanNanos();
+
+    double getNodesVisitedMean();
+    long getNodesVisitedP99();
+    long getNodesVisitedMax();
+    double getEdgesScannedMean();
+    long getEdgesScannedP99();
+    long getEdgesScannedMax();
+
+    long getBatchLinesRead();
+    long getBatchLinesRejected();
+    long getStreamLinesRead();
+    long getStreamLinesRejected();
+
+    int getGraphNodes();
+    long getGraphEdges();
+    long getGraphMemoryBytes();
+    long getGraphOffHeapBytes();
+
+    int getComponents();
+    int getLargestComponentSize();
+    long[] getComponentSizeHistogram();
+    long getComponentRejections();
+
+    long getExpiredEdges();
+
+    long getLoggedEdges();
+    long getLogSyncs();
+    long getCheckpoints();
+
+    int getParsedQueueDepth();
+    int getVerifiedQueueDepth();
+
+    long getCacheHits();
+    long getCacheRevalidations();
+    long getCacheMisses();
+    long getCacheEvictions();
+    double getCacheHitRate();
+}
@@ -0,0 +1,483 @@
+package com.paymo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * VerificationServer keeps a Graph in memory and verifies payments sent over a local socket, so that the
+ * batch file is loaded once rather than for every stream.
+ *
+ * The protocol is one line per request and one line per answer, in the same order; lines end with \n, \r or
+ * \r\n and blank lines are ignored. A request is a payment:
+ * either a line of the stream file format ("time, id1, id2, amount, message"), or just "id1,id2" or
+ * "id1 id2". Its ids are parsed from the bytes received as PaymentReader parses them, without a String or a
+ * regex per request, so a line of the stream format is rejected here when it is in a stream file.
+ * The answer has one word per configured degree, "trusted" or "unverified", separated by spaces, or
+ * "error ..." for a line that is not a payment. As in the stream, the payment adds its edge to the graph
+ * after it is checked. "quit" closes the connection.
+ * Requests may be pipelined: answers are buffered and only flushed when no complete request is left to read.
+ *
+ * Each connection is served by its own thread: a virtual thread when the JVM has them (Java 21), otherwise
+ * a pooled platform thread. Searches run concurrently under a read lock; a payment whose edge is new takes
+ * the write lock to add it. If the graph has a time window, payments are timed by the clock when they are
+ * received, and each is verified under the write lock, since every payment moves the window and refreshes
+ * the time of its edge. Connections borrow the searches they run from a pool of one per core, so the
+ * memory of the searches, each the size of the graph, does not grow with the number of connections.
+ * A graph that logs its edges saves a checkpoint when one is due, under the write lock, where only its
+ * frozen copy is made; the checkpoint is written in the background (Graph.checkpoint).
+ *
+ * Ids are ints, unless the server is given an IdDictionary, which numbers the ids of the requests as it
+ * numbered those of the batch; the dictionary is shared by all connections under its own lock.
+ *
+ * The server listens on "[host:]port" (the loopback address by default) or on "unix:path", a Unix-domain
+ * socket, where the JVM supports them (Java 16).
+ *
+ * @author rena
+ */
+public final class VerificationServer implements Closeable {
+    private static final Logger LOG = Logger.getLogger(VerificationServer.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Longest request line, the input buffer of a connection grows up to it
+    private static final int MAX_LINE = 16 * 1024 * 1024;
+    private static final int METRICS_PERIOD = 1 << 14;
+    private static final byte[] TRUSTED = "trusted".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UNVERIFIED = "unverified".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUIT = "quit".getBytes(StandardCharsets.US_ASCII);
+
+    private final Graph graph;
+    private final int[] degrees;
+    private final int maxDegree;
+    private final IdDictionary dictionary; // guarded by itself
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService connections;
+    private final BidirectionalSearch.Pool searches =
+            new BidirectionalSearch.Pool(Runtime.getRuntime().availableProcessors());
+    private final AtomicLong requests = new AtomicLong();
+    private long edgesAdded; // guarded by the write lock
+
+    /**
+     * Constructor- serve graph on address, answering for each of degrees
+     * @param graph
+     * @param degrees
+     * @param address "[host:]port" or "unix:path"
+     * @throws IOException if the address cannot be bound
+     */
+    public VerificationServer(Graph graph, int[] degrees, String address) throws IOException {
+        this(graph, degrees, address, null);
+    }
+
+    /**
+     * Constructor- serve graph on address, answering for each of degrees, with the ids of graph numbered by
+     * dictionary
+     * @param graph
+     * @param degrees
+     * @param address "[host:]port" or "unix:path"
+     * @param dictionary null if the ids of graph are the int ids of the payments
+     * @throws IOException if the address cannot be bound
+     */
+    public VerificationServer(Graph graph, int[] degrees, String address, IdDictionary dictionary) throws IOException {
+        if (degrees.length == 0) {
+            throw new IllegalArgumentException("Need at least one degree of separation");
+        }
+        this.graph = graph;
+        this.degrees = degrees.clone();
+        int max = -1;
+        for (int degree : degrees) {
+            max = Math.max(max, degree);
+        }
+        this.maxDegree = max;
+        this.dictionary = dictionary;
+        this.serverChannel = bind(address);
+        this.connections = newConnectionExecutor();
+    }
+
+    /**
+     * Returns the address the server listens on.
+     * @return
+     * @throws IOException
+     */
+    public SocketAddress address() throws IOException {
+        return serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    public void serve() {
+        while (serverChannel.isOpen()) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(channel);
+                    }
+                });
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot accept a connection", e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * Returns the number of requests answered so far.
+     * @return
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * Reads the requests of one connection and writes their answers until the client closes it or quits.
+     */
+    private void handle(SocketChannel channel) {
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        boolean discarding = false; // skipping the rest of a line longer than MAX_LINE
+        try {
+            try {
+                while (channel.read(in) >= 0) {
+                    in.flip();
+                    if (discarding) {
+                        discarding = !skipLine(in);
+                    }
+                    boolean quit = !discarding && answerLines(in, out, channel);
+                    in.compact();
+                    flush(channel, out);
+                    if (quit) {
+                        return;
+                    }
+                    if (!in.hasRemaining()) {
+                        if (in.capacity() < MAX_LINE) {
+                            in.flip();
+                            in = ByteBuffer.allocate(in.capacity() << 1).put(in);
+                        } else {
+                            in.clear();
+                            discarding = true;
+                            put(channel, out, "error line too long");
+                            flush(channel, out);
+                        }
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // The client went away, nothing to answer
+        }
+    }
+
+    /**
+     * Moves in past the end of the current line. Returns false if the line does not end in it.
+     */
+    private static boolean skipLine(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Answers every complete line of in, leaving a partial last line in it. Returns true if the client quit.
+     */
+    private boolean answerLines(ByteBuffer in, ByteBuffer out, SocketChannel channel) throws IOException {
+        byte[] bytes = in.array();
+        while (true) {
+            int start = in.arrayOffset() + in.position();
+            int limit = in.arrayOffset() + in.limit();
+            int end = start;
+            while (end < limit && bytes[end] != '\n' && bytes[end] != '\r') {
+                end++;
+            }
+            if (end == limit) {
+                return false;
+            }
+            in.position(end + 1 - in.arrayOffset());
+            int from = start;
+            int to = end;
+            while (from < to && PaymentReader.isWhitespace(bytes[from])) {
+                from++;
+            }
+            while (to > from && PaymentReader.isWhitespace(bytes[to - 1])) {
+                to--;
+            }
+            if (from == to) {
+                continue; // also the second half of \r\n
+            }
+            if (to - from == QUIT.length && equals(bytes, from, QUIT)) {
+                return true;
+            }
+            answer(bytes, start, end, out, channel);
+        }
+    }
+
+    private void answer(byte[] bytes, int start, int end, ByteBuffer out, SocketChannel channel) throws IOException {
+        long ids = parsePayment(bytes, start, end);
+        if (ids == INVALID) {
+            put(channel, out, "error not a payment: " + new String(bytes, start, end - start, StandardCharsets.UTF_8));
+            return;
+        }
+        int separation = verify((int) (ids >> 32), (int) ids);
+        for (int i = 0; i < degrees.length; i++) {
+            byte[] word = graph.withinDegree(separation, degrees[i]) ? TRUSTED : UNVERIFIED;
+            if (out.remaining() < word.length + 1) {
+                flush(channel, out);
+            }
+            out.put(word).put(i == degrees.length - 1 ? (byte) '\n' : (byte) ' ');
+        }
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Returns the degree of separation of id1 and id2 up to the largest degree, then adds their edge.
+     */
+    private int verify(int id1, int id2) {
+        if (graph.timeWindow() > 0) {
+            return verifyAt(id1, id2, System.currentTimeMillis() / 1000);
+        }
+        VerificationMetrics metrics = VerificationMetrics.global();
+        int separation;
+        boolean known;
+        searches.lend();
+        lock.readLock().lock();
+        try {
+            separation = metrics.separation(graph, id1, id2, maxDegree);
+            known = separation == 1 || graph.containsEdge(id1, id2);
+        } finally {
+            lock.readLock().unlock();
+            searches.giveBack();
+        }
+        if (!known) {
+            lock.writeLock().lock();
+            try {
+                if (!graph.containsNode(id1)) {
+                    graph.addNode(id1);
+                }
+                if (!graph.containsNode(id2)) {
+                    graph.addNode(id2);
+                }
+                graph.addEdge(id1, id2);
+                if (++edgesAdded % METRICS_PERIOD == 0) {
+                    metrics.graph(graph);
+                }
+                if (graph.checkpointDue()) {
+                    graph.checkpoint();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot save a checkpoint of the graph", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return separation;
+    }
+
+    /**
+     * Same as verify for a graph with a time window, for a payment at time in seconds.
+     */
+    private int verifyAt(int id1, int id2, long time) {
+        VerificationMetrics metrics = VerificationMetrics.global();
+        searches.lend();
+        lock.writeLock().lock();
+        try {
+            graph.advanceTime(time);
+            int separation = metrics.separation(graph, id1, id2, maxDegree);
+            graph.addEdge(id1, id2, time);
+            if (++edgesAdded % METRICS_PERIOD == 0) {
+                metrics.graph(graph);
+            }
+            return separation;
+        } finally {
+            lock.writeLock().unlock();
+            searches.giveBack();
+        }
+    }
+
+    // Returned by parsePayment for a line that is not a payment
+    private static final long INVALID = Long.MIN_VALUE;
+
+    /**
+     * Returns the ids of the payment on bytes[from..to) as id1 << 32 | id2, or INVALID.
+     */
+    long parsePayment(byte[] bytes, int from, int to) {
+        int comma1 = PaymentReader.indexOfComma(bytes, from, to);
+        if (comma1 < 0) {
+            // "id1 id2": two fields separated by whitespace
+            int start1 = skipWhitespace(bytes, from, to);
+            int end1 = skipField(bytes, start1, to);
+            int start2 = skipWhitespace(bytes, end1, to);
+            int end2 = skipField(bytes, start2, to);
+            if (start1 == end1 || start2 == end2 || skipWhitespace(bytes, end2, to) != to) {
+                return INVALID;
+            }
+            return ids(bytes, start1, end1, start2, end2);
+        }
+        int comma2 = PaymentReader.indexOfComma(bytes, comma1 + 1, to);
+        if (comma2 < 0) {
+            // "id1,id2"
+            return ids(bytes, from, comma1, comma1 + 1, to);
+        }
+        int comma3 = PaymentReader.indexOfComma(bytes, comma2 + 1, to);
+        return ids(bytes, comma1 + 1, comma2, comma2 + 1, comma3 < 0 ? to : comma3);
+    }
+
+    /**
+     * Returns the graph ids of the fields bytes[from1..to1) and bytes[from2..to2) as id1 << 32 | id2, numbering
+     * them in the dictionary if there is one, or INVALID if either is not an id.
+     */
+    private long ids(byte[] bytes, int from1, int to1, int from2, int to2) {
+        long id1;
+        long id2;
+        if (dictionary == null) {
+            id1 = PaymentReader.parseId(bytes, from1, to1);
+            id2 = id1 == PaymentReader.INVALID ? PaymentReader.INVALID : PaymentReader.parseId(bytes, from2, to2);
+            if (id2 == PaymentReader.INVALID) {
+                return INVALID;
+            }
+        } else {
+            synchronized (dictionary) {
+                id1 = dictionary.add(bytes, from1, to1);
+                id2 = id1 == IdDictionary.NO_ID ? IdDictionary.NO_ID : dictionary.add(bytes, from2, to2);
+            }
+            if (id2 == IdDictionary.NO_ID) {
+                return INVALID;
+            }
+        }
+        return (id1 << 32) | (id2 & 0xFFFFFFFFL);
+    }
+
+    private static int skipWhitespace(byte[] bytes, int from, int to) {
+        while (from < to && PaymentReader.isWhitespace(bytes[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int skipField(byte[] bytes, int from, int to) {
+        while (from < to && !PaymentReader.isWhitespace(bytes[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean equals(byte[] bytes, int from, byte[] word) {
+        for (int i = 0; i < word.length; i++) {
+            if (bytes[from + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void put(SocketChannel channel, ByteBuffer out, String text) throws IOException {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < bytes.length; ) {
+            if (!out.hasRemaining()) {
+                flush(channel, out);
+            }
+            int length = Math.min(out.remaining(), bytes.length - offset);
+            out.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private static void flush(SocketChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Opens a server channel bound to "[host:]port" or, where the JVM supports them, "unix:path".
+     */
+    private static ServerSocketChannel bind(String address) throws IOException {
+        if (address.startsWith("unix:")) {
+            return bindUnix(address.substring("unix:".length()));
+        }
+        int colon = address.lastIndexOf(':');
+        InetAddress host = colon < 0 ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address.substring(0, colon));
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid address " + address);
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(host, port), 1024);
+        return channel;
+    }
+
+    /**
+     * Binds a Unix-domain socket, through reflection so that the code still runs on JVMs before Java 16.
+     */
+    private static ServerSocketChannel bindUnix(String path) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            SocketAddress socketAddress = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, path);
+            ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+            java.nio.file.Files.deleteIfExists(java.nio.file.Paths.get(path));
+            channel.bind(socketAddress, 1024);
+            return channel;
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IOException("Unix-domain sockets need Java 16 or later", e);
+        }
+    }
+
+    /**
+     * Returns an executor with one virtual thread per task where the JVM has them, else a cached pool of
+     * daemon threads.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicLong count = new AtomicLong();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "verification-connection-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+}
@@ -1,13 +1,13 @@
 package com.paymo;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * VerifyTransaction reads in batch and stream data input, and writes to an output file 
@@ -16,6 +16,10 @@ import java.nio.file.Paths;
  * @author rena
  */
 public class VerifyTransaction {
+	// Stream transactions searched together when processing on several threads
+	private static final int STREAM_WINDOW = 1024;
+	// Transactions between two updates of the line counts and graph size in the metrics
+	private static final int METRICS_PERIOD = 1 << 14;
 
 	/**
 	 * Initialize Graph g using batch transactions from filename
@@ -23,41 +27,157 @@ public class VerifyTransaction {
 	 * @param g
 	 */
 	public static void initializeTransactions(String filename, Graph g) {
-		String csvFile = filename;
-		String line = "";
-
-		try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-			br.readLine(); // Read past the header line
-			while ((line = br.readLine()) != null) {
-				String[] transaction = line.split(",");
-				try{
-					int id1 = Integer.parseInt(transaction[1].replaceAll("\\s+",""));
-					int id2 = Integer.parseInt(transaction[2].replaceAll("\\s+",""));
-
-					if(!g.containsNode(id1)){
-						g.addNode(id1);
-					}
-					if(!g.containsNode(id2)){
-						g.addNode(id2);
-					}
-					
-					g.addEdge(id1, id2);
+		initializeTransactions(filename, g, null);
+	}
+
+	/**
+	 * Initialize Graph g using batch transactions from filename, with the account ids numbered by dictionary.
+	 * If g has a time window, each edge is added with the time of its payment, and lines without a valid
+	 * time are rejected.
+	 * @param filename
+	 * @param g
+	 * @param dictionary null to use the ids of the file as ints
+	 */
+	public static void initializeTransactions(String filename, Graph g, IdDictionary dictionary) {
+		VerificationMetrics metrics = VerificationMetrics.global();
+		try (PaymentReader reader = new PaymentReader(Paths.get(filename), dictionary)) {
+			boolean timed = g.timeWindow() > 0;
+			if (timed) {
+				reader.readTimes();
+			}
+			int records = 0;
+			while (reader.next()) { // Invalid lines are passed over by the reader
+				int id1 = reader.id1();
+				int id2 = reader.id2();
+				if (++records % METRICS_PERIOD == 0) {
+					metrics.batchLines(reader.linesRead(), reader.linesRejected());
+				}
+
+				if (timed) {
+					g.addEdge(id1, id2, reader.time());
+					continue;
 				}
-				catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
-					//pass over invalid data
+				if(!g.containsNode(id1)){
+					g.addNode(id1);
 				}
+				if(!g.containsNode(id2)){
+					g.addNode(id2);
+				}
+				
+				g.addEdge(id1, id2);
 			}
+			metrics.batchLines(reader.linesRead(), reader.linesRejected());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		metrics.graph(g);
+	}
+	
+	/**
+	 * Initialize the graph g split over worker processes using batch transactions from filename, with the
+	 * account ids numbered by dictionary. The edges are sent to the workers in batches as they are read.
+	 * @param filename
+	 * @param g
+	 * @param dictionary null to use the ids of the file as ints
+	 * @throws IOException if a worker cannot be reached
+	 */
+	public static void initializeTransactions(String filename, ShardedGraph g, IdDictionary dictionary) throws IOException {
+		VerificationMetrics metrics = VerificationMetrics.global();
+		try (PaymentReader reader = new PaymentReader(Paths.get(filename), dictionary)) {
+			int records = 0;
+			while (reader.next()) { // Invalid lines are passed over by the reader
+				if (++records % METRICS_PERIOD == 0) {
+					metrics.batchLines(reader.linesRead(), reader.linesRejected());
+				}
+				g.addEdge(reader.id1(), reader.id2());
+			}
+			metrics.batchLines(reader.linesRead(), reader.linesRejected());
+		}
+		g.refreshStats();
+		metrics.graph(g);
+	}
+
+	/**
+	 * Returns a Graph of the batch transactions from filename, read and built on the given number of threads
+	 * @param filename
+	 * @param threads
+	 * @return
+	 */
+	public static Graph loadTransactions(String filename, int threads) {
+		return loadTransactions(filename, threads, null);
+	}
+
+	/**
+	 * Returns a Graph of the batch transactions from filename, read and built on the given number of threads,
+	 * with the account ids numbered by dictionary
+	 * @param filename
+	 * @param threads
+	 * @param dictionary null to use the ids of the file as ints
+	 * @return
+	 */
+	public static Graph loadTransactions(String filename, int threads, IdDictionary dictionary) {
+		if (threads <= 1) {
+			Graph g = new Graph();
+			initializeTransactions(filename, g, dictionary);
+			return g;
+		}
+		try {
+			ParallelGraphLoader loader = new ParallelGraphLoader(threads, dictionary);
+			Graph g = loader.load(Paths.get(filename));
+			VerificationMetrics.global().batchLines(loader.linesRead(), loader.linesRejected());
+			VerificationMetrics.global().graph(g);
+			return g;
 		} catch (IOException e) {
 			e.printStackTrace();
+			return new Graph();
 		}
 	}
 	
+	/**
+	 * Returns the Graph of the batch transactions in filename, either parsed from the csv payment file or,
+	 * if format is "snapshot", opened from a snapshot written by Graph.writeSnapshot.
+	 * Returns null if the snapshot cannot be opened or the format is unknown.
+	 * @param filename
+	 * @param format "csv" or "snapshot"
+	 * @param threads
+	 * @return
+	 */
+	public static Graph loadTransactions(String filename, String format, int threads) {
+		return loadTransactions(filename, format, threads, null);
+	}
+
+	/**
+	 * Same as loadTransactions(filename, format, threads), with the account ids of a csv file numbered by
+	 * dictionary. A snapshot holds int ids only, so it cannot be opened with a dictionary.
+	 * @param filename
+	 * @param format "csv" or "snapshot"
+	 * @param threads
+	 * @param dictionary null to use the ids of the file as ints
+	 * @return
+	 */
+	public static Graph loadTransactions(String filename, String format, int threads, IdDictionary dictionary) {
+		if ("csv".equals(format)) {
+			return loadTransactions(filename, threads, dictionary);
+		}
+		if (!"snapshot".equals(format) || dictionary != null) {
+			return null;
+		}
+		try {
+			Graph g = Graph.openSnapshot(filename);
+			VerificationMetrics.global().graph(g);
+			return g;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	/** Takes given val and returns its mapped string
 	 * Maps: True -> trusted; False -> unverified
 	 * @param val
 	 * @return
 	 */
-	private static String mapSolution(boolean val){
+	static String mapSolution(boolean val){
 		return val ? "trusted" : "unverified";
 	}
 	
@@ -73,76 +193,617 @@ public class VerifyTransaction {
 	 * @param degreeSeparation
 	 */
 	public static void processTransactions(String inputFile, String outputFile, Graph g, int degreeSeparation) {
-		Path read_path = Paths.get(inputFile);
-		Path write_path = Paths.get(outputFile);
-		String line = "";
+		processTransactions(inputFile, new String[]{outputFile}, g, new int[]{degreeSeparation});
+	}
 
-		try(BufferedReader reader = Files.newBufferedReader(read_path, Charset.defaultCharset());
-			BufferedWriter writer = Files.newBufferedWriter(write_path, Charset.defaultCharset())){
-			
-			reader.readLine(); // Read past the header line
-
-			while ((line = reader.readLine()) != null) {
-				String[] transaction = line.split(",");
-				try{
-					int id1 = Integer.parseInt(transaction[1].replaceAll("\\s+",""));
-					int id2 = Integer.parseInt(transaction[2].replaceAll("\\s+",""));
-
-					boolean isValid = false;
-					//If both nodes are in graph, check if they are within degreeSeparation from each other
-					if(g.containsNode(id1) && g.containsNode(id2)){
-						isValid = g.BFS(id1, id2, degreeSeparation);
+	/**
+	 * For each transaction in the input file, find in Graph g the degree of separation of the participants
+	 * with a single search, and write to each of outputFiles[i] whether they are within separationDegrees[i].
+	 * The stream is read once and every transaction adds its edge to g once, so the result is the same as
+	 * processing the stream separately for each degree on its own copy of g.
+	 * If g has a time window, it is moved to the time of each transaction before the transaction is verified,
+	 * and lines without a valid time are rejected.
+	 * If g logs its edges (Graph.enableEdgeLog), a checkpoint is saved whenever one is due, once the answers
+	 * so far are written, and a graph recovered from its log resumes the stream after the payments answered,
+	 * appending to the output files (Graph.recover).
+	 *
+	 * @param inputFile
+	 * @param outputFiles
+	 * @param g
+	 * @param separationDegrees
+	 */
+	public static void processTransactions(String inputFile, String[] outputFiles, Graph g, int[] separationDegrees) {
+		processTransactions(inputFile, outputFiles, g, separationDegrees, 1, null);
+	}
+
+	/**
+	 * Returns the degree of separation of id1 and id2 in g, up to maxDegree, then adds their edge to g,
+	 * paid at time if timed (after moving the time window of g to it).
+	 */
+	static int verifyTransaction(Graph g, int id1, int id2, boolean timed, long time, int maxDegree,
+			VerificationMetrics metrics) {
+		if (timed) {
+			//Only the edges paid within the window count
+			g.advanceTime(time);
+		}
+
+		int separation = Graph.NOT_CONNECTED;
+		//If both nodes are in graph, find how far they are from each other, up to the largest degree asked
+		if(g.containsNode(id1) && g.containsNode(id2)){
+			separation = metrics.separation(g, id1, id2, maxDegree);
+		}
+		else{//If one or more nodes not in graph, the transaction is unverified. Add new nodes to graph.
+			if(!g.containsNode(id1)){
+				g.addNode(id1);
+			}
+			if(!g.containsNode(id2)){
+				g.addNode(id2);
+			}
+		}
+		if (timed) {
+			g.addEdge(id1, id2, time);
+		} else {
+			g.addEdge(id1, id2);// The new transaction may add another edge to the graph
+		}
+		return separation;
+	}
+
+	/**
+	 * Verifies the stream on one thread, see processTransactions.
+	 */
+	private static void verifySequentially(String inputFile, String[] outputFiles, Graph g, int[] separationDegrees,
+			IdDictionary dictionary) {
+		if (outputFiles.length != separationDegrees.length) {
+			throw new IllegalArgumentException("Need one output file per degree of separation");
+		}
+		int maxDegree = -1;
+		for (int degree : separationDegrees) {
+			maxDegree = Math.max(maxDegree, degree);
+		}
+
+		BufferedWriter[] writers = new BufferedWriter[outputFiles.length];
+
+		try(PaymentReader reader = openStream(inputFile, g, dictionary)){
+			for (int i = 0; i < outputFiles.length; i++) {
+				writers[i] = openOutput(outputFiles[i], g);
+			}
+			boolean timed = g.timeWindow() > 0;
+			if (timed) {
+				reader.readTimes();
+			}
+
+			VerificationMetrics metrics = VerificationMetrics.global();
+			int records = 0;
+			while (reader.next()) { // Invalid lines are passed over by the reader
+				int id1 = reader.id1();
+				int id2 = reader.id2();
+				if (++records % METRICS_PERIOD == 0) {
+					metrics.streamLines(reader.linesRead(), reader.linesRejected());
+					metrics.graph(g);
+				}
+				g.setStreamPosition(g.streamPosition() + 1, reader.lineOffset());
+				int separation = verifyTransaction(g, id1, id2, timed, reader.time(), maxDegree, metrics);
+				
+				for (int i = 0; i < writers.length; i++) {
+					boolean isValid = g.withinDegree(separation, separationDegrees[i]);
+					writers[i].write(mapSolution(isValid));
+					writers[i].newLine();
+				}
+				checkpointIfDue(g, writers, outputFiles);
+			}
+			metrics.streamLines(reader.linesRead(), reader.linesRejected());
+			metrics.graph(g);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeAll(writers);
+		}
+	}
+
+	/**
+	 * Same as processTransactions(inputFile, outputFiles, g, separationDegrees), searching on the given number
+	 * of threads. The stream is read in windows of transactions that are searched concurrently against the
+	 * graph as it was before the window, then committed in order (SpeculativeVerifier), so the output files
+	 * are the same as with a single thread. A graph with a time window, whose edges expire as the stream
+	 * goes, is verified on one thread.
+	 *
+	 * @param inputFile
+	 * @param outputFiles
+	 * @param g
+	 * @param separationDegrees
+	 * @param threads
+	 */
+	public static void processTransactions(String inputFile, String[] outputFiles, Graph g, int[] separationDegrees,
+			int threads) {
+		processTransactions(inputFile, outputFiles, g, separationDegrees, threads, null);
+	}
+
+	/**
+	 * Same as processTransactions(inputFile, outputFiles, g, separationDegrees, threads), with the account ids
+	 * of the stream numbered by dictionary, which must be the one that numbered the ids of g.
+	 *
+	 * @param inputFile
+	 * @param outputFiles
+	 * @param g
+	 * @param separationDegrees
+	 * @param threads
+	 * @param dictionary null to use the ids of the file as ints
+	 */
+	public static void processTransactions(String inputFile, String[] outputFiles, Graph g, int[] separationDegrees,
+			int threads, IdDictionary dictionary) {
+		processTransactions(inputFile, outputFiles, g, separationDegrees, threads, dictionary, false);
+	}
+
+	/**
+	 * Same as processTransactions(inputFile, outputFiles, g, separationDegrees, threads, dictionary). If
+	 * pipelined and the stream is verified on one thread, reading, verifying and writing run as three stages
+	 * on their own threads, connected by bounded queues (StagedVerifier); the output files are the same.
+	 * A graph that logs its edges is not pipelined, as its checkpoints wait for the answers written.
+	 *
+	 * @param inputFile
+	 * @param outputFiles
+	 * @param g
+	 * @param separationDegrees
+	 * @param threads
+	 * @param dictionary null to use the ids of the file as ints
+	 * @param pipelined
+	 */
+	public static void processTransactions(String inputFile, String[] outputFiles, Graph g, int[] separationDegrees,
+			int threads, IdDictionary dictionary, boolean pipelined) {
+		if ((threads <= 1 || g.timeWindow() > 0) && pipelined && g.edgeLog() == null) {
+			try {
+				new StagedVerifier().verify(inputFile, outputFiles, g, separationDegrees, dictionary);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		if (threads <= 1 || g.timeWindow() > 0) {
+			verifySequentially(inputFile, outputFiles, g, separationDegrees, dictionary);
+			return;
+		}
+		if (outputFiles.length != separationDegrees.length) {
+			throw new IllegalArgumentException("Need one output file per degree of separation");
+		}
+		int maxDegree = -1;
+		for (int degree : separationDegrees) {
+			maxDegree = Math.max(maxDegree, degree);
+		}
+
+		BufferedWriter[] writers = new BufferedWriter[outputFiles.length];
+		SpeculativeVerifier verifier = new SpeculativeVerifier(threads);
+		int[] ids1 = new int[STREAM_WINDOW];
+		int[] ids2 = new int[STREAM_WINDOW];
+		long[] offsets = new long[STREAM_WINDOW];
+		int[] separations = new int[STREAM_WINDOW];
+
+		try(PaymentReader reader = openStream(inputFile, g, dictionary)){
+			for (int i = 0; i < outputFiles.length; i++) {
+				writers[i] = openOutput(outputFiles[i], g);
+			}
+
+			VerificationMetrics metrics = VerificationMetrics.global();
+			int windows = 0;
+			boolean more = true;
+			while (more) {
+				int count = 0;
+				while (count < STREAM_WINDOW && (more = reader.next())) { // Invalid lines are passed over by the reader
+					ids1[count] = reader.id1();
+					ids2[count] = reader.id2();
+					offsets[count] = reader.lineOffset();
+					count++;
+				}
+				//Find every separation of the window, adding its edges to the graph in order
+				verifier.verify(g, ids1, ids2, offsets, count, maxDegree, separations);
+				metrics.streamLines(reader.linesRead(), reader.linesRejected());
+				if (++windows % (METRICS_PERIOD / STREAM_WINDOW) == 0 || !more) {
+					metrics.graph(g);
+				}
+
+				for (int t = 0; t < count; t++) {
+					for (int i = 0; i < writers.length; i++) {
+						boolean isValid = g.withinDegree(separations[t], separationDegrees[i]);
+						writers[i].write(mapSolution(isValid));
+						writers[i].newLine();
 					}
-					else{//If one or more nodes not in graph, the transaction is unverified. Add new nodes to graph.
-						if(!g.containsNode(id1)){
-							g.addNode(id1);
-						}
-						if(!g.containsNode(id2)){
-							g.addNode(id2);
-						}
+				}
+				checkpointIfDue(g, writers, outputFiles);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			verifier.shutdown();
+			closeAll(writers);
+		}
+	}
+
+	/**
+	 * Same as processTransactions(inputFile, outputFiles, g, separationDegrees, threads, dictionary) on a graph
+	 * split over worker processes. The stream is read in windows of transactions that are searched together,
+	 * level by level, then committed in order (ShardedGraph.verify), so the output files are the same as with
+	 * a Graph. Searches are not timed one by one in the metrics.
+	 *
+	 * @param inputFile
+	 * @param outputFiles
+	 * @param g
+	 * @param separationDegrees
+	 * @param dictionary null to use the ids of the file as ints
+	 * @throws IOException if a worker cannot be reached
+	 */
+	public static void processTransactions(String inputFile, String[] outputFiles, ShardedGraph g, int[] separationDegrees,
+			IdDictionary dictionary) throws IOException {
+		if (outputFiles.length != separationDegrees.length) {
+			throw new IllegalArgumentException("Need one output file per degree of separation");
+		}
+		int maxDegree = -1;
+		for (int degree : separationDegrees) {
+			maxDegree = Math.max(maxDegree, degree);
+		}
+
+		BufferedWriter[] writers = new BufferedWriter[outputFiles.length];
+		int[] ids1 = new int[STREAM_WINDOW];
+		int[] ids2 = new int[STREAM_WINDOW];
+		int[] separations = new int[STREAM_WINDOW];
+
+		try(PaymentReader reader = new PaymentReader(Paths.get(inputFile), dictionary)){
+			for (int i = 0; i < outputFiles.length; i++) {
+				writers[i] = Files.newBufferedWriter(Paths.get(outputFiles[i]), Charset.defaultCharset());
+			}
+
+			VerificationMetrics metrics = VerificationMetrics.global();
+			int windows = 0;
+			boolean more = true;
+			while (more) {
+				int count = 0;
+				while (count < STREAM_WINDOW && (more = reader.next())) { // Invalid lines are passed over by the reader
+					ids1[count] = reader.id1();
+					ids2[count] = reader.id2();
+					count++;
+				}
+				//Find every separation of the window on the workers, adding its edges to the graph in order
+				g.verify(ids1, ids2, count, maxDegree, separations);
+				metrics.streamLines(reader.linesRead(), reader.linesRejected());
+				if (++windows % (METRICS_PERIOD / STREAM_WINDOW) == 0 || !more) {
+					g.refreshStats();
+					metrics.graph(g);
+				}
+
+				for (int t = 0; t < count; t++) {
+					for (int i = 0; i < writers.length; i++) {
+						boolean isValid = separations[t] != Graph.NOT_CONNECTED && separations[t] <= separationDegrees[i];
+						writers[i].write(mapSolution(isValid));
+						writers[i].newLine();
 					}
-					g.addEdge(id1, id2);// The new transaction may add another edge to the graph
-					
-				    writer.write(mapSolution(isValid));
-				    writer.newLine();
 				}
-				catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
-					//pass over invalid data
+			}
+		} finally {
+			closeAll(writers);
+		}
+	}
+
+	/**
+	 * Opens inputFile for the stream of g. A graph recovered from its edge log resumes the stream after the
+	 * payments answered (Graph.answeredPayments): it holds the edges of those up to its stream position, and
+	 * the edges of the others are added again, without verifying them.
+	 * @param inputFile
+	 * @param g
+	 * @param dictionary null to use the ids of the file as ints
+	 * @return
+	 * @throws IOException
+	 */
+	private static PaymentReader openStream(String inputFile, Graph g, IdDictionary dictionary) throws IOException {
+		if (g.answeredPayments() == 0) {
+			return new PaymentReader(Paths.get(inputFile), dictionary);
+		}
+		PaymentReader reader = g.streamPosition() == 0 ? new PaymentReader(Paths.get(inputFile), dictionary)
+				: new PaymentReader(Paths.get(inputFile), g.streamOffset(), Long.MAX_VALUE, false, dictionary);
+		try {
+			if (g.streamPosition() > 0) {
+				reader.next(); // The payment at the stream position, whose edge is in the graph
+			}
+			while (g.streamPosition() < g.answeredPayments() && reader.next()) {
+				g.setStreamPosition(g.streamPosition() + 1, reader.lineOffset());
+				if (!g.containsNode(reader.id1())) {
+					g.addNode(reader.id1());
+				}
+				if (!g.containsNode(reader.id2())) {
+					g.addNode(reader.id2());
 				}
+				g.addEdge(reader.id1(), reader.id2());
 			}
+		} catch (IOException | RuntimeException e) {
+			reader.close();
+			throw e;
+		}
+		return reader;
+	}
+
+	/**
+	 * Opens outputFile for the answers of the stream of g: appended to after the payments answered when g was
+	 * recovered from its edge log, emptied otherwise.
+	 * @param outputFile
+	 * @param g
+	 * @return
+	 * @throws IOException
+	 */
+	private static BufferedWriter openOutput(String outputFile, Graph g) throws IOException {
+		if (g.answeredPayments() > 0) {
+			return Files.newBufferedWriter(Paths.get(outputFile), Charset.defaultCharset(), StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		}
+		return Files.newBufferedWriter(Paths.get(outputFile), Charset.defaultCharset());
+	}
+
+	/**
+	 * Saves a checkpoint of g if one is due, after writing out the answers so far, which recovery resumes
+	 * after.
+	 * @param g
+	 * @param writers
+	 * @param outputFiles
+	 * @throws IOException
+	 */
+	private static void checkpointIfDue(Graph g, BufferedWriter[] writers, String[] outputFiles) throws IOException {
+		if (g.checkpointDue()) {
+			for (BufferedWriter writer : writers) {
+				writer.flush();
+			}
+			g.checkpoint(outputFiles);
+		}
+	}
+
+	/**
+	 * Closes every writer that was opened, printing rather than throwing any error.
+	 * @param writers
+	 */
+	private static void closeAll(BufferedWriter[] writers) {
+		for (BufferedWriter writer : writers) {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for the edges logged by g to be on disk and closes its edge log, printing rather than throwing
+	 * any error.
+	 * @param g
+	 */
+	private static void closeEdgeLog(Graph g) {
+		try {
+			g.disableEdgeLog();
 		} catch (IOException e) {
 			e.printStackTrace();
-		}	
+		}
 	}
 
 	/**
-	 * Initialize graphs with batch data and use streamed data to test all three features
-	 * Features are: 'Friend', 'Friend of Friend', '4th degree Friend'
+	 * Initialize the graph with batch data and use streamed data to test all requested features
+	 * Features are by default: 'Friend', 'Friend of Friend', '4th degree Friend'
+	 *
+	 * Usage: VerifyTransaction [--degrees=1,2,4] [--threads=T] [--two-hop-cap=N [--two-hop-memory-mb=M]]
+	 *                          [--cache-entries=N] [--compress] [--batch-format=csv|snapshot] [--write-snapshot=FILE]
+	 *                          [--ids=int|long|string] [--window=SECONDS] [--off-heap | --off-heap-file=FILE]
+	 *                          [--budget-nodes=N] [--budget-edges=N] [--budget-micros=N] [--on-budget=unverified|trusted]
+	 *                          [--log-dir=DIR [--checkpoint-edges=N]] [--shards=N] [--pipeline] [--metrics-interval=S]
+	 *                          batch_file stream_file output_file...
+	 *        VerifyTransaction [options] --listen=[host:]port|unix:path batch_file
+	 * with one output file per degree. --threads loads the batch file and verifies the stream on T threads
+	 * (1 by default); the output is the same whatever the number of threads.
+	 * --two-hop-cap enables the neighborhood index of the graph for nodes with at most N two-hop neighbors,
+	 * using at most M megabytes (by default a quarter of the heap).
+	 * --cache-entries keeps the degrees of separation of up to N pairs, so that repeated payments are not
+	 * searched again.
+	 * --compress keeps the batch graph's neighbor lists compressed (Graph.compress), for batches that barely
+	 * fit in the heap otherwise.
+	 * --batch-format=snapshot opens batch_file as a graph snapshot instead of parsing it as csv, and
+	 * --write-snapshot saves the batch graph to FILE before the stream is processed, for later runs.
+	 * --ids=long or --ids=string reads account ids as 64-bit integers or as text instead of ints, numbering
+	 * them densely (IdDictionary) before they reach the graph; snapshots only hold int ids.
+	 * --window removes the edges with no payment in the last SECONDS before the latest payment read
+	 * (Graph.enableTimeWindow), so that old payments stop counting and the graph stops growing. Batch and
+	 * stream are then read on one thread, and the batch must be csv and not compressed.
+	 * --off-heap keeps the neighbor lists outside the Java heap in direct buffers, and --off-heap-file in FILE
+	 * mapped as it grows (Graph.offHeap), so that a large graph does not lengthen garbage collections. The
+	 * batch is then read on one thread, and must be csv and not compressed.
+	 * --budget-nodes, --budget-edges and --budget-micros limit each search to N nodes reached, N neighbor
+	 * entries scanned or N microseconds (Graph.enableSearchBudget); a payment whose search runs out is written
+	 * as unverified, or as trusted with --on-budget=trusted, and counted in the metrics.
+	 * --log-dir logs every new edge to a write-ahead log in DIR and saves the graph there as a checkpoint
+	 * every N logged edges (1,000,000 by default, Graph.enableEdgeLog), in the background. When DIR already
+	 * holds a checkpoint, the graph is recovered from it and the edges logged since (Graph.recover), and
+	 * batch_file is not read; the stream then resumes after the payments whose answers are in the output
+	 * files, which are appended to. It works with int ids and without --window; --pipeline is then ignored.
+	 * --shards splits the graph over N worker processes started on this host (ShardedGraph), each holding the
+	 * lists of the nodes whose ids hash to it; searches exchange their frontiers with the workers level by
+	 * level. It is for graphs that do not fit in one heap and is not a speed-up: each level of a search is a
+	 * round trip, so a sharded run is slower than an unsharded one, more so with more shards. It works with
+	 * --ids and --off-heap (which then applies to the workers), not with the other options of the graph, the
+	 * search budget, the edge log, nor with --listen.
+	 * --pipeline reads the stream, verifies it and writes the output files on three threads connected by
+	 * bounded queues (StagedVerifier), when the stream is verified on one thread.
+	 * --metrics-interval logs the metrics of the run every S seconds and once at the end, and registers them
+	 * over JMX as com.paymo:type=VerificationMetrics; by default (0) nothing is logged. With --listen the
+	 * metrics are always registered over JMX.
+	 * --listen keeps the batch graph loaded and verifies payments sent over a local socket instead of a
+	 * stream file (VerificationServer), until the process is stopped.
 	 *
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if (args.length >= 5) {
-			//args[0] is the batch datafile, args[1] is the stream data file
-			String batchDataFile = args[0];
-			String streamDataFile = args[1];
-			
-			//Initialize 3 graphs- one for each feature requested: 
-			Graph g1 = new Graph();
-			initializeTransactions(batchDataFile, g1);
+		Options options = Options.parse(args);
+		//Process each feature (#1- friend, #2- friend of friend, #3- 4th degree friend)
+		int[] separationDegrees = options.getIntList("degrees", new int[]{1,2,4});
+		List<String> files = options.positional();
 
-			Graph g2 = new Graph(g1);
-			Graph g3 = new Graph(g1);
+		boolean serve = options.has("listen");
 
-			//args[2], args[3], args[4] are the output datafiles names
-			String[] outputNames = new String[]{args[2], args[3], args[4]};
-			int[] separationDegrees = new int[]{1,2,4};
-			Graph[] graphs = new Graph[]{g1, g2, g3};
+		if (files.size() >= (serve ? 1 : 2 + separationDegrees.length)) {
+			//files[0] is the batch datafile, files[1] is the stream data file
+			String batchDataFile = files.get(0);
 			
-			//Process each feature (#1- friend, #2- friend of friend, #3- 4th degree friend)
-			for(int i = 0; i < outputNames.length; i++){
-				processTransactions(streamDataFile, outputNames[i], graphs[i], separationDegrees[i]);
+			//Initialize the graph shared by all features
+			int threads = options.getInt("threads", 1);
+			IdDictionary dictionary = IdDictionary.forFormat(options.get("ids", "int"));
+			if (dictionary != null && (options.has("write-snapshot") || "snapshot".equals(options.get("batch-format", "csv")))) {
+				System.err.println("Snapshots only hold int ids, they cannot be used with --ids=" + options.get("ids", null));
+				return;
+			}
+			boolean windowed = options.has("window");
+			if (windowed && (options.has("compress") || "snapshot".equals(options.get("batch-format", "csv")))) {
+				System.err.println("Edges of a snapshot or compressed graph cannot expire, --window needs a csv batch without --compress");
+				return;
+			}
+			boolean offHeap = options.has("off-heap") || options.has("off-heap-file");
+			if (offHeap && (options.has("compress") || "snapshot".equals(options.get("batch-format", "csv")))) {
+				System.err.println("Lists kept off the heap are neither compressed nor mapped from a snapshot, --off-heap needs a csv batch without --compress");
+				return;
+			}
+			SearchBudget budget = null;
+			if (options.has("budget-nodes") || options.has("budget-edges") || options.has("budget-micros")) {
+				String onBudget = options.get("on-budget", "unverified");
+				if (!onBudget.equals("unverified") && !onBudget.equals("trusted")) {
+					System.err.println("--on-budget is unverified or trusted, not " + onBudget);
+					return;
+				}
+				budget = new SearchBudget(options.getInt("budget-nodes", 0), options.getInt("budget-edges", 0),
+						options.getInt("budget-micros", 0) * 1000L, onBudget.equals("trusted"));
+			}
+			String logDirectory = options.get("log-dir", null);
+			if (logDirectory != null && (dictionary != null || windowed)) {
+				System.err.println("The edge log holds int ids of edges that do not expire, --log-dir cannot be used with --ids or --window");
+				return;
+			}
+			boolean sharded = options.has("shards");
+			if (sharded && (serve || windowed || budget != null || logDirectory != null || options.has("compress") || options.has("two-hop-cap") || options.has("cache-entries")
+					|| options.has("off-heap-file") || options.has("write-snapshot") || !"csv".equals(options.get("batch-format", "csv")))) {
+				System.err.println("--shards only works with a csv batch and stream, --ids and --off-heap, and without a search budget or edge log");
+				return;
+			}
+			VerificationMetrics metrics = VerificationMetrics.global();
+			long metricsInterval = options.getInt("metrics-interval", 0);
+			if (metricsInterval > 0 || serve) {
+				metrics.register();
+			}
+			metrics.startLogging(metricsInterval);
+			if (sharded) {
+				String[] outputNames = files.subList(2, 2 + separationDegrees.length).toArray(new String[0]);
+				try (ShardedGraph g = ShardedGraph.launch(options.getInt("shards", 1), offHeap)) {
+					initializeTransactions(batchDataFile, g, dictionary);
+					processTransactions(files.get(1), outputNames, g, separationDegrees, dictionary);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				metrics.stopLogging();
+				if (metricsInterval > 0) {
+					Logger.getLogger(VerifyTransaction.class.getName()).info(metrics.summary());
+				}
+				return;
+			}
+			long checkpointEdges = options.getInt("checkpoint-edges", 1000000);
+			//files[2], files[3], ... are the output datafiles names, one per degree
+			String[] outputNames = serve ? new String[0] : files.subList(2, 2 + separationDegrees.length).toArray(new String[0]);
+			boolean recovered;
+			Graph g;
+			try {
+				recovered = logDirectory != null && Graph.hasCheckpoint(logDirectory);
+				long start = System.nanoTime();
+				g = recovered ? Graph.recover(logDirectory, checkpointEdges, outputNames) : null;
+				if (recovered) {
+					Logger.getLogger(VerifyTransaction.class.getName()).info("Recovered " + g.nodeCount() + " nodes and "
+							+ g.edgeCount() + " edges from " + logDirectory + " in " + (System.nanoTime() - start) / 1000000
+							+ "ms, " + g.edgeLog().replayedEdges() + " of them from the log"
+							+ (serve ? "" : ", " + g.answeredPayments() + " payments already answered"));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				metrics.stopLogging();
+				return;
+			}
+			if (recovered) {
+				metrics.graph(g);
+			} else if (windowed || offHeap) {
+				//Edges are added one by one on one thread, off the heap or with the time of their payment
+				try {
+					g = offHeap ? Graph.offHeap(options.get("off-heap-file", null)) : new Graph();
+				} catch (IOException e) {
+					e.printStackTrace();
+					metrics.stopLogging();
+					return;
+				}
+				if (windowed) {
+					g.enableTimeWindow(options.getInt("window", 0));
+				}
+				initializeTransactions(batchDataFile, g, dictionary);
+			} else {
+				g = loadTransactions(batchDataFile, options.get("batch-format", "csv"), threads, dictionary);
+			}
+			if (g == null) {
+				System.err.println("Cannot load " + batchDataFile + " as " + options.get("batch-format", "csv"));
+				metrics.stopLogging();
+				return;
+			}
+			if (options.has("write-snapshot")) {
+				try {
+					g.writeSnapshot(options.get("write-snapshot", null));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (options.has("compress")) {
+				g.compress();
+				metrics.graph(g);
+			}
+			if (options.has("two-hop-cap")) {
+				long maxBytes = options.getInt("two-hop-memory-mb", (int) (Runtime.getRuntime().maxMemory() >> 22)) * (1L << 20);
+				g.enableNeighborhoodIndex(options.getInt("two-hop-cap", 0), maxBytes);
+			}
+			if (options.has("cache-entries")) {
+				g.enableSeparationCache(options.getInt("cache-entries", 0));
+			}
+			if (budget != null) {
+				g.enableSearchBudget(budget);
+			}
+			if (logDirectory != null && !recovered) {
+				try {
+					g.enableEdgeLog(logDirectory, checkpointEdges);
+				} catch (IOException e) {
+					e.printStackTrace();
+					metrics.stopLogging();
+					return;
+				}
+			}
+
+			if (serve) {
+				try (VerificationServer server = new VerificationServer(g, separationDegrees, options.get("listen", null), dictionary)) {
+					Logger.getLogger(VerifyTransaction.class.getName()).info("Verifying payments on " + server.address());
+					server.serve();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				closeEdgeLog(g);
+				metrics.stopLogging();
+				return;
+			}
+
+			String streamDataFile = files.get(1);
+			processTransactions(streamDataFile, outputNames, g, separationDegrees, threads, dictionary, options.has("pipeline"));
+			closeEdgeLog(g);
+			metrics.stopLogging();
+			if (metricsInterval > 0) {
+				Logger.getLogger(VerifyTransaction.class.getName()).info(metrics.summary());
 			}
+		} else {
+			System.err.println("Usage: VerifyTransaction [--degrees=1,2,4] [--threads=T] [--two-hop-cap=N [--two-hop-memory-mb=M]]"
+					+ " [--cache-entries=N] [--compress] [--batch-format=csv|snapshot] [--write-snapshot=FILE] [--ids=int|long|string]"
+					+ " [--window=SECONDS] [--off-heap | --off-heap-file=FILE] [--budget-nodes=N] [--budget-edges=N] [--budget-micros=N]"
+					+ " [--on-budget=unverified|trusted] [--log-dir=DIR [--checkpoint-edges=N]] [--shards=N] [--pipeline]"
+					+ " [--metrics-interval=S]"
+					+ " batch_file stream_file output_file...");
+			System.err.println("       VerifyTransaction [options] --listen=[host:]port|unix:path batch_file");
 		}
 	}
 }